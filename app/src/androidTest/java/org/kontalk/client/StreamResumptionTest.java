@@ -0,0 +1,389 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.SASLAuthentication;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.roster.Roster;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.jxmpp.jid.impl.JidCreate;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests XEP-0198 stream resumption against a local server stand-in that
+ * drops the connection in the middle of the stream.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StreamResumptionTest {
+
+    private static final String DOMAIN = "example.org";
+    private static final String RECIPIENT = "bob@example.org";
+
+    /** Messages sent before the connection drop. */
+    private static final int FIRST_BATCH = 10;
+    /** The server will drop the connection after receiving this many messages. */
+    private static final int DROP_AFTER = 5;
+    /** Messages sent after resuming the stream. */
+    private static final int SECOND_BATCH = 5;
+
+    private static final long TIMEOUT = 10;
+
+    private FakeServer mServer;
+    private XMPPTCPConnection mConn;
+
+    @Before
+    public void setUp() throws Exception {
+        SASLAuthentication.unBlacklistSASLMechanism("PLAIN");
+
+        mServer = new FakeServer(DROP_AFTER);
+        mServer.start();
+
+        XMPPTCPConnectionConfiguration config = XMPPTCPConnectionConfiguration.builder()
+            .setHostAddress(InetAddress.getLoopbackAddress())
+            .setPort(mServer.getPort())
+            .setXmppDomain(DOMAIN)
+            .setUsernameAndPassword("alice", "secret")
+            .setResource("test")
+            .setSecurityMode(SecurityMode.disabled)
+            .setCompressionEnabled(false)
+            .setSendPresence(false)
+            .build();
+
+        mConn = new XMPPTCPConnection(config);
+        mConn.setUseStreamManagement(true);
+        mConn.setUseStreamManagementResumption(true);
+        Roster.getInstanceFor(mConn).setRosterLoadedAtLogin(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConn.instantShutdown();
+        mServer.close();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final CountDownLatch dropped = new CountDownLatch(1);
+        final List<Boolean> authentications = new ArrayList<>();
+        mConn.addConnectionListener(new AbstractConnectionListener() {
+            @Override
+            public void authenticated(XMPPConnection connection, boolean resumed) {
+                synchronized (authentications) {
+                    authentications.add(resumed);
+                }
+            }
+
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                dropped.countDown();
+            }
+        });
+
+        mConn.connect();
+        mConn.login();
+        assertTrue(mConn.isSmEnabled());
+
+        int sequence = 0;
+        for (int i = 0; i < FIRST_BATCH; i++)
+            mConn.sendStanza(createMessage(sequence++));
+
+        // server will drop the connection mid-stream
+        assertTrue(dropped.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(mConn.isDisconnectedButSmResumptionPossible());
+        assertFalse(mConn.isAuthenticated());
+
+        // reconnect with the same instance
+        mConn.connect();
+        mConn.login();
+        assertTrue(mConn.isSmEnabled());
+        synchronized (authentications) {
+            assertEquals(2, authentications.size());
+            assertFalse(authentications.get(0));
+            assertTrue(authentications.get(1));
+        }
+
+        for (int i = 0; i < SECOND_BATCH; i++)
+            mConn.sendStanza(createMessage(sequence++));
+
+        List<String> received = mServer.awaitMessages(sequence, TIMEOUT);
+        assertEquals(2, mServer.getSessionCount());
+        // no duplicates...
+        assertEquals(received.size(), new HashSet<>(received).size());
+        // ...and no lost messages, in order
+        assertEquals(sequence, received.size());
+        for (int i = 0; i < sequence; i++)
+            assertEquals(messageId(i), received.get(i));
+    }
+
+    private static String messageId(int sequence) {
+        return "message-" + sequence;
+    }
+
+    private static Message createMessage(int sequence) throws Exception {
+        Message message = new Message(JidCreate.from(RECIPIENT), Message.Type.chat);
+        message.setStanzaId(messageId(sequence));
+        message.setBody("Test message " + sequence);
+        return message;
+    }
+
+    /**
+     * A minimal XMPP server supporting SASL PLAIN, resource binding and
+     * Stream Management with resumption. The first session is dropped
+     * without notice after receiving a given number of messages.
+     */
+    private static final class FakeServer extends Thread {
+        private static final String SM_NAMESPACE = "urn:xmpp:sm:3";
+        private static final String SM_ID = "resumable-stream";
+
+        private final ServerSocket mServerSocket;
+        private final int mDropAfter;
+
+        /** Message IDs of handled messages, across sessions. */
+        private final List<String> mMessages = new ArrayList<>();
+        /** Stanzas handled since SM was enabled. */
+        private long mHandled;
+        private int mSessionCount;
+
+        private XmlPullParser mParser;
+        private Writer mWriter;
+
+        FakeServer(int dropAfter) throws IOException {
+            super("FakeXMPPServer");
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mDropAfter = dropAfter;
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        synchronized int getSessionCount() {
+            return mSessionCount;
+        }
+
+        List<String> awaitMessages(int count, long timeoutSeconds) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+            synchronized (mMessages) {
+                long now;
+                while (mMessages.size() < count && (now = System.currentTimeMillis()) < deadline)
+                    mMessages.wait(deadline - now);
+                // give some time for unexpected duplicates to arrive
+                mMessages.wait(500);
+                return new ArrayList<>(mMessages);
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                Socket socket = null;
+                try {
+                    socket = mServerSocket.accept();
+                    int session;
+                    synchronized (this) {
+                        session = ++mSessionCount;
+                    }
+                    handleSession(socket.getInputStream(), socket.getOutputStream(), session == 1);
+                }
+                catch (IOException | XmlPullParserException ignored) {
+                }
+                finally {
+                    try {
+                        if (socket != null)
+                            socket.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void handleSession(InputStream in, OutputStream out, boolean dropping)
+                throws IOException, XmlPullParserException {
+            mWriter = new OutputStreamWriter(out, "UTF-8");
+
+            openStream(in);
+            send("<stream:features><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>" +
+                "<mechanism>PLAIN</mechanism></mechanisms></stream:features>");
+            nextElement("auth");
+            skipElement();
+            send("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+
+            // stream restart after authentication
+            openStream(in);
+            send("<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>" +
+                "<sm xmlns='" + SM_NAMESPACE + "'/></stream:features>");
+
+            boolean smEnabled = false;
+            int sessionMessages = 0;
+            while (nextElement(null)) {
+                String name = mParser.getName();
+                String id = mParser.getAttributeValue(null, "id");
+
+                switch (name) {
+                    case "enable":
+                        skipElement();
+                        mHandled = 0;
+                        smEnabled = true;
+                        send("<enabled xmlns='" + SM_NAMESPACE + "' id='" + SM_ID +
+                            "' resume='true' max='300'/>");
+                        break;
+                    case "resume":
+                        String prevId = mParser.getAttributeValue(null, "previd");
+                        skipElement();
+                        if (!SM_ID.equals(prevId))
+                            throw new IOException("unknown stream " + prevId);
+                        smEnabled = true;
+                        send("<resumed xmlns='" + SM_NAMESPACE + "' h='" + mHandled +
+                            "' previd='" + SM_ID + "'/>");
+                        break;
+                    case "r":
+                        skipElement();
+                        send("<a xmlns='" + SM_NAMESPACE + "' h='" + mHandled + "'/>");
+                        break;
+                    case "a":
+                        skipElement();
+                        break;
+                    case "iq":
+                        boolean bind = skipElement();
+                        if (bind) {
+                            send("<iq type='result' id='" + id + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>" +
+                                "<jid>alice@" + DOMAIN + "/test</jid></bind></iq>");
+                        }
+                        else {
+                            send("<iq type='error' id='" + id + "'><error type='cancel'>" +
+                                "<service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>" +
+                                "</error></iq>");
+                        }
+                        if (smEnabled)
+                            mHandled++;
+                        break;
+                    case "message":
+                        skipElement();
+                        synchronized (mMessages) {
+                            mMessages.add(id);
+                            mMessages.notifyAll();
+                        }
+                        if (smEnabled)
+                            mHandled++;
+                        if (dropping && ++sessionMessages >= mDropAfter) {
+                            // drop the connection without acking
+                            return;
+                        }
+                        break;
+                    default:
+                        skipElement();
+                        if (smEnabled)
+                            mHandled++;
+                        break;
+                }
+            }
+        }
+
+        private void openStream(InputStream in) throws IOException, XmlPullParserException {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            mParser = factory.newPullParser();
+            mParser.setInput(new InputStreamReader(in, "UTF-8"));
+            nextElement("stream");
+            send("<?xml version='1.0' encoding='UTF-8'?><stream:stream xmlns='jabber:client' " +
+                "xmlns:stream='http://etherx.jabber.org/streams' from='" + DOMAIN +
+                "' id='stream-" + mSessionCount + "' version='1.0'>");
+        }
+
+        /**
+         * Moves to the next top-level element.
+         * @param expected the expected element name, or null for any element
+         * @return false if the stream was closed
+         */
+        private boolean nextElement(String expected) throws IOException, XmlPullParserException {
+            while (true) {
+                int event = mParser.next();
+                if (event == XmlPullParser.START_TAG) {
+                    if (expected != null && !expected.equals(mParser.getName()))
+                        throw new IOException("unexpected element " + mParser.getName());
+                    return true;
+                }
+                else if (event == XmlPullParser.END_TAG || event == XmlPullParser.END_DOCUMENT) {
+                    // closing stream
+                    if (expected != null)
+                        throw new IOException("stream closed");
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Skips the current element.
+         * @return true if the element contained a resource binding request
+         */
+        private boolean skipElement() throws IOException, XmlPullParserException {
+            boolean bind = false;
+            int depth = mParser.getDepth();
+            while (mParser.next() != XmlPullParser.END_TAG || mParser.getDepth() > depth) {
+                if (mParser.getEventType() == XmlPullParser.START_TAG && "bind".equals(mParser.getName()))
+                    bind = true;
+            }
+            return bind;
+        }
+
+        private void send(String data) throws IOException {
+            mWriter.write(data);
+            mWriter.flush();
+        }
+    }
+
+}
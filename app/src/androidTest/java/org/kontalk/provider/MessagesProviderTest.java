@@ -27,12 +27,16 @@ import org.jxmpp.util.XmppStringUtils;
 
 import android.annotation.TargetApi;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.ProviderTestCase2;
+import android.util.Log;
 
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
@@ -183,6 +187,151 @@ public class MessagesProviderTest extends ProviderTestCase2<MessagesProvider> {
         c.close();
     }
 
+    @Test
+    public void testThreadCounters() {
+        Uri msg = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Test message for you", true, 0);
+        assertNotNull(msg);
+        long threadId = MessagesProviderClient.getThreadByMessage(getMockContext(), msg);
+        Uri threadUri = ContentUris.withAppendedId(Threads.CONTENT_URI, threadId);
+
+        fillThread(threadId, 10, true);
+        assertQueryValues(threadUri,
+            Threads.COUNT, "11",
+            Threads.UNREAD, "10",
+            Threads.NEW, "10");
+
+        MessagesProviderClient.markThreadAsRead(getMockContext(), threadId);
+        assertQueryValues(threadUri,
+            Threads.COUNT, "11",
+            Threads.UNREAD, "0");
+
+        MessagesProviderClient.deleteMessage(getMockContext(), ContentUris.parseId(msg));
+        assertQueryValues(threadUri,
+            Threads.COUNT, "10",
+            Threads.UNREAD, "0");
+    }
+
+    @Test
+    public void testBulkInsertMessages() {
+        String msgId = MessageUtils.messageId();
+        ContentValues[] values = {
+            incomingMessage(msgId, "Message 1"),
+            incomingMessage(MessageUtils.messageId(), "Message 2"),
+            // duplicated message
+            incomingMessage(msgId, "Message 1"),
+        };
+
+        int count = getMockContentResolver().bulkInsert(Messages.CONTENT_URI, values);
+        assertEquals(2, count);
+        assertQueryValues(Threads.getUri(TEST_USERID),
+            Threads.COUNT, "2",
+            Threads.UNREAD, "2",
+            Threads.CONTENT, "Message 2");
+    }
+
+    @Test
+    public void testBatchInsertMessages() {
+        ContentValues[] values = {
+            incomingMessage(MessageUtils.messageId(), "Message 1"),
+            incomingMessage(MessageUtils.messageId(), "Message 2"),
+        };
+        // duplicated message will be skipped
+        values = SystemUtils.concatenate(values, values[0]);
+
+        Uri[] msgs = MessagesProviderClient.newIncomingMessages(getMockContext(), values);
+        assertEquals(3, msgs.length);
+        assertNotNull(msgs[0]);
+        assertNotNull(msgs[1]);
+        assertNull(msgs[2]);
+        assertQueryValues(msgs[1],
+            Messages.BODY_CONTENT, "Message 2");
+        assertQueryValues(Threads.getUri(TEST_USERID),
+            Threads.COUNT, "2",
+            Threads.CONTENT, "Message 2");
+    }
+
+    private ContentValues incomingMessage(String msgId, String text) {
+        ContentValues values = new ContentValues();
+        values.put(Messages.MESSAGE_ID, msgId);
+        values.put(Messages.PEER, TEST_USERID);
+        values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
+        values.put(Messages.UNREAD, true);
+        values.put(Messages.NEW, true);
+        values.put(Messages.TIMESTAMP, System.currentTimeMillis());
+        values.put(Messages.STATUS, Messages.STATUS_INCOMING);
+        values.put(Messages.BODY_MIME, "text/plain");
+        values.put(Messages.BODY_CONTENT, text.getBytes());
+        values.put(Messages.BODY_LENGTH, text.length());
+        return values;
+    }
+
+    /** Insert latency should not grow with the thread size. */
+    @Test
+    @LargeTest
+    public void testInsertLatencyLargeThread() {
+        final int[] sizes = { 1000, 10000, 100000 };
+        final int samples = 100;
+
+        Uri msg = MessagesProviderClient.newOutgoingMessage(getMockContext(),
+            MessageUtils.messageId(), TEST_USERID, "Test message for you", true, 0);
+        assertNotNull(msg);
+        long threadId = MessagesProviderClient.getThreadByMessage(getMockContext(), msg);
+
+        int count = 1;
+        double[] latencies = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            fillThread(threadId, sizes[i] - count, false);
+            count = sizes[i];
+
+            long start = System.nanoTime();
+            for (int j = 0; j < samples; j++) {
+                assertNotNull(MessagesProviderClient.newOutgoingMessage(getMockContext(),
+                    MessageUtils.messageId(), TEST_USERID, "Test message for you", true, 0));
+            }
+            latencies[i] = (System.nanoTime() - start) / 1000000.0 / samples;
+            count += samples;
+            Log.d("MessagesProviderTest", "insert latency with " + sizes[i] +
+                " messages: " + latencies[i] + " ms");
+        }
+
+        assertQueryValues(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId),
+            Threads.COUNT, String.valueOf(count));
+        // allow some noise, but a COUNT(*) per insert would grow ~100 times
+        assertTrue("insert latency grew with thread size: " + latencies[0] +
+                " ms -> " + latencies[sizes.length - 1] + " ms",
+            latencies[sizes.length - 1] < latencies[0] * 3);
+    }
+
+    /** Inserts messages directly in the database, bypassing the provider. */
+    private void fillThread(long threadId, int count, boolean unread) {
+        SQLiteDatabase db = getProvider().getWritableDatabase();
+        ContentValues values = new ContentValues();
+        long timestamp = System.currentTimeMillis();
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                values.clear();
+                values.put(Messages.THREAD_ID, threadId);
+                values.put(Messages.MESSAGE_ID, MessageUtils.messageId());
+                values.put(Messages.PEER, TEST_USERID);
+                values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
+                values.put(Messages.UNREAD, unread);
+                values.put(Messages.NEW, unread);
+                values.put(Messages.TIMESTAMP, timestamp - count + i);
+                values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                values.put(Messages.BODY_MIME, "text/plain");
+                values.put(Messages.BODY_CONTENT, "Test message".getBytes());
+                db.insertOrThrow(MessagesProvider.TABLE_MESSAGES, null, values);
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
     private void assertQuery(Uri uri) {
         Cursor c = getMockContentResolver().query(uri, null, null, null, null);
         assertNotNull(c);
@@ -19,7 +19,17 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.After;
 import org.junit.Before;
@@ -30,16 +40,26 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Build;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DeletedContacts;
+import android.provider.ContactsContract.RawContacts;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.ProviderTestCase2;
+import android.test.mock.MockContentProvider;
 import android.util.Base64;
 
+import org.kontalk.client.PhoneNumberNormalizer;
 import org.kontalk.crypto.PGP;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.Preferences;
 
 
 @RunWith(AndroidJUnit4.class)
@@ -483,6 +503,87 @@ public class UsersProviderTest extends ProviderTestCase2<UsersProvider> {
         assertTrue(Arrays.equals(publicKey.getEncoded(), originalKey.getEncoded()));
     }
 
+    @Test
+    public void testPresenceBatch() throws Exception {
+        Keyring.invalidatePublicKeys();
+        assertNull(Keyring.getPublicKeyFingerprint(getMockContext(), TEST_USERID));
+
+        byte[] keydata = Base64.decode(TEST_KEYDATA, Base64.DEFAULT);
+        String fingerprint = PGP.getFingerprint(keydata);
+        Keyring.setKey(getMockContext(), TEST_USERID, keydata);
+        assertEquals(fingerprint, Keyring.getPublicKeyFingerprint(getMockContext(), TEST_USERID));
+
+        // a presence with a new fingerprint and a presence with the current one
+        String newFingerprint = "0123456789ABCDEF0123456789ABCDEF01234567";
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(Keyring.setKeyOperation(TEST_USERID, newFingerprint, new Date()));
+        ops.add(Keyring.setKeyOperation(TEST_USERID, fingerprint, new Date()));
+        ContentValues values = new ContentValues();
+        values.put(MyUsers.Users.STATUS, "test status");
+        values.put(MyUsers.Users.LAST_SEEN, 1000L);
+        ops.add(ContentProviderOperation.newUpdate(MyUsers.Users.CONTENT_URI)
+            .withValues(values)
+            .withSelection(MyUsers.Users.JID + "=?", new String[] { TEST_USERID })
+            .build());
+        getMockContentResolver().applyBatch(UsersProvider.AUTHORITY, ops);
+
+        assertQueryValues(MyUsers.Keys.getUri(TEST_USERID, newFingerprint),
+            MyUsers.Keys.FINGERPRINT, newFingerprint);
+        assertQueryValues(MyUsers.Users.CONTENT_URI.buildUpon().appendPath(TEST_USERID).build(),
+            MyUsers.Users.STATUS, "test status",
+            MyUsers.Users.LAST_SEEN, "1000");
+        // the new key has not been downloaded yet
+        assertEquals(fingerprint, Keyring.getPublicKeyFingerprint(getMockContext(), TEST_USERID));
+    }
+
+    @Test
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void testIncrementalResync() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2)
+            return;
+
+        // JIDs can't be created without a server
+        String serverURI = Preferences.getServerURI();
+        Preferences.setServerURI("kontalk.test|localhost");
+        try {
+            FakeContactsProvider contacts = new FakeContactsProvider();
+            getMockContentResolver().addProvider(ContactsContract.AUTHORITY, contacts);
+            PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer("+393351234567", "IT", 0);
+
+            contacts.addContact(1, "Alice", 100, "3351111111");
+            contacts.addContact(2, "Bob", 100, "3352222222", "3352222223");
+            contacts.addContact(3, "Carol", 100, "3353333333");
+            assertEquals(4, getProvider().resyncFull(normalizer));
+
+            // data from a sync, including a user known only by the server
+            ContentValues values = new ContentValues();
+            values.put(MyUsers.Users.REGISTERED, 1);
+            values.put(MyUsers.Users.STATUS, "test status");
+            values.put(MyUsers.Users.LAST_SEEN, 1000L);
+            values.put(MyUsers.Users.BLOCKED, 1);
+            getMockContentResolver().update(MyUsers.Users.CONTENT_URI_OFFLINE, values, null, null);
+            values.put(MyUsers.Users.NUMBER, "+15555215554");
+            getMockContentResolver().update(MyUsers.Users.CONTENT_URI_OFFLINE, values,
+                MyUsers.Users.JID + "=?", new String[] { TEST_USERID });
+
+            // a number changed, a contact deleted and a contact added
+            contacts.addContact(2, "Bob", 200, "3352222222", "3352222224");
+            contacts.deleteContact(3, 200);
+            contacts.addContact(4, "Dave", 200, "3354444444");
+
+            assertEquals(3, getProvider().resyncIncremental(150, normalizer));
+            List<String> incremental = queryOfflineUsers();
+            assertEquals(4, getProvider().resyncFull(normalizer));
+            List<String> full = queryOfflineUsers();
+
+            assertEquals(4, full.size());
+            assertEquals(full, incremental);
+        }
+        finally {
+            Preferences.setServerURI(serverURI);
+        }
+    }
+
     private void assertQuery(Uri uri) {
         Cursor c = getMockContentResolver().query(uri, null, null, null, null);
         assertNotNull(c);
@@ -514,4 +615,97 @@ public class UsersProviderTest extends ProviderTestCase2<UsersProvider> {
         c.close();
     }
 
+    /** Returns the offline table as a sorted list of rows. */
+    private List<String> queryOfflineUsers() {
+        Cursor c = getMockContentResolver().query(MyUsers.Users.CONTENT_URI_OFFLINE,
+            new String[] {
+                MyUsers.Users.JID,
+                MyUsers.Users.NUMBER,
+                MyUsers.Users.DISPLAY_NAME,
+                MyUsers.Users.LOOKUP_KEY,
+                MyUsers.Users.CONTACT_ID,
+                MyUsers.Users.REGISTERED,
+                MyUsers.Users.STATUS,
+                MyUsers.Users.LAST_SEEN,
+                MyUsers.Users.BLOCKED,
+            }, null, null, MyUsers.Users.JID);
+        assertNotNull(c);
+
+        List<String> rows = new ArrayList<>(c.getCount());
+        while (c.moveToNext()) {
+            StringBuilder row = new StringBuilder();
+            for (int i = 0; i < c.getColumnCount(); i++)
+                row.append(c.getString(i)).append('|');
+            rows.add(row.toString());
+        }
+        c.close();
+        return rows;
+    }
+
+    /** Serves a fixed set of system contacts to the resync queries. */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static final class FakeContactsProvider extends MockContentProvider {
+        private static final Pattern CONTACT_IDS = Pattern
+            .compile(Phone.CONTACT_ID + " IN \\(([0-9,]+)\\)");
+
+        private final Map<Long, String[]> mNumbers = new LinkedHashMap<>();
+        private final Map<Long, String> mNames = new HashMap<>();
+        private final Map<Long, Long> mUpdated = new HashMap<>();
+        private final Map<Long, Long> mDeleted = new HashMap<>();
+
+        void addContact(long id, String name, long timestamp, String... numbers) {
+            mNumbers.put(id, numbers);
+            mNames.put(id, name);
+            mUpdated.put(id, timestamp);
+        }
+
+        void deleteContact(long id, long timestamp) {
+            mNumbers.remove(id);
+            mNames.remove(id);
+            mUpdated.remove(id);
+            mDeleted.put(id, timestamp);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (uri.equals(Phone.CONTENT_URI)) {
+                Set<Long> ids = null;
+                Matcher m = CONTACT_IDS.matcher(selection);
+                if (m.find()) {
+                    ids = new HashSet<>();
+                    for (String id : m.group(1).split(","))
+                        ids.add(Long.valueOf(id));
+                }
+
+                MatrixCursor c = new MatrixCursor(new String[] { Phone.NUMBER,
+                    Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE });
+                for (Map.Entry<Long, String[]> e : mNumbers.entrySet()) {
+                    long id = e.getKey();
+                    if (ids != null && !ids.contains(id))
+                        continue;
+                    for (String number : e.getValue())
+                        c.addRow(new Object[] { number, mNames.get(id), "lookup" + id, id, null });
+                }
+                return c;
+            }
+            else if (uri.equals(ContactsContract.Contacts.CONTENT_URI)) {
+                return queryTimestamps(ContactsContract.Contacts._ID, mUpdated, selectionArgs[0]);
+            }
+            else if (uri.equals(DeletedContacts.CONTENT_URI)) {
+                return queryTimestamps(DeletedContacts.CONTACT_ID, mDeleted, selectionArgs[0]);
+            }
+            return null;
+        }
+
+        private static Cursor queryTimestamps(String column, Map<Long, Long> timestamps, String since) {
+            MatrixCursor c = new MatrixCursor(new String[] { column });
+            for (Map.Entry<Long, Long> e : timestamps.entrySet()) {
+                if (e.getValue() > Long.parseLong(since))
+                    c.addRow(new Object[] { e.getKey() });
+            }
+            return c;
+        }
+    }
+
 }
@@ -0,0 +1,148 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.adapter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+import android.widget.ListView;
+
+import org.kontalk.R;
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.util.MessageUtils;
+
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Measures allocations while scrolling through a message list.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageListAdapterBenchmark {
+    private static final String TAG = MessageListAdapterBenchmark.class.getSimpleName();
+
+    private static final int MESSAGE_COUNT = 200;
+    /** Items bound in a single frame while scrolling. */
+    private static final int ITEMS_PER_FRAME = 2;
+    /** Number of visible items. */
+    private static final int VISIBLE_ITEMS = 10;
+
+    private static final String TEST_PEER = "alice@prime.kontalk.net";
+
+    private MatrixCursor createCursor() {
+        String[] columns = new String[CompositeMessage.COLUMN_GROUP_MEMBERSHIP + 1];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = "column" + i;
+        columns[CompositeMessage.COLUMN_ID] = Messages._ID;
+
+        MatrixCursor cursor = new MatrixCursor(columns, MESSAGE_COUNT);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            Object[] row = new Object[columns.length];
+            row[CompositeMessage.COLUMN_ID] = i + 1;
+            row[CompositeMessage.COLUMN_MESSAGE_ID] = MessageUtils.messageId();
+            row[CompositeMessage.COLUMN_PEER] = TEST_PEER;
+            row[CompositeMessage.COLUMN_DIRECTION] = i % 3 == 0 ?
+                Messages.DIRECTION_OUT : Messages.DIRECTION_IN;
+            row[CompositeMessage.COLUMN_TIMESTAMP] = now - (MESSAGE_COUNT - i) * 60000L;
+            row[CompositeMessage.COLUMN_STATUS_CHANGED] = row[CompositeMessage.COLUMN_TIMESTAMP];
+            row[CompositeMessage.COLUMN_STATUS] = Messages.STATUS_RECEIVED;
+            row[CompositeMessage.COLUMN_BODY_MIME] = "text/plain";
+            byte[] body = ("Test message number " + i).getBytes();
+            row[CompositeMessage.COLUMN_BODY_CONTENT] = body;
+            row[CompositeMessage.COLUMN_BODY_LENGTH] = body.length;
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Scrolls down through the whole list, then up again.
+     * @return average number of allocations per frame
+     */
+    private long scroll(MessageListAdapter adapter, ListView list) {
+        // recycled views, by view type
+        View[][] views = new View[adapter.getViewTypeCount()][VISIBLE_ITEMS + ITEMS_PER_FRAME];
+        int frames = 0;
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int pos = 0; pos < MESSAGE_COUNT; pos += ITEMS_PER_FRAME, frames++) {
+                for (int i = pos; i < pos + ITEMS_PER_FRAME && i < MESSAGE_COUNT; i++) {
+                    bind(adapter, list, views, i);
+                }
+            }
+            for (int pos = MESSAGE_COUNT - 1; pos >= 0; pos -= ITEMS_PER_FRAME, frames++) {
+                for (int i = pos; i > pos - ITEMS_PER_FRAME && i >= 0; i--) {
+                    bind(adapter, list, views, i);
+                }
+            }
+        }
+        finally {
+            Debug.stopAllocCounting();
+        }
+
+        return Debug.getThreadAllocCount() / frames;
+    }
+
+    private void bind(MessageListAdapter adapter, ListView list, View[][] views, int position) {
+        View[] typeViews = views[adapter.getItemViewType(position)];
+        int slot = position % typeViews.length;
+        typeViews[slot] = adapter.getView(position, typeViews[slot], list);
+    }
+
+    @Test
+    public void testScrollAllocations() {
+        final Context context = new ContextThemeWrapper(InstrumentationRegistry
+            .getTargetContext(), R.style.Theme_Light);
+        final long[] results = new long[2];
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ListView list = new ListView(context);
+                MessageListAdapter adapter = new MessageListAdapter(context,
+                    createCursor(), null, list, null);
+
+                // first pass: every message is parsed
+                results[0] = scroll(adapter, list);
+                // second pass: messages near the viewport are already parsed
+                results[1] = scroll(adapter, list);
+            }
+        });
+
+        Log.i(TAG, "allocations per frame: first pass " + results[0] +
+            ", second pass " + results[1]);
+        assertTrue("second pass should allocate less than the first one",
+            results[1] < results[0]);
+    }
+
+}
@@ -43,6 +43,7 @@ import android.os.StrictMode;
 import android.preference.PreferenceManager;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
@@ -284,6 +285,8 @@ public class Kontalk extends Application {
     public void invalidatePersonalKey() {
         mDefaultKey = null;
         mKeyPassphrase = null;
+        // client certificates are bound to the personal key
+        ClientHTTPConnection.invalidateSSLSocketFactories();
     }
 
     private void ensureCachedPassphrase() {
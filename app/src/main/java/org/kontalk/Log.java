@@ -20,16 +20,12 @@ package org.kontalk;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 import android.content.Context;
 
+import org.kontalk.util.AsyncLogWriter;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.RotatingFileWriter;
-import org.kontalk.util.SystemUtils;
 
 
 /**
@@ -40,24 +36,25 @@ import org.kontalk.util.SystemUtils;
 public final class Log {
 
     private static final String LOG_FILENAME = "kontalk-android.log";
-    private static DateFormat DATE_FORMAT;  // created on demand
+    private static final String LOG_EXPORT_FILENAME = "kontalk-android-export.log";
 
-    private static RotatingFileWriter sLogFileWriter;
+    private static volatile AsyncLogWriter sLogWriter;
     private static File sLogFile;
 
     public static void init(Context context) {
         try {
             if (Preferences.isDebugLogEnabled(context)) {
-                DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-                sLogFile = new File(context.getExternalCacheDir(), LOG_FILENAME);
-                sLogFileWriter = new RotatingFileWriter(sLogFile);
+                if (sLogWriter == null) {
+                    sLogFile = new File(context.getExternalCacheDir(), LOG_FILENAME);
+                    sLogWriter = new AsyncLogWriter(new RotatingFileWriter(sLogFile));
+                }
             }
             else {
-                if (sLogFileWriter != null) {
-                    sLogFileWriter.abort();
-                    sLogFileWriter = null;
+                AsyncLogWriter writer = sLogWriter;
+                if (writer != null) {
+                    sLogWriter = null;
+                    writer.abort();
                 }
-                DATE_FORMAT = null;
             }
         }
         catch (IOException e) {
@@ -69,56 +66,52 @@ public final class Log {
         return sLogFile;
     }
 
-    public static boolean isDebug() {
-        return BuildConfig.DEBUG || sLogFileWriter != null;
+    /**
+     * Writes the whole log, including rotated segments, to a single file.
+     * @return the exported file, or null if file logging is not enabled
+     */
+    public static File exportLogFile() throws IOException {
+        File logFile = sLogFile;
+        if (logFile == null || !logFile.isFile())
+            return null;
+
+        File exportFile = new File(logFile.getParentFile(), LOG_EXPORT_FILENAME);
+        RotatingFileWriter.concatenate(logFile, exportFile);
+        return exportFile;
     }
 
-    private static String buildLog(String tag, int level, String msg) {
-        String strLevel;
-        switch (level) {
-            case android.util.Log.VERBOSE:
-                strLevel = "V";
-                break;
-            case android.util.Log.DEBUG:
-                strLevel = "D";
-                break;
-            case android.util.Log.INFO:
-                strLevel = "I";
-                break;
-            case android.util.Log.WARN:
-                strLevel = "W";
-                break;
-            case android.util.Log.ERROR:
-                strLevel = "E";
-                break;
-            default:
-                strLevel = "?";
-                break;
-        }
-        String timestamp;
-        synchronized (DATE_FORMAT) {
-            timestamp = DATE_FORMAT.format(new Date());
-        }
-        return timestamp + " " + strLevel + "/" + tag + ": " + msg;
+    /** Requests pending log lines to be written to the log file. */
+    public static void flush() {
+        AsyncLogWriter writer = sLogWriter;
+        if (writer != null)
+            writer.flush();
+    }
+
+    /**
+     * Writes pending log lines to the log file, waiting at most the given time.
+     * @return true if the lines were written, false on timeout or if file logging is not enabled
+     */
+    public static boolean flush(long timeout) {
+        AsyncLogWriter writer = sLogWriter;
+        return writer != null && writer.flush(timeout);
+    }
+
+    public static boolean isDebug() {
+        return BuildConfig.DEBUG || sLogWriter != null;
     }
 
     private static void log(String tag, int level, Throwable tr) {
-        if (sLogFileWriter != null && tr != null) {
+        if (sLogWriter != null && tr != null) {
             log(tag, level, android.util.Log.getStackTraceString(tr));
         }
     }
 
     private static void log(String tag, int level, String msg) {
-        if (sLogFileWriter != null) {
-            try {
-                sLogFileWriter.println(buildLog(tag, level, msg));
-                sLogFileWriter.flush();
-            }
-            catch (IOException e) {
-                // disable logging but keep the file
-                SystemUtils.closeStream(sLogFileWriter);
-                sLogFileWriter = null;
-            }
+        AsyncLogWriter writer = sLogWriter;
+        if (writer != null && !writer.println(level, tag, msg)) {
+            // writer was closed because of an I/O error
+            // disable logging but keep the file
+            sLogWriter = null;
         }
     }
 
@@ -18,6 +18,12 @@
 
 package org.kontalk;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -183,6 +189,120 @@ public class MessagesController {
      * Process an incoming message.
      */
     public Uri incoming(CompositeMessage msg) {
+        ContentValues values = prepareIncoming(msg);
+
+        // will be null if something went wrong
+        Uri msgUri = MessagesProviderClient.newIncomingMessage(mContext, values);
+
+        if (msg.getComponent(GroupComponent.class) == null) {
+            // mark sender as registered in the users database
+            markRegistered(Collections.singletonList(msg.getSender(true)));
+        }
+
+        // fire notification only if message was actually inserted to database
+        if (msgUri != null && isNotifiable(msg)) {
+            notifyIncoming(getConversationPeer(msg));
+        }
+
+        autodownloadIncoming(msg, msgUri);
+        return msgUri;
+    }
+
+    /**
+     * Process a list of incoming messages, storing them in a single transaction.
+     * Group commands should not be processed here since their side effects
+     * will be applied before storing any message.
+     * @return the message URIs, null entries for messages not stored
+     */
+    public Uri[] incoming(List<CompositeMessage> msgs) {
+        ContentValues[] values = new ContentValues[msgs.size()];
+        Set<String> senders = new HashSet<>();
+        for (int i = 0; i < values.length; i++) {
+            CompositeMessage msg = msgs.get(i);
+            values[i] = prepareIncoming(msg);
+            if (msg.getComponent(GroupComponent.class) == null)
+                senders.add(msg.getSender(true));
+        }
+
+        Uri[] msgUris = MessagesProviderClient.newIncomingMessages(mContext, values);
+
+        // mark senders as registered in the users database
+        if (senders.size() > 0)
+            markRegistered(senders);
+
+        // a single notification update (or sound) for the whole batch
+        boolean notifyUpdate = false;
+        boolean notifySound = false;
+        for (int i = 0; i < msgUris.length; i++) {
+            CompositeMessage msg = msgs.get(i);
+            if (msgUris[i] != null && isNotifiable(msg)) {
+                if (!MessagingNotification.isPaused(getConversationPeer(msg)))
+                    notifyUpdate = true;
+                else
+                    notifySound = true;
+            }
+
+            autodownloadIncoming(msg, msgUris[i]);
+        }
+
+        if (notifyUpdate) {
+            // update notifications (delayed)
+            MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
+        }
+        if (notifySound) {
+            // play in-conversation sound
+            MediaStorage.playNotificationSound(mContext.getApplicationContext(), R.raw.sound_incoming);
+        }
+
+        return msgUris;
+    }
+
+    /**
+     * Fires a notification for an incoming message if the conversation is not open already.
+     * @param paused the thread peer of the message (group JID for groups)
+     */
+    private void notifyIncoming(String paused) {
+        if (!MessagingNotification.isPaused(paused)) {
+            // update notifications (delayed)
+            MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
+        }
+        else {
+            // play in-conversation sound
+            MediaStorage.playNotificationSound(mContext.getApplicationContext(), R.raw.sound_incoming);
+        }
+    }
+
+    private String getConversationPeer(CompositeMessage msg) {
+        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
+        return groupInfo != null ? groupInfo.getContent().getJid() : msg.getSender(true);
+    }
+
+    /** Group commands don't get notifications, except group creation and part. */
+    private boolean isNotifiable(CompositeMessage msg) {
+        GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
+        return (group == null || group.isCreateCommand() || group.isPartCommand());
+    }
+
+    private void markRegistered(final Collection<String> senders) {
+        final Context context = mContext.getApplicationContext();
+        new Thread(new Runnable() {
+            public void run() {
+                for (String sender : senders) {
+                    try {
+                        UsersProvider.markRegistered(context, sender);
+                    } catch (SQLiteConstraintException e) {
+                        // this might happen during an online/offline switch
+                    }
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Prepares the content values for storing an incoming message.
+     * Group commands are applied to the database here.
+     */
+    private ContentValues prepareIncoming(CompositeMessage msg) {
         final String sender = msg.getSender(true);
 
         // save to local storage
@@ -194,7 +314,7 @@ public class MessagesController {
 
         GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
         // notify for 1-to-1 messages and group creation and part group commands
-        boolean notify = (group == null || group.isCreateCommand() || group.isPartCommand());
+        boolean notify = isNotifiable(msg);
 
         values.put(MyMessages.Messages.STATUS, msg.getStatus());
         // group commands don't get notifications
@@ -295,36 +415,12 @@ public class MessagesController {
             }
         }
 
-        // will be null if something went wrong
-        Uri msgUri = MessagesProviderClient.newIncomingMessage(mContext, values);
-
-        if (groupInfo == null) {
-            // mark sender as registered in the users database
-            final Context context = mContext.getApplicationContext();
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        UsersProvider.markRegistered(context, sender);
-                    } catch (SQLiteConstraintException e) {
-                        // this might happen during an online/offline switch
-                    }
-                }
-            }).start();
-        }
+        return values;
+    }
 
-        // fire notification only if message was actually inserted to database
-        // and the conversation is not open already
-        String paused = groupInfo != null ? groupInfo.getContent().getJid() : sender;
-        if (notify && msgUri != null) {
-            if (!MessagingNotification.isPaused(paused)) {
-                // update notifications (delayed)
-                MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
-            }
-            else {
-                // play in-conversation sound
-                MediaStorage.playNotificationSound(mContext.getApplicationContext(), R.raw.sound_incoming);
-            }
-        }
+    /** Starts media downloads for a stored incoming message. */
+    private void autodownloadIncoming(CompositeMessage msg, Uri msgUri) {
+        final String sender = msg.getSender(true);
 
         // check if we need to autodownload
         @SuppressWarnings("unchecked")
@@ -336,7 +432,7 @@ public class MessagesController {
 
         for (Class<AttachmentComponent> klass : tryComponents) {
             AttachmentComponent att = msg.getComponent(klass);
-            if (att != null && att.getFetchUrl() != null &&
+            if (msgUri != null && att != null && att.getFetchUrl() != null &&
                     Preferences.canAutodownloadMedia(mContext, att.getLength())) {
                 long databaseId = ContentUris.parseId(msgUri);
                 DownloadService.start(mContext, databaseId, sender,
@@ -348,8 +444,6 @@ public class MessagesController {
                 break;
             }
         }
-
-        return msgUri;
     }
 
 }
@@ -23,6 +23,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -34,6 +35,9 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,6 +45,7 @@ import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -55,9 +60,12 @@ import android.support.annotation.NonNull;
 import info.guardianproject.netcipher.client.TlsOnlySocketFactory;
 
 import org.kontalk.Log;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
+import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressOutputStreamEntity;
 
@@ -74,13 +82,26 @@ public class ClientHTTPConnection {
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
     /** Minimum delay for progress notification updates in milliseconds. */
     private static final int PROGRESS_PUBLISH_DELAY = 1000;
+    /** Maximum consecutive attempts to resume a dropped download. */
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    /** Cache subdirectory for the state of partial downloads. */
+    private static final String DOWNLOAD_STATE_DIR = "downloads";
+
+    /** Maximum number of cached TLS sessions per socket factory. */
+    private static final int SSL_SESSION_CACHE_SIZE = 20;
+    /** TLS session timeout in seconds. */
+    private static final int SSL_SESSION_TIMEOUT = 60 * 60;
+
+    /** Cached socket factories. */
+    private static final Map<SocketFactoryKey, SSLSocketFactory> sSocketFactories = new HashMap<>();
 
     private final Context mContext;
 
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
 
-    private HttpURLConnection currentRequest;
+    private volatile HttpURLConnection currentRequest;
+    private volatile boolean mAborted;
     private final static int CONNECT_TIMEOUT = 15000;
     private final static int READ_TIMEOUT = 40000;
 
@@ -95,6 +116,7 @@ public class ClientHTTPConnection {
     }
 
     public void abort() {
+        mAborted = true;
         try {
             currentRequest.disconnect();
         }
@@ -143,6 +165,12 @@ public class ClientHTTPConnection {
         }
     }
 
+    /**
+     * Returns a socket factory for the given client certificate and trust
+     * policy. Factories are cached so that consecutive transfers can reuse
+     * pooled connections and resume TLS sessions instead of doing a full
+     * handshake every time.
+     */
     public static SSLSocketFactory setupSSLSocketFactory(Context context,
                 PrivateKey privateKey, X509Certificate certificate,
                 boolean acceptAnyCertificate)
@@ -150,6 +178,32 @@ public class ClientHTTPConnection {
                 IOException, KeyManagementException, UnrecoverableKeyException,
                 NoSuchProviderException {
 
+        SocketFactoryKey key = new SocketFactoryKey(privateKey != null ? certificate : null,
+            acceptAnyCertificate);
+        synchronized (sSocketFactories) {
+            SSLSocketFactory factory = sSocketFactories.get(key);
+            if (factory == null) {
+                factory = createSSLSocketFactory(context, privateKey, certificate, acceptAnyCertificate);
+                sSocketFactories.put(key, factory);
+            }
+            return factory;
+        }
+    }
+
+    /** Discards cached socket factories, e.g. because the personal key changed. */
+    public static void invalidateSSLSocketFactories() {
+        synchronized (sSocketFactories) {
+            sSocketFactories.clear();
+        }
+    }
+
+    private static SSLSocketFactory createSSLSocketFactory(Context context,
+                PrivateKey privateKey, X509Certificate certificate,
+                boolean acceptAnyCertificate)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
+                IOException, KeyManagementException, UnrecoverableKeyException,
+                NoSuchProviderException {
+
         // in-memory keystore
         KeyManager[] km = null;
         if (privateKey != null && certificate != null) {
@@ -202,6 +256,12 @@ public class ClientHTTPConnection {
 
         SSLContext ctx = SSLContext.getInstance("TLSv1");
         ctx.init(km, tm, null);
+        // sessions are cached per context, allowing abbreviated handshakes
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SSL_SESSION_TIMEOUT);
+        }
         return new TlsOnlySocketFactory(ctx.getSocketFactory(), true);
     }
 
@@ -210,47 +270,136 @@ public class ClientHTTPConnection {
      * determining the file name from the Content-Disposition header.
      */
     public void downloadAutofilename(String url, @NonNull File defaultFile, Date timestamp, DownloadListener listener) throws IOException {
-        _download(url, defaultFile, timestamp, listener);
+        try {
+            _download(url, defaultFile, timestamp, null, null, listener);
+        }
+        catch (GeneralSecurityException e) {
+            // no decryption, this can't happen
+            throw new IOException(e);
+        }
     }
 
-    private void _download(String url, @NonNull File defaultFile, Date timestamp, DownloadListener listener) throws IOException {
-        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-        currentRequest = prepareURLDownload(url, acceptAnyCertificate);
-
-        int code = currentRequest.getResponseCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
-            // use a more suitable filename, taking only the extension
-            String contentType = currentRequest.getContentType();
-            File destination = null;
-            if (contentType != null) {
-                destination = CompositeMessage.getIncomingFile(contentType,
-                    timestamp != null ? timestamp : new Date());
+    /**
+     * Downloads and decrypts on the fly to a directory represented by a
+     * {@link File} object, determining the file name from the
+     * Content-Disposition header. Data is written to storage only once.
+     * The destination file is deleted if anything goes wrong.
+     * @param decrypt the coder used for decryption
+     * @param errors will be filled with non-fatal decryption errors
+     */
+    public void downloadAutofilename(String url, @NonNull File defaultFile, Date timestamp,
+            @NonNull Coder decrypt, List<DecryptException> errors, DownloadListener listener)
+            throws IOException, GeneralSecurityException {
+        _download(url, defaultFile, timestamp, decrypt, errors, listener);
+    }
+
+    private void _download(final String url, @NonNull File defaultFile, Date timestamp,
+            Coder decrypt, List<DecryptException> errors, DownloadListener listener)
+            throws IOException, GeneralSecurityException {
+        final boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
+        mAborted = false;
+
+        ResumableInputStream.Connector connector = new ResumableInputStream.Connector() {
+            @Override
+            public HttpURLConnection open() throws IOException {
+                if (mAborted)
+                    throw new IOException("download aborted");
+                currentRequest = prepareURLDownload(url, acceptAnyCertificate);
+                return currentRequest;
             }
+        };
 
-            // still having problems?
-            if (destination == null) {
-                String name = null;
-                String disp = currentRequest.getHeaderField("Content-Disposition");
-                if (disp != null)
-                    name = parseContentDisposition(disp);
+        // decrypted data can't be resumed from storage
+        File stateDir = new File(mContext.getCacheDir(), DOWNLOAD_STATE_DIR);
+        PartialDownload partial = decrypt == null ? PartialDownload.load(stateDir, url) : null;
 
-                if (name != null) {
-                    // combine default file directory with server-provided filename
-                    destination = new File(defaultFile.getParentFile(), name);
-                }
-                else {
-                    // fallback to default filename
-                    destination = defaultFile;
+        HttpURLConnection conn = connector.open();
+        long offset = 0;
+        if (partial != null) {
+            offset = partial.getOffset();
+            ResumableInputStream.setRange(conn, offset, partial.getETag());
+        }
+
+        int code = conn.getResponseCode();
+        if (partial != null) {
+            if (code == HttpURLConnection.HTTP_PARTIAL &&
+                    ResumableInputStream.isValidRange(conn, offset, partial.getLength(), partial.getETag())) {
+                Log.d(TAG, "resuming download from " + offset + " bytes");
+            }
+            else {
+                // server ignored the range or the entity changed, start over
+                // (a new destination file will be created)
+                partial.discard();
+                partial = null;
+                offset = 0;
+                if (code != HttpURLConnection.HTTP_OK) {
+                    conn.disconnect();
+                    conn = connector.open();
+                    code = conn.getResponseCode();
                 }
             }
+        }
+
+        // HTTP/1.1 200 OK or 206 Partial Content if resuming -- other codes should throw Exceptions
+        if (code == HttpURLConnection.HTTP_OK || partial != null) {
+            File destination;
+            long length;
+            if (partial != null) {
+                destination = partial.getDestination();
+                length = partial.getLength() >= 0 ? partial.getLength() :
+                    ResumableInputStream.getEntityLength(conn);
+            }
+            else {
+                destination = getDestination(conn, defaultFile, timestamp);
+                length = conn.getContentLength();
+                if (decrypt == null)
+                    partial = PartialDownload.create(stateDir, url, destination,
+                        conn.getHeaderField("ETag"), length);
+            }
+
+            // resume automatically if the connection drops
+            ResumableInputStream in = new ResumableInputStream(connector, conn,
+                offset, length, MAX_RESUME_ATTEMPTS);
 
             // we need to wrap the entity to monitor the download progress
-            ProgressOutputStreamEntity entity =
-                new ProgressOutputStreamEntity(currentRequest, url, destination, listener, PROGRESS_PUBLISH_DELAY);
-            FileOutputStream out = new FileOutputStream(destination);
-            entity.writeTo(out);
-            out.close();
+            ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(conn, in,
+                offset, length, url, destination, listener, PROGRESS_PUBLISH_DELAY);
+            FileOutputStream out = new FileOutputStream(destination, offset > 0);
+            if (decrypt != null) {
+                boolean success = false;
+                try {
+                    entity.decryptTo(out, decrypt, errors);
+                    success = true;
+                }
+                finally {
+                    out.close();
+                    // never leave partially decrypted data around
+                    if (!success)
+                        destination.delete();
+                }
+            }
+            else {
+                boolean success = false;
+                try {
+                    entity.writeTo(out);
+                    success = true;
+                }
+                finally {
+                    out.close();
+                    if (success) {
+                        if (partial != null)
+                            partial.delete();
+                    }
+                    else if (mAborted) {
+                        // aborted by the user, it won't be resumed
+                        if (partial != null)
+                            partial.discard();
+                        else
+                            destination.delete();
+                    }
+                    // partial data and its state are kept for other errors
+                }
+            }
             return;
         }
 
@@ -258,6 +407,71 @@ public class ClientHTTPConnection {
         listener.error(url, null, new IOException("invalid response: " + code));
     }
 
+    /**
+     * Chooses a suitable destination file for a download and creates it.
+     * Parallel downloads with the same timestamp and type will not write to
+     * the same file.
+     */
+    private File getDestination(HttpURLConnection conn, File defaultFile, Date timestamp)
+            throws IOException {
+        // use a more suitable filename, taking only the extension
+        String contentType = conn.getContentType();
+        File destination = null;
+        if (contentType != null) {
+            destination = CompositeMessage.getIncomingFile(contentType,
+                timestamp != null ? timestamp : new Date());
+        }
+
+        // still having problems?
+        if (destination == null) {
+            String name = null;
+            String disp = conn.getHeaderField("Content-Disposition");
+            if (disp != null)
+                name = parseContentDisposition(disp);
+
+            if (name != null) {
+                // combine default file directory with server-provided filename
+                destination = new File(defaultFile.getParentFile(), name);
+            }
+            else {
+                // fallback to default filename
+                destination = defaultFile;
+            }
+        }
+
+        return MediaStorage.createUniqueFile(destination);
+    }
+
+    /** Cache key for socket factories. */
+    private static final class SocketFactoryKey {
+        private final X509Certificate mCertificate;
+        private final boolean mAcceptAnyCertificate;
+
+        SocketFactoryKey(X509Certificate certificate, boolean acceptAnyCertificate) {
+            mCertificate = certificate;
+            mAcceptAnyCertificate = acceptAnyCertificate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof SocketFactoryKey))
+                return false;
+
+            SocketFactoryKey other = (SocketFactoryKey) o;
+            return mAcceptAnyCertificate == other.mAcceptAnyCertificate &&
+                (mCertificate != null ? mCertificate.equals(other.mCertificate) :
+                    other.mCertificate == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (mCertificate != null ? mCertificate.hashCode() : 0) +
+                (mAcceptAnyCertificate ? 1 : 0);
+        }
+    }
+
     /**
      * Parse the Content-Disposition HTTP Header. The format of the header
      * is defined here: http://www.w3.org/Protocols/rfc2616/rfc2616-sec19.html
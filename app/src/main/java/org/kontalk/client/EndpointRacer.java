@@ -0,0 +1,395 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Races TCP connections to several endpoints ("happy eyeballs", RFC 8305).
+ * Host names are resolved in parallel, then connection attempts are started
+ * one after another with a short delay, alternating IPv6 and IPv4 addresses
+ * of each endpoint; a new attempt is started right away when one fails.
+ * The first established connection wins and the others are closed.
+ * Connection latency is recorded per endpoint so that the fastest ones are
+ * tried first the next time.
+ */
+public class EndpointRacer {
+
+    /** Delay between connection attempts. */
+    public static final long DEFAULT_ATTEMPT_DELAY = 250;
+
+    /** Latency assumed for endpoints that were never tried. */
+    static final long UNKNOWN_LATENCY = 1000;
+    /** Weight of new samples in the latency moving average (percentage). */
+    private static final int LATENCY_SAMPLE_WEIGHT = 30;
+
+    /** Endpoint latencies in milliseconds, key is {@link #getKey}. */
+    private static final Map<String, Long> sLatencies = new HashMap<>();
+
+    /** The winning connection. */
+    public static final class Result {
+        public final EndpointServer server;
+        /** Host name used for the connection, e.g. for TLS. */
+        public final String host;
+        /** The connected socket. */
+        public final Socket socket;
+        /** Time taken to connect in milliseconds. */
+        public final long latency;
+
+        Result(EndpointServer server, String host, Socket socket, long latency) {
+            this.server = server;
+            this.host = host;
+            this.socket = socket;
+            this.latency = latency;
+        }
+    }
+
+    private final List<EndpointServer> mServers;
+    private final boolean mSecurePort;
+    private final int mConnectTimeout;
+    private final long mAttemptDelay;
+
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<>();
+    private final List<Socket> mSockets = new LinkedList<>();
+    private boolean mFinished;
+
+    /**
+     * @param servers candidate endpoints, in order of preference
+     * @param maxServers maximum number of endpoints to race (the fastest known will be picked)
+     * @param securePort true to connect to the direct SSL port
+     * @param connectTimeout timeout of a single connection attempt in milliseconds
+     * @param attemptDelay delay between connection attempts in milliseconds
+     */
+    public EndpointRacer(List<EndpointServer> servers, int maxServers, boolean securePort,
+            int connectTimeout, long attemptDelay) {
+        List<EndpointServer> list = new ArrayList<>(servers.size());
+        for (EndpointServer server : servers) {
+            // no host: SRV lookup needed, leave it to Smack
+            if (server.getHost() != null && !list.contains(server))
+                list.add(server);
+        }
+        sortByLatency(list);
+        mServers = list.size() > maxServers ? list.subList(0, maxServers) : list;
+        mSecurePort = securePort;
+        mConnectTimeout = connectTimeout;
+        mAttemptDelay = attemptDelay;
+    }
+
+    /** The endpoints that will be raced, in order of preference. */
+    public List<EndpointServer> getServers() {
+        return Collections.unmodifiableList(mServers);
+    }
+
+    /**
+     * Runs the race. This method blocks until a connection is established or
+     * all attempts have failed.
+     * @return the winning connection, or null if there were no endpoints to try
+     * @throws IOException the last error if all attempts failed
+     */
+    public Result race() throws IOException, InterruptedException {
+        if (mServers.isEmpty())
+            return null;
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            return race(executor);
+        }
+        finally {
+            synchronized (mSockets) {
+                mFinished = true;
+                // abort pending connections
+                for (Socket socket : mSockets)
+                    closeQuietly(socket);
+                mSockets.clear();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    private Result race(ExecutorService executor) throws IOException, InterruptedException {
+        for (int i = 0; i < mServers.size(); i++)
+            executor.execute(new Resolver(i));
+
+        PriorityQueue<Attempt> pending = new PriorityQueue<>(8, new Comparator<Attempt>() {
+            @Override
+            public int compare(Attempt lhs, Attempt rhs) {
+                if (lhs.serverIndex != rhs.serverIndex)
+                    return lhs.serverIndex < rhs.serverIndex ? -1 : 1;
+                return lhs.addressIndex < rhs.addressIndex ? -1 :
+                    (lhs.addressIndex == rhs.addressIndex ? 0 : 1);
+            }
+        });
+
+        int resolving = mServers.size();
+        int running = 0;
+        long nextAttempt = 0;
+        IOException lastError = null;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (!pending.isEmpty() && (running == 0 || now >= nextAttempt)) {
+                Attempt attempt = pending.poll();
+                executor.execute(attempt);
+                running++;
+                nextAttempt = now + mAttemptDelay;
+                continue;
+            }
+
+            if (running == 0 && resolving == 0) {
+                // nothing left to try
+                throw lastError != null ? lastError : new IOException("no addresses to connect to");
+            }
+
+            Object event = (running > 0 && !pending.isEmpty()) ?
+                mEvents.poll(Math.max(nextAttempt - now, 0), TimeUnit.MILLISECONDS) :
+                mEvents.take();
+            if (event == null) {
+                // time to start another attempt
+                continue;
+            }
+
+            if (event instanceof Resolution) {
+                Resolution resolution = (Resolution) event;
+                resolving--;
+                if (resolution.error != null) {
+                    recordFailure(mServers.get(resolution.serverIndex));
+                    lastError = resolution.error;
+                }
+                else {
+                    List<InetAddress> addresses = interleave(resolution.addresses);
+                    for (int i = 0; i < addresses.size(); i++)
+                        pending.add(new Attempt(resolution.serverIndex, i, addresses.get(i)));
+                }
+            }
+            else {
+                Attempt attempt = (Attempt) event;
+                running--;
+                EndpointServer server = mServers.get(attempt.serverIndex);
+                if (attempt.socket != null) {
+                    synchronized (mSockets) {
+                        // winner is excluded from cleanup
+                        mSockets.remove(attempt.socket);
+                    }
+                    recordLatency(server, attempt.latency);
+                    return new Result(server, server.getHost(), attempt.socket, attempt.latency);
+                }
+                lastError = attempt.error;
+                // try the next one right away
+                nextAttempt = now;
+                // consider the endpoint failed if this was its last address
+                if (!hasAttempts(pending, attempt.serverIndex))
+                    recordFailure(server);
+            }
+        }
+    }
+
+    private static boolean hasAttempts(PriorityQueue<Attempt> pending, int serverIndex) {
+        for (Attempt attempt : pending) {
+            if (attempt.serverIndex == serverIndex)
+                return true;
+        }
+        return false;
+    }
+
+    private int getPort(EndpointServer server) {
+        return mSecurePort ? server.getSecurePort() : server.getPort();
+    }
+
+    /** Alternates address families, starting with IPv6. */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address)
+                v6.add(address);
+            else
+                v4.add(address);
+        }
+
+        List<InetAddress> out = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (i < v6.size())
+                out.add(v6.get(i));
+            if (i < v4.size())
+                out.add(v4.get(i));
+        }
+        return out;
+    }
+
+    private final class Resolver implements Runnable {
+        private final int mServerIndex;
+
+        Resolver(int serverIndex) {
+            mServerIndex = serverIndex;
+        }
+
+        @Override
+        public void run() {
+            String host = mServers.get(mServerIndex).getHost();
+            try {
+                mEvents.add(new Resolution(mServerIndex, InetAddress.getAllByName(host), null));
+            }
+            catch (IOException e) {
+                mEvents.add(new Resolution(mServerIndex, null, e));
+            }
+        }
+    }
+
+    private static final class Resolution {
+        final int serverIndex;
+        final InetAddress[] addresses;
+        final IOException error;
+
+        Resolution(int serverIndex, InetAddress[] addresses, IOException error) {
+            this.serverIndex = serverIndex;
+            this.addresses = addresses;
+            this.error = error;
+        }
+    }
+
+    private final class Attempt implements Runnable {
+        final int serverIndex;
+        final int addressIndex;
+        final InetAddress address;
+
+        Socket socket;
+        long latency;
+        IOException error;
+
+        Attempt(int serverIndex, int addressIndex, InetAddress address) {
+            this.serverIndex = serverIndex;
+            this.addressIndex = addressIndex;
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            Socket s = new Socket();
+            synchronized (mSockets) {
+                if (mFinished)
+                    return;
+                mSockets.add(s);
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                s.connect(new InetSocketAddress(address, getPort(mServers.get(serverIndex))), mConnectTimeout);
+                latency = System.currentTimeMillis() - start;
+                synchronized (mSockets) {
+                    if (mFinished) {
+                        // race is over
+                        closeQuietly(s);
+                        return;
+                    }
+                    socket = s;
+                }
+            }
+            catch (IOException e) {
+                closeQuietly(s);
+                synchronized (mSockets) {
+                    mSockets.remove(s);
+                }
+                error = e;
+            }
+            mEvents.add(this);
+        }
+    }
+
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    private static String getKey(EndpointServer server) {
+        return server.toString().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the recorded latency of an endpoint.
+     * @return the latency in milliseconds, or -1 if the endpoint was never tried
+     */
+    public static long getLatency(EndpointServer server) {
+        synchronized (sLatencies) {
+            Long latency = sLatencies.get(getKey(server));
+            return latency != null ? latency : -1;
+        }
+    }
+
+    static void recordLatency(EndpointServer server, long latency) {
+        String key = getKey(server);
+        synchronized (sLatencies) {
+            Long previous = sLatencies.get(key);
+            sLatencies.put(key, previous != null ?
+                (previous * (100 - LATENCY_SAMPLE_WEIGHT) + latency * LATENCY_SAMPLE_WEIGHT) / 100 :
+                latency);
+        }
+    }
+
+    /** Failures count as a connection that took the whole timeout. */
+    private void recordFailure(EndpointServer server) {
+        recordLatency(server, mConnectTimeout);
+    }
+
+    /** Clears all recorded latencies. */
+    public static void clearLatencies() {
+        synchronized (sLatencies) {
+            sLatencies.clear();
+        }
+    }
+
+    /** Sorts endpoints by recorded latency, fastest first. The sort is stable. */
+    public static void sortByLatency(List<EndpointServer> servers) {
+        final Map<EndpointServer, Long> latencies = new HashMap<>(servers.size());
+        for (EndpointServer server : servers) {
+            long latency = getLatency(server);
+            latencies.put(server, latency >= 0 ? latency : UNKNOWN_LATENCY);
+        }
+        Collections.sort(servers, new Comparator<EndpointServer>() {
+            @Override
+            public int compare(EndpointServer lhs, EndpointServer rhs) {
+                long l = latencies.get(lhs);
+                long r = latencies.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+    }
+
+}
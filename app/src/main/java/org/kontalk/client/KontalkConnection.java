@@ -18,8 +18,6 @@
 
 package org.kontalk.client;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
@@ -29,6 +27,7 @@ import java.security.cert.X509Certificate;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -60,6 +59,19 @@ public class KontalkConnection extends XMPPTCPConnection {
     /** Packet reply timeout. */
     public static final int DEFAULT_PACKET_TIMEOUT = 15000;
 
+    /** Socket connection timeout. */
+    public static final int CONNECT_TIMEOUT = 30000;
+
+    /** Lifetime of cached TLS sessions in seconds. */
+    private static final int TLS_SESSION_TIMEOUT = 12 * 60 * 60;
+
+    /** Last SSL context created and its parameters. */
+    private static SSLContext sSSLContext;
+    private static SSLContextKey sSSLContextKey;
+
+    /** Preferred stream resumption time in seconds. */
+    private static final int STREAM_RESUMPTION_TIME = 300;
+
     protected EndpointServer mServer;
 
     public KontalkConnection(String resource, EndpointServer server, boolean secure,
@@ -78,9 +90,10 @@ public class KontalkConnection extends XMPPTCPConnection {
 
         mServer = server;
 
-        // enable SM without resumption
+        // enable SM with resumption
         setUseStreamManagement(true);
-        setUseStreamManagementResumption(false);
+        setUseStreamManagementResumption(true);
+        setPreferredResumptionTime(STREAM_RESUMPTION_TIME);
         // set custom ack predicate
         addRequestAckPredicate(AckPredicate.INSTANCE);
         // set custom packet reply timeout
@@ -93,22 +106,12 @@ public class KontalkConnection extends XMPPTCPConnection {
         XMPPTCPConnectionConfiguration.Builder builder =
             XMPPTCPConnectionConfiguration.builder();
 
-        String host = server.getHost();
-        InetAddress inetAddress = null;
-        if (host != null) {
-            try {
-                inetAddress = InetAddress.getByName(host);
-            }
-            catch (UnknownHostException e) {
-                Log.w(TAG, "unable to resolve host " + host + ", will try again during connect", e);
-            }
-        }
-
         builder
             // connection parameters
-            .setHostAddress(inetAddress)
-            // try a last time through Smack
-            .setHost(inetAddress != null ? null : host)
+            // host will be resolved by Smack only if a connected socket is
+            // not provided (see XMPPConnectionHelper)
+            .setHost(server.getHost())
+            .setConnectTimeout(CONNECT_TIMEOUT)
             .setPort(secure ? server.getSecurePort() : server.getPort())
             .setXmppDomain(server.getNetwork())
             .setResource(resource)
@@ -141,21 +144,9 @@ public class KontalkConnection extends XMPPTCPConnection {
             // wait for secure connection stuff
             SecureConnectionManager.waitForInit();
 
-            SSLContext ctx = SSLContext.getInstance("TLS");
+            SSLContext ctx = getSSLContext(privateKey, bridgeCert, acceptAnyCertificate, trustStore);
 
-            KeyManager[] km = null;
             if (privateKey != null && bridgeCert != null) {
-                // in-memory keystore
-                KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keystore.load(null, null);
-                keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
-
-                // key managers
-                KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                kmFactory.init(keystore, null);
-
-                km = kmFactory.getKeyManagers();
-
                 // disable PLAIN mechanism if not upgrading from legacy
                 if (!LegacyAuthentication.isUpgrading()) {
                     // blacklist PLAIN mechanism
@@ -163,43 +154,9 @@ public class KontalkConnection extends XMPPTCPConnection {
                 }
             }
 
-            // trust managers
-            TrustManager[] tm;
-
-            if (acceptAnyCertificate) {
-                tm = new TrustManager[] {
-                    new X509TrustManager() {
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-                    }
-                };
+            if (acceptAnyCertificate)
                 builder.setHostnameVerifier(new AllowAllHostnameVerifier());
-            }
 
-            else {
-                // builtin keystore
-                TrustManagerFactory tmFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                tmFactory.init(trustStore);
-
-                tm = tmFactory.getTrustManagers();
-            }
-
-            ctx.init(km, tm, null);
             builder.setCustomSSLContext(ctx);
             if (direct)
                 builder.setSocketFactory(ctx.getSocketFactory());
@@ -211,6 +168,114 @@ public class KontalkConnection extends XMPPTCPConnection {
         }
     }
 
+    /**
+     * Returns a SSL context for the given parameters. The last created
+     * context is reused if parameters didn't change, so that TLS sessions
+     * (stored in the context) can be resumed by later connections.
+     */
+    private static synchronized SSLContext getSSLContext(PrivateKey privateKey, X509Certificate bridgeCert,
+            boolean acceptAnyCertificate, KeyStore trustStore) throws Exception {
+
+        SSLContextKey key = new SSLContextKey(privateKey, bridgeCert, acceptAnyCertificate, trustStore);
+        if (sSSLContext != null && key.equals(sSSLContextKey))
+            return sSSLContext;
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+
+        KeyManager[] km = null;
+        if (privateKey != null && bridgeCert != null) {
+            // in-memory keystore
+            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keystore.load(null, null);
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
+
+            // key managers
+            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmFactory.init(keystore, null);
+
+            km = kmFactory.getKeyManagers();
+        }
+
+        // trust managers
+        TrustManager[] tm;
+
+        if (acceptAnyCertificate) {
+            tm = new TrustManager[] {
+                new X509TrustManager() {
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    @SuppressLint("TrustAllX509TrustManager")
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+
+                    @SuppressLint("TrustAllX509TrustManager")
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+                }
+            };
+        }
+
+        else {
+            // builtin keystore
+            TrustManagerFactory tmFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmFactory.init(trustStore);
+
+            tm = tmFactory.getTrustManagers();
+        }
+
+        ctx.init(km, tm, null);
+
+        // sessions are resumed only with the same endpoint (host and port)
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        if (sessions != null)
+            sessions.setSessionTimeout(TLS_SESSION_TIMEOUT);
+
+        sSSLContext = ctx;
+        sSSLContextKey = key;
+        return ctx;
+    }
+
+    /** Parameters a SSL context was created with. */
+    private static final class SSLContextKey {
+        private final PrivateKey mPrivateKey;
+        private final X509Certificate mBridgeCert;
+        private final boolean mAcceptAnyCertificate;
+        private final KeyStore mTrustStore;
+
+        SSLContextKey(PrivateKey privateKey, X509Certificate bridgeCert,
+                boolean acceptAnyCertificate, KeyStore trustStore) {
+            mPrivateKey = privateKey;
+            mBridgeCert = bridgeCert;
+            mAcceptAnyCertificate = acceptAnyCertificate;
+            mTrustStore = trustStore;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SSLContextKey))
+                return false;
+            SSLContextKey other = (SSLContextKey) o;
+            return mAcceptAnyCertificate == other.mAcceptAnyCertificate &&
+                // trust store is a singleton
+                mTrustStore == other.mTrustStore &&
+                (mPrivateKey == null ? other.mPrivateKey == null : mPrivateKey.equals(other.mPrivateKey)) &&
+                (mBridgeCert == null ? other.mBridgeCert == null : mBridgeCert.equals(other.mBridgeCert));
+        }
+
+        @Override
+        public int hashCode() {
+            return mBridgeCert != null ? mBridgeCert.hashCode() : 0;
+        }
+    }
+
     @Override
     protected void processStanza(Stanza packet) throws InterruptedException {
         boolean isMessage = packet instanceof Message;
@@ -239,6 +304,17 @@ public class KontalkConnection extends XMPPTCPConnection {
         return mServer;
     }
 
+    /**
+     * Returns true if the current stream could be resumed after a
+     * disconnection, that is if it was not closed cleanly and the resumption
+     * time has not expired yet. Stream state, unacknowledged stanzas included,
+     * is kept by this instance: call {@link #connect()} and {@link #login()}
+     * on it to resume the stream.
+     */
+    public boolean isStreamResumable() {
+        return packetWriter != null && isSmResumptionPossible();
+    }
+
     /**
      * A custom ack predicate that allows ack after a message with a delivery
      * receipt, a receipt request or a body, or after 5 stanzas.
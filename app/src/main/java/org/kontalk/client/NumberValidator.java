@@ -71,7 +71,7 @@ import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.XMPPConnectionHelper;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
 import org.kontalk.service.msgcenter.PGPKeyPairRingProvider;
-import org.kontalk.util.MessageUtils;
+import org.kontalk.util.XMPPUtils;
 
 
 /**
@@ -433,7 +433,7 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
                 // generate keyring immediately
                 // needed for connection
                 if (mKey != null) {
-                    String userId = MessageUtils.sha1(mPhone);
+                    String userId = XMPPUtils.createLocalpart(mPhone);
                     mKeyRing = mKey.storeNetwork(userId, mConnector.getNetwork(),
                         mName, mPassphrase);
                 }
@@ -858,17 +858,31 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
     public static String fixNumber(Context context, String number, String myNumber, int lastResortCc)
             throws NumberParseException {
 
+        return fixNumber(number, myNumber, getSimRegionCode(context), lastResortCc);
+    }
+
+    static String fixNumber(String number, String myNumber, String myRegionCode, int lastResortCc)
+        throws NumberParseException {
+
+        return fixNumber(number, getRegionCode(myNumber, myRegionCode), lastResortCc);
+    }
+
+    /** Returns the region code of the SIM card, if any. */
+    static String getSimRegionCode(Context context) {
         final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
         String myRegionCode = tm.getSimCountryIso();
         if (myRegionCode != null)
             myRegionCode = myRegionCode.toUpperCase(Locale.US);
-
-        return fixNumber(number, myNumber, myRegionCode, lastResortCc);
+        return myRegionCode;
     }
 
-    static String fixNumber(String number, String myNumber, String myRegionCode, int lastResortCc)
-        throws NumberParseException {
-
+    /**
+     * Returns the region code to be used for parsing numbers without a
+     * country code.
+     * @param myNumber our own number, its region code will be preferred
+     * @param myRegionCode fallback region code (e.g. from the SIM card)
+     */
+    static String getRegionCode(String myNumber, String myRegionCode) {
         PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         try {
             if (myNumber != null) {
@@ -880,16 +894,26 @@ public class NumberValidator implements Runnable, ConnectionHelperListener {
         catch (NumberParseException e) {
             // ehm :)
         }
+        return myRegionCode;
+    }
 
+    /**
+     * Converts a phone number into E.164 format.
+     * @param regionCode region code as returned by {@link #getRegionCode}
+     */
+    static String fixNumber(String number, String regionCode, int lastResortCc)
+        throws NumberParseException {
+
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumber parsedNum;
         try {
-            parsedNum = util.parse(number, myRegionCode);
+            parsedNum = util.parse(number, regionCode);
         }
         catch (NumberParseException e) {
             // parse failed with default region code, try last resort
             if (lastResortCc > 0) {
-                myRegionCode = util.getRegionCodeForCountryCode(lastResortCc);
-                parsedNum = util.parse(number, myRegionCode);
+                regionCode = util.getRegionCodeForCountryCode(lastResortCc);
+                parsedNum = util.parse(number, regionCode);
             }
             else
                 throw e;
@@ -0,0 +1,170 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Persisted state of a partially downloaded file, used to resume the
+ * download later with a range request. State is stored in a small file
+ * named after the download URL; the received data is the destination file
+ * itself.
+ */
+class PartialDownload {
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_DESTINATION = "destination";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LENGTH = "length";
+
+    private final File mStateFile;
+    private final String mUrl;
+    private final File mDestination;
+    private final String mETag;
+    private final long mLength;
+
+    private PartialDownload(File stateFile, String url, File destination, String etag, long length) {
+        mStateFile = stateFile;
+        mUrl = url;
+        mDestination = destination;
+        mETag = etag;
+        mLength = length;
+    }
+
+    public File getDestination() {
+        return mDestination;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /** Returns the number of bytes already received. */
+    public long getOffset() {
+        return mDestination.length();
+    }
+
+    /** Deletes the download state, keeping the received data. */
+    public void delete() {
+        mStateFile.delete();
+    }
+
+    /** Deletes the download state and the received data. */
+    public void discard() {
+        mStateFile.delete();
+        mDestination.delete();
+    }
+
+    private void save() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(KEY_URL, mUrl);
+        props.setProperty(KEY_DESTINATION, mDestination.getAbsolutePath());
+        if (mETag != null)
+            props.setProperty(KEY_ETAG, mETag);
+        props.setProperty(KEY_LENGTH, String.valueOf(mLength));
+
+        OutputStream out = new FileOutputStream(mStateFile);
+        try {
+            props.store(out, null);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static File getStateFile(File stateDir, String url) {
+        return new File(stateDir, MessageUtils.sha1(url));
+    }
+
+    /**
+     * Creates and stores the state of a new download.
+     * @return the download state, or null if the download can't be resumed
+     * because there is nothing to validate the entity against
+     */
+    public static PartialDownload create(File stateDir, String url,
+            File destination, String etag, long length) {
+        if (etag == null && length < 0)
+            return null;
+
+        if (!stateDir.isDirectory() && !stateDir.mkdirs())
+            return null;
+
+        PartialDownload partial = new PartialDownload(getStateFile(stateDir, url),
+            url, destination, etag, length);
+        try {
+            partial.save();
+            return partial;
+        }
+        catch (IOException e) {
+            partial.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Loads the state of a previous download of the given URL.
+     * @return the download state, or null if there is no valid data to resume from
+     */
+    public static PartialDownload load(File stateDir, String url) {
+        File stateFile = getStateFile(stateDir, url);
+        if (!stateFile.isFile())
+            return null;
+
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                props.load(in);
+            }
+            finally {
+                in.close();
+            }
+
+            String destination = props.getProperty(KEY_DESTINATION);
+            long length = Long.parseLong(props.getProperty(KEY_LENGTH, "-1"));
+            if (url.equals(props.getProperty(KEY_URL)) && destination != null) {
+                PartialDownload partial = new PartialDownload(stateFile, url,
+                    new File(destination), props.getProperty(KEY_ETAG), length);
+                long offset = partial.getOffset();
+                if (offset > 0 && (length < 0 || offset < length))
+                    return partial;
+            }
+        }
+        catch (IOException | NumberFormatException ignored) {
+        }
+
+        // stale or corrupted state
+        stateFile.delete();
+        return null;
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+
+import android.content.Context;
+
+import org.kontalk.authenticator.Authenticator;
+import org.kontalk.util.XMPPUtils;
+
+
+/**
+ * Normalizes phone numbers in bulk. The region used for numbers without a
+ * country code is resolved once, and results (E.164 number and its hash)
+ * are memoized and can be persisted to a file to be reused later.
+ * This class is thread-safe.
+ */
+public class PhoneNumberNormalizer {
+
+    /** Persisted cache file format version. */
+    private static final int CACHE_VERSION = 2;
+    /** Maximum number of entries to persist. */
+    private static final int MAX_PERSISTED_ENTRIES = 20000;
+    /** Below this amount of numbers, normalization is done on the caller thread. */
+    private static final int MIN_PARALLEL_NUMBERS = 200;
+
+    /** A normalized number. */
+    public static final class Result {
+        /** Phone number in E.164 format. */
+        public final String number;
+        /** Hash of the normalized number, used as JID local part. */
+        public final String hash;
+
+        Result(String number, String hash) {
+            this.number = number;
+            this.hash = hash;
+        }
+    }
+
+    /** Marks numbers that couldn't be parsed. */
+    private static final Result INVALID = new Result(null, null);
+
+    private final String mRegionCode;
+    private final int mLastResortCc;
+    private final Map<String, Result> mCache = new ConcurrentHashMap<>();
+    /** Numbers requested since creation. */
+    private final Set<String> mUsed = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates a normalizer.
+     * @param myNumber our own number, used for its region code
+     * @param simRegionCode region code to use if our own number is not available
+     * @param lastResortCc country code to try if parsing with the region code fails
+     */
+    public PhoneNumberNormalizer(String myNumber, String simRegionCode, int lastResortCc) {
+        mRegionCode = NumberValidator.getRegionCode(myNumber, simRegionCode);
+        mLastResortCc = lastResortCc;
+    }
+
+    /** Creates a normalizer for our own account and SIM card. */
+    public static PhoneNumberNormalizer create(Context context) {
+        return new PhoneNumberNormalizer(Authenticator.getDefaultAccountName(context),
+            NumberValidator.getSimRegionCode(context), 0);
+    }
+
+    /**
+     * Normalizes a phone number.
+     * @return the normalized number and its hash
+     * @throws NumberParseException if the number could not be parsed
+     */
+    public Result normalize(String number) throws NumberParseException {
+        mUsed.add(number);
+
+        Result result = mCache.get(number);
+        if (result == null) {
+            try {
+                String e164 = NumberValidator.fixNumber(number, mRegionCode, mLastResortCc);
+                result = new Result(e164, XMPPUtils.createLocalpart(e164));
+            }
+            catch (NumberParseException e) {
+                mCache.put(number, INVALID);
+                throw e;
+            }
+            mCache.put(number, result);
+        }
+        else if (result == INVALID) {
+            throw new NumberParseException(NumberParseException.ErrorType.NOT_A_NUMBER,
+                "number previously failed to parse");
+        }
+
+        return result;
+    }
+
+    /**
+     * Normalizes many phone numbers, in parallel if there are enough of them.
+     * @return normalized numbers; numbers that couldn't be parsed are not included
+     */
+    public Map<String, Result> normalizeAll(Collection<String> numbers) {
+        final List<String> list = new ArrayList<>(new HashSet<>(numbers));
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (list.size() < MIN_PARALLEL_NUMBERS || threads < 2) {
+            return normalizeRange(list, 0, list.size());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<String, Result>>> futures = new ArrayList<>(threads);
+            int chunk = (list.size() + threads - 1) / threads;
+            for (int i = 0; i < list.size(); i += chunk) {
+                final int start = i;
+                final int end = Math.min(i + chunk, list.size());
+                futures.add(executor.submit(new Callable<Map<String, Result>>() {
+                    @Override
+                    public Map<String, Result> call() {
+                        return normalizeRange(list, start, end);
+                    }
+                }));
+            }
+
+            Map<String, Result> results = new HashMap<>(list.size());
+            for (Future<Map<String, Result>> future : futures)
+                results.putAll(future.get());
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // finish the job on this thread
+            return normalizeRange(list, 0, list.size());
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    Map<String, Result> normalizeRange(List<String> numbers, int start, int end) {
+        Map<String, Result> results = new HashMap<>(end - start);
+        for (int i = start; i < end; i++) {
+            String number = numbers.get(i);
+            try {
+                results.put(number, normalize(number));
+            }
+            catch (NumberParseException ignored) {
+            }
+        }
+        return results;
+    }
+
+    /** Number of memoized results. */
+    public int getCacheSize() {
+        return mCache.size();
+    }
+
+    /** Used to check whether a persisted cache is still valid. */
+    private String getSignature() {
+        return mRegionCode + "|" + mLastResortCc;
+    }
+
+    /**
+     * Loads memoized results from a file. Nothing is loaded if the file was
+     * written with a different region context.
+     */
+    public void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != CACHE_VERSION || !getSignature().equals(in.readUTF()))
+                return;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String number = in.readUTF();
+                String e164 = in.readUTF();
+                String hash = in.readUTF();
+                mCache.put(number, new Result(e164, hash));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves memoized results to a file. If there are too many, only the
+     * numbers requested since creation are saved. Invalid numbers are never
+     * saved, since a newer version of the parsing library might accept them.
+     */
+    public void save(File file) throws IOException {
+        Map<String, Result> entries = new HashMap<>(mCache);
+        entries.values().removeAll(Collections.singleton(INVALID));
+        if (entries.size() > MAX_PERSISTED_ENTRIES)
+            entries.keySet().retainAll(mUsed);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(getSignature());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Result> e : entries.entrySet()) {
+                Result result = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(result.number);
+                out.writeUTF(result.hash);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+}
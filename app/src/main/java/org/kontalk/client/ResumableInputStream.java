@@ -0,0 +1,204 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * An input stream over the body of a HTTP download which transparently
+ * resumes the transfer with a range request if the connection drops.
+ * Resuming requires the server to support range requests; the entity is
+ * validated through its ETag and length so that a resource changed on the
+ * server is never stitched together with the data received so far.
+ */
+class ResumableInputStream extends InputStream {
+
+    /** Regex used to parse Content-Range headers. */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+        .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    /** Opens a new connection to the resource being downloaded. */
+    interface Connector {
+        HttpURLConnection open() throws IOException;
+    }
+
+    private final Connector mConnector;
+    private final String mETag;
+    private final long mLength;
+    private final int mMaxRetries;
+
+    private HttpURLConnection mConnection;
+    private InputStream mIn;
+    private long mPosition;
+    private int mRetries;
+
+    /**
+     * Creates a new stream over an established download.
+     * @param conn the connection, which must have already returned a successful response
+     * @param offset the offset in the entity the response body starts at
+     * @param length the total length of the entity, -1 if unknown
+     * @param maxRetries maximum consecutive resume attempts without receiving any data
+     */
+    ResumableInputStream(Connector connector, HttpURLConnection conn,
+            long offset, long length, int maxRetries) throws IOException {
+        mConnector = connector;
+        mConnection = conn;
+        mETag = conn.getHeaderField("ETag");
+        mLength = length;
+        mMaxRetries = maxRetries;
+        mPosition = offset;
+        mIn = conn.getInputStream();
+    }
+
+    /** Returns the number of bytes of the entity received so far. */
+    long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int l = read(b, 0, 1);
+        return l > 0 ? (b[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            try {
+                int l = mIn.read(b, off, len);
+                if (l < 0 && mLength >= 0 && mPosition < mLength)
+                    throw new EOFException("connection closed at " + mPosition + " of " + mLength);
+
+                if (l > 0) {
+                    mPosition += l;
+                    mRetries = 0;
+                }
+                return l;
+            }
+            catch (IOException e) {
+                if (!canResume() || ++mRetries > mMaxRetries)
+                    throw e;
+                resume(e);
+            }
+        }
+    }
+
+    private boolean canResume() {
+        // we need something to validate the entity against
+        return mETag != null || mLength >= 0;
+    }
+
+    private void resume(IOException cause) throws IOException {
+        // the connection is broken anyway
+        close();
+        mConnection.disconnect();
+
+        mConnection = mConnector.open();
+        setRange(mConnection, mPosition, mETag);
+        int code = mConnection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_PARTIAL ||
+                !isValidRange(mConnection, mPosition, mLength, mETag)) {
+            mConnection.disconnect();
+            throw new IOException("unable to resume download (" + code + ")", cause);
+        }
+
+        mIn = mConnection.getInputStream();
+    }
+
+    /**
+     * Closes the response body. The connection is not disconnected, so it
+     * can be reused for the next request if the body was fully read.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mIn.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Requests a range of the entity starting at the given offset.
+     * @param etag if not null, the whole entity will be returned if it changed
+     */
+    static void setRange(HttpURLConnection conn, long offset, String etag) {
+        conn.setRequestProperty("Range", "bytes=" + offset + "-");
+        if (etag != null)
+            conn.setRequestProperty("If-Range", etag);
+    }
+
+    /**
+     * Returns true if a partial content response matches the requested range
+     * and the entity we are expecting.
+     * @param length expected total length of the entity, -1 if unknown
+     * @param etag expected ETag, null if unknown
+     */
+    static boolean isValidRange(HttpURLConnection conn, long offset, long length, String etag) {
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null)
+            return false;
+
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(range.trim());
+        if (!m.matches())
+            return false;
+
+        try {
+            if (Long.parseLong(m.group(1)) != offset)
+                return false;
+
+            String total = m.group(3);
+            if (length >= 0 && !"*".equals(total) && Long.parseLong(total) != length)
+                return false;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+
+        String responseETag = conn.getHeaderField("ETag");
+        return etag == null || responseETag == null || etag.equals(responseETag);
+    }
+
+    /**
+     * Returns the total length of the entity from a range response.
+     * @return the length or -1 if unknown
+     */
+    static long getEntityLength(HttpURLConnection conn) {
+        String range = conn.getHeaderField("Content-Range");
+        if (range != null) {
+            Matcher m = CONTENT_RANGE_PATTERN.matcher(range.trim());
+            if (m.matches() && !"*".equals(m.group(3))) {
+                try {
+                    return Long.parseLong(m.group(3));
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return -1;
+    }
+
+}
@@ -67,10 +67,16 @@ public class ServerList extends ArrayList<EndpointServer> {
             mUsed = new LinkedList<>();
         }
 
+        /**
+         * Returns the fastest server according to {@link EndpointRacer}, or a
+         * random one if none of them is known to be fast.
+         */
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s = fastest();
+                if (s == null)
+                    s = mList.random();
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
@@ -79,6 +85,19 @@ public class ServerList extends ArrayList<EndpointServer> {
             return null;
         }
 
+        private EndpointServer fastest() {
+            EndpointServer fastest = null;
+            long fastestLatency = EndpointRacer.UNKNOWN_LATENCY;
+            for (EndpointServer server : mList) {
+                long latency = EndpointRacer.getLatency(server);
+                if (latency >= 0 && latency < fastestLatency) {
+                    fastest = server;
+                    fastestLatency = latency;
+                }
+            }
+            return fastest;
+        }
+
         @Override
         public void reset() {
             mList.addAll(mUsed);
@@ -163,6 +163,20 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private boolean disconnectedButResumeable = false;
 
+    /**
+     * A socket already connected to the server to be used by the next
+     * connection attempt, and the host it is connected to.
+     */
+    private Socket connectedSocket;
+    private String connectedSocketHost;
+
+    /**
+     * Duration of the last TLS handshake in milliseconds and whether it
+     * resumed a previous session.
+     */
+    private long tlsHandshakeTime = -1;
+    private boolean tlsSessionResumed;
+
     private SSLSocket secureSocket;
 
     /**
@@ -208,6 +222,18 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private String smSessionId;
 
+    /**
+     * The host name the resumable stream was established on.
+     */
+    private String smResumptionHost;
+
+    /**
+     * The address and port to resume the stream on: the location advertised by the server in
+     * the 'enabled' element or the host the stream was established on.
+     */
+    private String smResumptionAddress;
+    private int smResumptionPort;
+
     private final SynchronizationPoint<FailedNonzaException> smResumedSyncPoint = new SynchronizationPoint<>(
                     this, "stream resumed element");
 
@@ -555,6 +581,16 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     }
 
     private void connectUsingConfiguration() throws ConnectionException, IOException {
+        if (connectedSocket != null) {
+            // We have been given an already connected socket
+            socket = connectedSocket;
+            this.host = connectedSocketHost;
+            this.port = socket.getPort();
+            connectedSocket = null;
+            connectedSocketHost = null;
+            return;
+        }
+
         List<HostAddress> failedAddresses = populateHostAddresses();
         SocketFactory socketFactory = config.getSocketFactory();
         ProxyInfo proxyInfo = config.getProxyInfo();
@@ -803,11 +839,18 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         // prevent an accidental implicit handshake.
         TLSUtils.setEnabledProtocolsAndCiphers(sslSocket, config.getEnabledSSLProtocols(), config.getEnabledSSLCiphers());
 
+        // Allow session resumption through session tickets (RFC 5077) if supported
+        enableSessionTickets(sslSocket);
+
         // Initialize the reader and writer with the new secured version
         initReaderAndWriter();
 
         // Proceed to do the handshake
+        final long handshakeStart = System.currentTimeMillis();
         sslSocket.startHandshake();
+        tlsHandshakeTime = System.currentTimeMillis() - handshakeStart;
+        // a resumed session was created before this handshake
+        tlsSessionResumed = sslSocket.getSession().getCreationTime() < handshakeStart;
 
         if (daneVerifier != null) {
             daneVerifier.finish(sslSocket);
@@ -824,6 +867,35 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         secureSocket = sslSocket;
     }
 
+    /**
+     * Enables TLS session tickets on platform sockets supporting them
+     * (e.g. Conscrypt on Android). Session IDs are used otherwise.
+     */
+    private static void enableSessionTickets(SSLSocket sslSocket) {
+        try {
+            sslSocket.getClass().getMethod("setUseSessionTickets", boolean.class)
+                .invoke(sslSocket, true);
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.FINE, "Session tickets not supported", e);
+        }
+    }
+
+    /**
+     * Returns the duration of the last TLS handshake in milliseconds, or -1
+     * if TLS was never negotiated.
+     */
+    public long getTlsHandshakeTime() {
+        return tlsHandshakeTime;
+    }
+
+    /**
+     * Returns true if the last TLS handshake resumed a previous session.
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsSessionResumed;
+    }
+
     /**
      * Returns the compression handler that can be used for one compression methods offered by the server.
      *
@@ -905,6 +977,29 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         initConnection();
     }
 
+    /**
+     * Uses an already connected socket for the next call to {@link #connect()},
+     * instead of resolving and connecting to the configured host. The
+     * socket must be a plain socket if the configuration does not set a
+     * socket factory.
+     *
+     * @param socket the connected socket.
+     * @param host the host name the socket is connected to (used for TLS).
+     */
+    public synchronized void setConnectedSocket(Socket socket, String host) {
+        if (connectedSocket != null && connectedSocket != socket) {
+            // never used
+            try {
+                connectedSocket.close();
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.FINE, "unable to close unused socket", e);
+            }
+        }
+        connectedSocket = socket;
+        connectedSocketHost = host;
+    }
+
     /**
      * Sends out a notification that there was an error with the connection
      * and closes the connection. Also prints the stack trace of the given exception
@@ -1131,6 +1226,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                                     throw xmppException;
                                 }
                                 smServerMaxResumptimTime = enabled.getMaxResumptionTime();
+                                setSmResumptionLocation(enabled.getLocation());
                             } else {
                                 // Mark this a non-resumable stream by setting smSessionId to null
                                 smSessionId = null;
@@ -1801,6 +1897,78 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
     }
 
+    /**
+     * Returns the host name the resumable stream was established on, to be used for TLS when
+     * reconnecting.
+     *
+     * @return the host name or <code>null</code> if there is no resumable stream.
+     */
+    public String getSmResumptionHost() {
+        return smSessionId != null ? smResumptionHost : null;
+    }
+
+    /**
+     * Returns the address to reconnect to for resuming the stream. This is the location
+     * advertised by the server, if any, or the host the stream was established on.
+     *
+     * @return the address or <code>null</code> if there is no resumable stream.
+     */
+    public String getSmResumptionAddress() {
+        return smSessionId != null ? smResumptionAddress : null;
+    }
+
+    /**
+     * Returns the port to reconnect to for resuming the stream.
+     *
+     * @return the port.
+     * @see #getSmResumptionAddress()
+     */
+    public int getSmResumptionPort() {
+        return smResumptionPort;
+    }
+
+    /**
+     * Stores where the stream can be resumed, from the 'location' attribute of the 'enabled'
+     * element ("host", "host:port" or "[IPv6]:port") or from the current host and port.
+     */
+    private void setSmResumptionLocation(String location) {
+        smResumptionHost = host;
+        smResumptionAddress = host;
+        smResumptionPort = port;
+
+        if (StringUtils.isNullOrEmpty(location))
+            return;
+
+        String address = location;
+        int portIndex;
+        if (location.startsWith("[")) {
+            int end = location.indexOf(']');
+            if (end < 0) {
+                LOGGER.warning("Invalid Stream Management location: " + location);
+                return;
+            }
+            address = location.substring(1, end);
+            portIndex = location.indexOf(':', end) == end + 1 ? end + 1 : -1;
+        }
+        else {
+            portIndex = location.indexOf(':');
+            if (portIndex >= 0)
+                address = location.substring(0, portIndex);
+        }
+
+        if (portIndex >= 0) {
+            try {
+                smResumptionPort = Integer.parseInt(location.substring(portIndex + 1));
+            }
+            catch (NumberFormatException e) {
+                LOGGER.warning("Invalid Stream Management location: " + location);
+                smResumptionPort = port;
+                return;
+            }
+        }
+        smResumptionAddress = address;
+    }
+
     /**
      * Drop the stream management state. Sets {@link #smSessionId} and
      * {@link #unacknowledgedStanzas} to <code>null</code>.
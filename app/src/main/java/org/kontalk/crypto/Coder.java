@@ -20,7 +20,10 @@ package org.kontalk.crypto;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -94,6 +97,28 @@ public abstract class Coder {
     /** Encrypts a file. */
     public abstract void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException;
 
+    /**
+     * Encrypts a file with the given MIME type. Implementations may use the
+     * MIME type to tune processing (e.g. skip compression).
+     */
+    public void encryptFile(InputStream input, OutputStream output, String mime) throws GeneralSecurityException {
+        encryptFile(input, output);
+    }
+
+    /**
+     * Encrypts a file reproducibly: the same input encrypted with the same
+     * seed always produces the same output. This allows to compute the
+     * encrypted length in advance and then stream the real data.
+     */
+    public abstract void encryptFile(InputStream input, OutputStream output, String mime, EncryptionSeed seed)
+        throws GeneralSecurityException;
+
+    /**
+     * Returns true if the output length of a reproducible encryption depends
+     * only on the input and the seed timestamp, not on the secret seed.
+     */
+    public abstract boolean isEncryptedLengthStable();
+
     /** Decrypts a file. */
     public abstract void decryptFile(InputStream input, boolean verify,
         OutputStream output, List<DecryptException> errors) throws GeneralSecurityException;
@@ -127,6 +152,81 @@ public abstract class Coder {
         }
     }
 
+    /**
+     * Parameters for reproducible encryption.
+     * They contain secret material: never store them or send them outside
+     * of the device. They may only travel in memory (e.g. within an intent to
+     * a local service) and must be destroyed as soon as they are not needed.
+     */
+    public static final class EncryptionSeed {
+        private static final int SEED_LENGTH = 32;
+
+        private final byte[] mSeed;
+        private final Date mTimestamp;
+
+        private EncryptionSeed(byte[] seed, Date timestamp) {
+            mSeed = seed;
+            mTimestamp = timestamp;
+        }
+
+        byte[] getSeed() {
+            return mSeed;
+        }
+
+        Date getTimestamp() {
+            return mTimestamp;
+        }
+
+        /** Serializes these parameters for passing them to a local service. */
+        public byte[] toByteArray() {
+            return ByteBuffer.allocate(SEED_LENGTH + 8)
+                .put(mSeed)
+                .putLong(mTimestamp.getTime())
+                .array();
+        }
+
+        /**
+         * Deserializes parameters serialized with {@link #toByteArray()}.
+         * The given array will be wiped.
+         * @return the parameters, or null if data is null
+         */
+        public static EncryptionSeed fromByteArray(byte[] data) {
+            if (data == null)
+                return null;
+            if (data.length != SEED_LENGTH + 8)
+                throw new IllegalArgumentException("invalid encryption seed");
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            byte[] seed = new byte[SEED_LENGTH];
+            buf.get(seed);
+            EncryptionSeed result = new EncryptionSeed(seed, new Date(buf.getLong()));
+            Arrays.fill(data, (byte) 0);
+            return result;
+        }
+
+        /** Wipes the secret part of these parameters. */
+        public void destroy() {
+            Arrays.fill(mSeed, (byte) 0);
+        }
+
+        public static EncryptionSeed create() {
+            // packet timestamps have a resolution of one second
+            long now = System.currentTimeMillis();
+            return create(new Date(now - (now % 1000)));
+        }
+
+        /**
+         * Creates new parameters with the given timestamp. The output length
+         * of {@link #encryptFile(InputStream, OutputStream, String, EncryptionSeed)}
+         * might depend only on the input and the timestamp, see
+         * {@link #isEncryptedLengthStable()}.
+         */
+        public static EncryptionSeed create(Date timestamp) {
+            byte[] seed = new byte[SEED_LENGTH];
+            new SecureRandom().nextBytes(seed);
+            return new EncryptionSeed(seed, timestamp);
+        }
+    }
+
     public static class VerifyOutput {
         public final String cleartext;
         public final Date timestamp;
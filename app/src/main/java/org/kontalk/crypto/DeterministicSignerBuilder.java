@@ -0,0 +1,134 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.OutputStream;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.crypto.CryptoException;
+import org.spongycastle.crypto.DSA;
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Signer;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.signers.DSADigestSigner;
+import org.spongycastle.crypto.signers.DSASigner;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.operator.PGPContentSigner;
+import org.spongycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPKeyConverter;
+
+
+/**
+ * A SHA-256 content signer builder for DSA and ECDSA keys using
+ * deterministic nonces (RFC 6979). The nonce is derived from the private key
+ * and the signed data instead of a random generator, so it can never be
+ * reproduced for different data.
+ */
+class DeterministicSignerBuilder implements PGPContentSignerBuilder {
+
+    private final int mKeyAlgorithm;
+
+    DeterministicSignerBuilder(int keyAlgorithm) {
+        if (!isSupported(keyAlgorithm))
+            throw new IllegalArgumentException("unsupported key algorithm: " + keyAlgorithm);
+        mKeyAlgorithm = keyAlgorithm;
+    }
+
+    static boolean isSupported(int keyAlgorithm) {
+        return keyAlgorithm == PublicKeyAlgorithmTags.ECDSA ||
+            keyAlgorithm == PublicKeyAlgorithmTags.DSA;
+    }
+
+    @Override
+    public PGPContentSigner build(final int signatureType, PGPPrivateKey privateKey)
+            throws PGPException {
+
+        final long keyId = privateKey.getKeyID();
+        final Digest digest = new SHA256Digest();
+
+        HMacDSAKCalculator kCalculator = new HMacDSAKCalculator(new SHA256Digest());
+        DSA dsa = mKeyAlgorithm == PublicKeyAlgorithmTags.ECDSA ?
+            new ECDSASigner(kCalculator) : new DSASigner(kCalculator);
+        final Signer signer = new DSADigestSigner(dsa, new SHA256Digest());
+        signer.init(true, new BcPGPKeyConverter().getPrivateKey(privateKey));
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                signer.update((byte) b);
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                signer.update(b, off, len);
+                digest.update(b, off, len);
+            }
+        };
+
+        return new PGPContentSigner() {
+            @Override
+            public int getType() {
+                return signatureType;
+            }
+
+            @Override
+            public int getHashAlgorithm() {
+                return HashAlgorithmTags.SHA256;
+            }
+
+            @Override
+            public int getKeyAlgorithm() {
+                return mKeyAlgorithm;
+            }
+
+            @Override
+            public long getKeyID() {
+                return keyId;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return out;
+            }
+
+            @Override
+            public byte[] getSignature() {
+                try {
+                    return signer.generateSignature();
+                }
+                catch (CryptoException e) {
+                    throw new IllegalStateException("unable to create signature", e);
+                }
+            }
+
+            @Override
+            public byte[] getDigest() {
+                byte[] d = new byte[digest.getDigestSize()];
+                digest.doFinal(d, 0);
+                return d;
+            }
+        };
+    }
+
+}
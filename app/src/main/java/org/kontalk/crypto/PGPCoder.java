@@ -28,9 +28,13 @@ import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import org.spongycastle.bcpg.HashAlgorithmTags;
 import org.spongycastle.openpgp.PGPCompressedData;
@@ -45,19 +49,25 @@ import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPOnePassSignature;
 import org.spongycastle.openpgp.PGPOnePassSignatureList;
 import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.operator.KeyFingerPrintCalculator;
+import org.spongycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 
+import android.support.v4.util.LruCache;
+
 import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
 import org.kontalk.util.CPIMMessage;
@@ -85,8 +95,50 @@ public class PGPCoder extends Coder {
     private static final KeyFingerPrintCalculator sFingerprintCalculator =
         PGP.sFingerprintCalculator;
 
-    /** Buffer size. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /** Default buffer size for file operations. It should always be a power of 2. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    /** Minimum buffer size. It should always be a power of 2. */
+    public static final int MIN_BUFFER_SIZE = 1 << 8;
+
+    /** Payloads smaller than this are not worth compressing. */
+    private static final int MIN_COMPRESSION_LENGTH = 512;
+
+    /** MIME types of already compressed content (compression is skipped). */
+    private static final Set<String> sCompressedTypes = new HashSet<>(Arrays.asList(
+        "image/jpeg",
+        "image/png",
+        "image/gif",
+        "image/webp",
+        "application/zip",
+        "application/gzip",
+        "application/x-gzip",
+        "application/x-7z-compressed",
+        "application/x-rar-compressed"
+    ));
+
+    /** MIME types of uncompressed audio (compression is not skipped). */
+    private static final Set<String> sUncompressedAudioTypes = new HashSet<>(Arrays.asList(
+        "audio/wav",
+        "audio/x-wav",
+        "audio/wave"
+    ));
+
+    /** Buffer size used by generators and copy loops. */
+    private static volatile int sBufferSize = DEFAULT_BUFFER_SIZE;
+
+    /** Maximum number of cached encryption method generators. */
+    private static final int METHOD_CACHE_SIZE = 200;
+
+    /** Random number generator shared by all coders (seeded once). */
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+
+    /**
+     * Encryption method generators by encryption key fingerprint. A generator
+     * is bound to the key material only, so it can be reused across coders and
+     * messages. Key IDs are not used because they can easily collide.
+     */
+    private static final LruCache<String, PGPKeyEncryptionMethodGenerator> sMethodCache =
+        new LruCache<>(METHOD_CACHE_SIZE);
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
@@ -96,6 +148,14 @@ public class PGPCoder extends Coder {
     private final PGPPublicKeyRing[] mRecipients;
     private final PGPPublicKeyRing mSender;
 
+    // encryption context, lazily created and reused across messages
+
+    private String mSenderUid;
+    private String[] mRecipientUids;
+    private PGPKeyEncryptionMethodGenerator[] mMethods;
+    private BcPGPContentSignerBuilder mSignerBuilder;
+    private PGPSignatureSubpacketVector mSignerSubpackets;
+
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
         mServer = server;
         mKey = key;
@@ -110,6 +170,50 @@ public class PGPCoder extends Coder {
         mSender = sender;
     }
 
+    /** Returns the buffer size used for file operations. */
+    public static int getBufferSize() {
+        return sBufferSize;
+    }
+
+    /**
+     * Sets the buffer size used for file operations.
+     * @param size a power of 2, at least {@link #MIN_BUFFER_SIZE}
+     */
+    public static void setBufferSize(int size) {
+        if (size < MIN_BUFFER_SIZE || (size & (size - 1)) != 0)
+            throw new IllegalArgumentException("buffer size must be a power of 2 and at least " +
+                MIN_BUFFER_SIZE + ": " + size);
+        sBufferSize = size;
+    }
+
+    /** Returns a buffer size suitable for a payload of the given length. */
+    static int getBufferSize(int length) {
+        int size = MIN_BUFFER_SIZE;
+        while (size < length && size < sBufferSize)
+            size <<= 1;
+        return size;
+    }
+
+    /**
+     * Returns the compression algorithm to use for the given content.
+     * @param mime MIME type of the content, null if unknown
+     * @param length length of the content, -1 if unknown
+     * @return one of {@link PGPCompressedData#ZIP} or {@link PGPCompressedData#UNCOMPRESSED}
+     */
+    static int getCompressionAlgorithm(String mime, long length) {
+        if (length >= 0 && length < MIN_COMPRESSION_LENGTH)
+            return PGPCompressedData.UNCOMPRESSED;
+
+        if (mime != null) {
+            mime = mime.toLowerCase(Locale.US);
+            if (sCompressedTypes.contains(mime) || mime.startsWith("video/") ||
+                    (mime.startsWith("audio/") && !sUncompressedAudioTypes.contains(mime)))
+                return PGPCompressedData.UNCOMPRESSED;
+        }
+
+        return PGPCompressedData.ZIP;
+    }
+
     @Override
     public byte[] encryptText(CharSequence text) throws GeneralSecurityException {
         try {
@@ -150,43 +254,139 @@ public class PGPCoder extends Coder {
     private byte[] encryptData(String mime, CharSequence data)
             throws PGPException, IOException, SignatureException {
 
-        String from = mKey.getUserId(mServer.getNetwork());
-        String[] to = new String[mRecipients.length];
-        for (int i = 0; i < to.length; i++)
-            to[i] = PGP.getUserId(PGP.getMasterKey(mRecipients[i]), mServer.getNetwork());
+        initEncryptionContext();
 
         // secure the message against the most basic attacks using Message/CPIM
-        CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, data);
+        CPIMMessage cpim = new CPIMMessage(mSenderUid, mRecipientUids, new Date(), mime, data);
         byte[] plainText = cpim.toByteArray();
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
 
+        encrypt(in, out, getCompressionAlgorithm(mime, plainText.length),
+            getBufferSize(plainText.length), null);
+
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Prepares everything that doesn't change between messages: user IDs,
+     * encryption method generators and signer parameters.
+     */
+    private synchronized void initEncryptionContext() {
+        if (mMethods != null)
+            return;
+
+        String network = mServer.getNetwork();
+        String senderUid = mKey.getUserId(network);
+        String[] recipientUids = new String[mRecipients.length];
+        PGPKeyEncryptionMethodGenerator[] methods = new PGPKeyEncryptionMethodGenerator[mRecipients.length];
+
+        for (int i = 0; i < mRecipients.length; i++) {
+            recipientUids[i] = PGP.getUserId(PGP.getMasterKey(mRecipients[i]), network);
+            methods[i] = getMethodGenerator(PGP.getEncryptionKey(mRecipients[i]));
+        }
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, senderUid);
+
+        mSenderUid = senderUid;
+        mRecipientUids = recipientUids;
+        mSignerBuilder = new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
+            .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256);
+        mSignerBuilder.setSecureRandom(sSecureRandom);
+        mSignerSubpackets = spGen.generate();
+        mMethods = methods;
+    }
+
+    /** Reads until the buffer is full or the stream ends. */
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int total = 0;
+        int len;
+        while (total < buf.length && (len = in.read(buf, total, buf.length - total)) > 0)
+            total += len;
+        return total;
+    }
+
+    /** Returns a (possibly cached) encryption method generator for the given key. */
+    private static PGPKeyEncryptionMethodGenerator getMethodGenerator(PGPPublicKey key) {
+        String fingerprint = PGP.getFingerprint(key);
+        PGPKeyEncryptionMethodGenerator method = sMethodCache.get(fingerprint);
+        if (method == null) {
+            method = new BcPublicKeyKeyEncryptionMethodGenerator(key)
+                .setSecureRandom(sSecureRandom);
+            sMethodCache.put(fingerprint, method);
+        }
+        return method;
+    }
+
+    /**
+     * Signs, compresses and encrypts the given stream.
+     * Data is streamed through the generators, so memory usage depends
+     * only on the buffer size.
+     * @param compression compression algorithm for the compressed data packet
+     * @param bufferSize buffer size for generators and copy loop (power of 2)
+     * @param seed if not null, output will be reproducible with the same seed
+     */
+    private void encrypt(InputStream in, OutputStream out, int compression, int bufferSize, EncryptionSeed seed)
+            throws PGPException, IOException, SignatureException {
+
+        initEncryptionContext();
+
+        SecureRandom random;
+        PGPKeyEncryptionMethodGenerator[] methods;
+        PGPContentSignerBuilder signerBuilder;
+        Date timestamp;
+
+        if (seed != null) {
+            // reproducible output: session key and key exchange come from the seed
+            random = new SeededSecureRandom(seed.getSeed());
+            methods = new PGPKeyEncryptionMethodGenerator[mRecipients.length];
+            for (int i = 0; i < methods.length; i++)
+                methods[i] = new BcPublicKeyKeyEncryptionMethodGenerator(
+                    PGP.getEncryptionKey(mRecipients[i])).setSecureRandom(random);
+            // the signer never uses the seed: (EC)DSA nonces are derived from
+            // the key and the data, RSA signatures don't need any randomness
+            int signAlgorithm = mKey.getSignKeyPair().getPublicKey().getAlgorithm();
+            signerBuilder = DeterministicSignerBuilder.isSupported(signAlgorithm) ?
+                new DeterministicSignerBuilder(signAlgorithm) : mSignerBuilder;
+            timestamp = seed.getTimestamp();
+        }
+        else {
+            random = sSecureRandom;
+            methods = mMethods;
+            signerBuilder = mSignerBuilder;
+            timestamp = new Date();
+        }
+
         // setup data encryptor & generator
         BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
         encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
+        encryptor.setSecureRandom(random);
 
         // add public key recipients
         PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+        for (PGPKeyEncryptionMethodGenerator method : methods)
+            encGen.addMethod(method);
 
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+        OutputStream encryptedOut = encGen.open(out, new byte[bufferSize]);
 
         // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        // the compressed data packet is always present (decryption expects it)
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(compression);
+        OutputStream compressedOut = compGen.open(encryptedOut, new byte[bufferSize]);
 
         // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator(signerBuilder);
         sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
+        sigGen.setUnhashedSubpackets(mSignerSubpackets);
+        if (seed != null) {
+            // signature creation time would otherwise be the current time
+            PGPSignatureSubpacketGenerator hashedGen = new PGPSignatureSubpacketGenerator();
+            hashedGen.setSignatureCreationTime(false, timestamp);
+            sigGen.setHashedSubpackets(hashedGen.generate());
+        }
 
         sigGen.generateOnePassVersion(false)
             .encode(compressedOut);
@@ -197,27 +397,23 @@ public class PGPCoder extends Coder {
             compressedOut,
             PGPLiteralData.BINARY,
             "",
-            new Date(),
-            new byte[BUFFER_SIZE]);
+            timestamp,
+            new byte[bufferSize]);
 
         // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
+        // full buffers are written so output doesn't depend on how the input is read
+        byte[] buf = new byte[bufferSize];
         int len;
-        while ((len = in.read(buf)) > 0) {
+        while ((len = readFully(in, buf)) > 0) {
             literalOut.write(buf, 0, len);
             sigGen.update(buf, 0, len);
         }
 
-        in.close();
         literalGen.close();
         // Generate the signature, compress, encrypt and write to the "out" stream
         sigGen.generate().encode(compressedOut);
         compGen.close();
         encGen.close();
-
-        return out.toByteArray();
     }
 
     @SuppressWarnings("unchecked")
@@ -503,60 +699,33 @@ public class PGPCoder extends Coder {
 
     @Override
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
-        try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
-
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
-
-            // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-            // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
-
-            sigGen.generateOnePassVersion(false)
-                .encode(compressedOut);
-
-            // Initialize literal data generator
-            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-            OutputStream literalOut = literalGen.open(
-                compressedOut,
-                PGPLiteralData.BINARY,
-                "",
-                new Date(),
-                new byte[BUFFER_SIZE]);
-
-            // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
-            int len;
-            while ((len = input.read(buf)) > 0) {
-                literalOut.write(buf, 0, len);
-                sigGen.update(buf, 0, len);
-            }
+        encryptFile(input, output, null);
+    }
+
+    @Override
+    public void encryptFile(InputStream input, OutputStream output, String mime) throws GeneralSecurityException {
+        encryptFile(input, output, mime, null);
+    }
 
-            literalGen.close();
-            // Generate the signature, compress, encrypt and write to the "out" stream
-            sigGen.generate().encode(compressedOut);
-            compGen.close();
-            encGen.close();
+    @Override
+    public boolean isEncryptedLengthStable() {
+        if (mRecipients == null)
+            return false;
+        // key exchange with other algorithms produces values of variable length
+        for (PGPPublicKeyRing recipient : mRecipients) {
+            if (PGP.getEncryptionKey(recipient).getAlgorithm() != PGPPublicKey.ECDH)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void encryptFile(InputStream input, OutputStream output, String mime, EncryptionSeed seed)
+            throws GeneralSecurityException {
+        try {
+            // reproducible output must not depend on the tunable buffer size
+            encrypt(input, output, getCompressionAlgorithm(mime, -1),
+                seed != null ? DEFAULT_BUFFER_SIZE : sBufferSize, seed);
         }
         catch (PGPException e) {
             throw new GeneralSecurityException(e);
@@ -635,7 +804,7 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    byte[] buf = new byte[8192];
+                    byte[] buf = new byte[sBufferSize];
                     int num;
 
                     while ((num = unc.read(buf)) >= 0) {
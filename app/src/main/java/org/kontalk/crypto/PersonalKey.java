@@ -77,6 +77,8 @@ public class PersonalKey implements Parcelable {
     private final PGPDecryptedKeyPairRing mPair;
     /** X.509 bridge certificate. */
     private final X509Certificate mBridgeCert;
+    /** Converted authentication private key (lazily created). */
+    private PrivateKey mBridgePrivateKey;
 
     private PersonalKey(PGPDecryptedKeyPairRing keyPair, X509Certificate bridgeCert) {
         mPair = keyPair;
@@ -109,8 +111,10 @@ public class PersonalKey implements Parcelable {
         return mBridgeCert;
     }
 
-    public PrivateKey getBridgePrivateKey() throws PGPException {
-        return PGP.convertPrivateKey(mPair.authKey.getPrivateKey());
+    public synchronized PrivateKey getBridgePrivateKey() throws PGPException {
+        if (mBridgePrivateKey == null)
+            mBridgePrivateKey = PGP.convertPrivateKey(mPair.authKey.getPrivateKey());
+        return mBridgePrivateKey;
     }
 
     public PGPPublicKeyRing getPublicKeyRing() throws IOException {
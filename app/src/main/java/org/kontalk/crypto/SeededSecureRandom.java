@@ -0,0 +1,69 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.SecureRandom;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.prng.DigestRandomGenerator;
+
+
+/**
+ * A deterministic random generator: two instances created with the same seed
+ * produce the same sequence of bytes. The seed must come from a real
+ * {@link SecureRandom} and must be kept secret.
+ */
+class SeededSecureRandom extends SecureRandom {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DigestRandomGenerator mGenerator;
+
+    SeededSecureRandom(byte[] seed) {
+        mGenerator = new DigestRandomGenerator(new SHA256Digest());
+        mGenerator.addSeedMaterial(seed);
+    }
+
+    @Override
+    public synchronized void setSeed(byte[] seed) {
+        // called by superclass constructors before we are initialized
+        if (mGenerator != null)
+            mGenerator.addSeedMaterial(seed);
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        // called by superclass constructors before we are initialized
+        if (mGenerator != null)
+            mGenerator.addSeedMaterial(seed);
+    }
+
+    @Override
+    public synchronized void nextBytes(byte[] bytes) {
+        mGenerator.nextBytes(bytes);
+    }
+
+    @Override
+    public byte[] generateSeed(int numBytes) {
+        byte[] seed = new byte[numBytes];
+        nextBytes(seed);
+        return seed;
+    }
+
+}
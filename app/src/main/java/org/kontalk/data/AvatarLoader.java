@@ -0,0 +1,199 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.Log;
+import org.kontalk.data.Contact.ContactCallback;
+import org.kontalk.util.ThumbnailUtils;
+
+
+/**
+ * Loads contact avatars in a small pool of worker threads. Concurrent
+ * requests for the same contact are coalesced and can be canceled, e.g.
+ * when a list item is recycled. Decoded bitmaps are cached at the size they
+ * are displayed.
+ */
+class AvatarLoader {
+
+    /** Number of worker threads. */
+    private static final int THREADS = 2;
+    /** Memory budget for decoded bitmaps. */
+    private static final int MAX_CACHE_SIZE = (int) Math.min(Runtime.getRuntime().maxMemory() / 16,
+        8 * 1024 * 1024);
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+
+    /** Decoded bitmaps, keyed by user ID and size. */
+    private final LruCache<String, Bitmap> mBitmapCache = new LruCache<String, Bitmap>(MAX_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            // bitmaps are never recycled here since they might be still in use
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+
+    /** Pending requests, keyed by user ID. Guarded by this. */
+    private final Map<String, Request> mRequests = new HashMap<>();
+
+    private final class Request implements Runnable {
+        final Context context;
+        final Contact contact;
+        final List<ContactCallback> callbacks = new LinkedList<>();
+        Future<?> future;
+
+        Request(Context context, Contact contact) {
+            this.context = context;
+            this.contact = contact;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            Drawable avatar = null;
+            try {
+                avatar = contact.getAvatar(context);
+            }
+            catch (Exception e) {
+                // do not throw any exception while loading
+                Log.w(Contact.TAG, "error while loading avatar", e);
+            }
+
+            List<ContactCallback> listeners;
+            synchronized (AvatarLoader.this) {
+                String userId = contact.getJID();
+                if (mRequests.get(userId) == this)
+                    mRequests.remove(userId);
+                listeners = new ArrayList<>(callbacks);
+                callbacks.clear();
+            }
+
+            if (avatar != null) {
+                for (ContactCallback callback : listeners)
+                    callback.avatarLoaded(contact, avatar);
+            }
+        }
+    }
+
+    /** Loads the avatar drawable of a contact in the background. */
+    public synchronized void load(Context context, Contact contact, ContactCallback callback) {
+        String userId = contact.getJID();
+        Request request = mRequests.get(userId);
+        // a contact reloaded after invalidation needs a new request
+        if (request == null || request.contact != contact) {
+            // avoid keeping a local context from an unrelated thread
+            request = new Request(context.getApplicationContext(), contact);
+            mRequests.put(userId, request);
+            request.future = mExecutor.submit(request);
+        }
+        if (!request.callbacks.contains(callback))
+            request.callbacks.add(callback);
+    }
+
+    /**
+     * Cancels any pending request for the given callback.
+     * Loads not needed by anyone else anymore are canceled too.
+     */
+    public synchronized void cancel(ContactCallback callback) {
+        Iterator<Request> iter = mRequests.values().iterator();
+        while (iter.hasNext()) {
+            Request request = iter.next();
+            if (request.callbacks.remove(callback) && request.callbacks.isEmpty()) {
+                request.future.cancel(false);
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the avatar of a contact, decoded at the given size.
+     * The returned bitmap is shared and must not be recycled.
+     * @return the bitmap or null if the contact has no avatar
+     */
+    public Bitmap getBitmap(Context context, Contact contact, int size) {
+        String key = contact.getJID() + ':' + size;
+        Bitmap bitmap = mBitmapCache.get(key);
+        if (bitmap == null) {
+            byte[] data = contact.getAvatarData(context);
+            if (data != null) {
+                bitmap = decode(data, size);
+                if (bitmap != null)
+                    mBitmapCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /** Drops cached bitmaps for the given user. */
+    public void invalidate(String userId) {
+        String prefix = userId + ':';
+        for (String key : mBitmapCache.snapshot().keySet()) {
+            if (key.startsWith(prefix))
+                mBitmapCache.remove(key);
+        }
+    }
+
+    /** Drops all cached bitmaps. */
+    public void invalidate() {
+        mBitmapCache.evictAll();
+    }
+
+    /** Decodes a bitmap center-cropped to the given size, subsampling large images. */
+    private static Bitmap decode(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= size &&
+                options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap != null && (bitmap.getWidth() != size || bitmap.getHeight() != size)) {
+            // keep the aspect ratio of non-square pictures
+            bitmap = ThumbnailUtils.extractThumbnail(bitmap, size, size,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        }
+        return bitmap;
+    }
+
+}
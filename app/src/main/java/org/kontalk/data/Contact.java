@@ -20,11 +20,22 @@ package org.kontalk.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.amulyakhare.textdrawable.TextDrawable;
 import com.amulyakhare.textdrawable.util.ColorGenerator;
@@ -110,6 +121,7 @@ public class Contact {
 
     private Drawable mAvatar;
     private byte [] mAvatarData;
+    private boolean mAvatarLoaded;
 
     private String mFingerprint;
     private PGPLazyPublicKeyRingLoader mTrustedKeyRing;
@@ -140,6 +152,10 @@ public class Contact {
         void avatarLoaded(Contact contact, Drawable avatar);
     }
 
+    public interface ContactLoadedCallback {
+        void contactLoaded(Contact contact);
+    }
+
     public interface ContactChangeListener {
         void onContactInvalidated(String userId);
     }
@@ -147,66 +163,245 @@ public class Contact {
     private static final Set<ContactChangeListener> sListeners = new HashSet<>();
 
     /**
-     * Contact cache.
+     * Contact cache. The cache is bounded by an estimated memory budget which
+     * includes avatar data. The cache lock is held only for map operations:
+     * misses are loaded outside of it and concurrent lookups for the same
+     * user share a single load.
      * @author Daniele Ricci
      */
-    private final static class ContactCache extends LruCache<String, Contact> {
-        private static final int MAX_ENTRIES = 20;
+    private final static class ContactCache {
+        /** Estimated memory used by a contact, excluding avatar. */
+        private static final int ENTRY_SIZE = 1024;
+        /** Memory budget for the cache. */
+        private static final int MAX_SIZE = (int) Math.min(Runtime.getRuntime().maxMemory() / 32,
+            4 * 1024 * 1024);
+        /** Maximum number of users looked up in a single query. */
+        private static final int PREFETCH_BATCH_SIZE = 200;
+
+        private static final class Entry {
+            final Contact contact;
+            final int size;
+
+            Entry(Contact contact) {
+                this.contact = contact;
+                // avatar data will be accounted for when it's loaded
+                byte[] avatar = contact.mAvatarData;
+                this.size = ENTRY_SIZE + (avatar != null ? avatar.length : 0);
+            }
+        }
+
+        private final LruCache<String, Entry> mCache = new LruCache<String, Entry>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.size;
+            }
 
-        public ContactCache() {
-            super(MAX_ENTRIES);
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                if (newValue == null)
+                    mKeys.remove(key);
+            }
+        };
+
+        /**
+         * Keys of the cached contacts, to check membership without affecting
+         * hit/miss statistics and LRU order. Might be briefly out of sync with
+         * the cache, so it's only a hint.
+         */
+        private final Set<String> mKeys = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        /** Lookups currently being loaded. */
+        private final ConcurrentHashMap<String, FutureTask<Contact>> mLoading = new ConcurrentHashMap<>();
+        /** Incremented on invalidation, to discard loads started before. */
+        private final AtomicInteger mGeneration = new AtomicInteger();
+
+        private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+        public Contact get(String userId) {
+            Entry e = mCache.get(userId);
+            return e != null ? e.contact : null;
         }
 
-        public synchronized Contact get(Context context, String userId, String numberHint) {
-            Contact c = get(userId);
-            if (c == null) {
-                c = _findByUserId(context, userId);
-                if (c != null) {
-                    // put the contact in the cache
+        public void put(String userId, Contact c) {
+            mCache.put(userId, new Entry(c));
+            mKeys.add(userId);
+        }
+
+        /** Returns true if the user is cached, without counting a hit or a miss. */
+        public boolean contains(String userId) {
+            return mKeys.contains(userId);
+        }
+
+        /** Updates the memory accounted for a cached contact, e.g. after loading its avatar. */
+        public void resize(String userId, Contact c) {
+            synchronized (mCache) {
+                Entry e = mCache.get(userId);
+                if (e != null && e.contact == c)
                     put(userId, c);
+            }
+        }
+
+        public void remove(String userId) {
+            mGeneration.incrementAndGet();
+            mCache.remove(userId);
+        }
+
+        public void evictAll() {
+            mGeneration.incrementAndGet();
+            mCache.evictAll();
+        }
+
+        public Collection<Entry> entries() {
+            return mCache.snapshot().values();
+        }
+
+        public String getStats() {
+            return mCache.toString();
+        }
+
+        public Contact get(final Context context, final String userId, final String numberHint) {
+            Contact c = get(userId);
+            if (c != null)
+                return c;
+
+            FutureTask<Contact> task = new FutureTask<>(new Callable<Contact>() {
+                @Override
+                public Contact call() throws Exception {
+                    return load(context, userId, numberHint);
                 }
+            });
+            FutureTask<Contact> loading = mLoading.putIfAbsent(userId, task);
+            if (loading == null) {
+                // load on the calling thread
+                loading = task;
+                run(userId, task);
+            }
+
+            try {
+                return loading.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e) {
+                Log.w(TAG, "error loading contact " + userId, e.getCause());
+                return null;
+            }
+        }
+
+        private void run(String userId, FutureTask<Contact> task) {
+            try {
+                task.run();
+            }
+            finally {
+                mLoading.remove(userId, task);
+            }
+        }
+
+        private Contact load(Context context, String userId, String numberHint) {
+            int generation = mGeneration.get();
+            Contact c = _findByUserId(context, userId);
+            if (c == null && numberHint != null) {
                 // try system contacts lookup
-                else if (numberHint != null) {
-                    Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
-                    ContentResolver resolver = context.getContentResolver();
-                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
-                    Cursor cur = resolver.query(uri, new String[] {
-                                PhoneLookup.DISPLAY_NAME,
-                                PhoneLookup.LOOKUP_KEY,
-                                PhoneLookup._ID,
-                            }, null, null, null);
-                    if (cur.moveToFirst()) {
-                        String name = cur.getString(0);
-                        String lookupKey = cur.getString(1);
-                        long cid = cur.getLong(2);
-
-                        c = new Contact(cid, lookupKey, name, numberHint, userId, false);
-                        Uri contactUri = c.getUri();
-                        if (contactUri != null) {
-                            c.loadStructuredNameAsync(context);
-                        }
-
-                        put(userId, c);
-
-                        // insert result into users database immediately
-                        ContentValues values = new ContentValues(5);
-                        values.put(Users.NUMBER, numberHint);
-                        values.put(Users.DISPLAY_NAME, name);
-                        values.put(Users.JID, userId);
-                        values.put(Users.LOOKUP_KEY, lookupKey);
-                        values.put(Users.CONTACT_ID, cid);
-                        resolver.insert(Users.CONTENT_URI, values);
-                    }
-                    cur.close();
-                }
+                c = lookupSystemContact(context, userId, numberHint);
             }
 
+            // don't cache stale data
+            if (c != null && generation == mGeneration.get())
+                put(userId, c);
             return c;
         }
+
+        /**
+         * Loads the given users in a single query.
+         * Users already cached or being loaded are skipped.
+         */
+        public void prefetch(Context context, Collection<String> userIds) {
+            int generation = mGeneration.get();
+            List<String> missing = new ArrayList<>(PREFETCH_BATCH_SIZE);
+            for (String userId : userIds) {
+                if (!contains(userId) && !mLoading.containsKey(userId))
+                    missing.add(userId);
+
+                if (missing.size() >= PREFETCH_BATCH_SIZE) {
+                    prefetchBatch(context, missing, generation);
+                    missing.clear();
+                }
+            }
+            if (missing.size() > 0)
+                prefetchBatch(context, missing, generation);
+        }
+
+        private void prefetchBatch(Context context, List<String> userIds, int generation) {
+            StringBuilder selection = new StringBuilder(Users.JID + " IN (");
+            for (int i = 0; i < userIds.size(); i++) {
+                if (i > 0)
+                    selection.append(',');
+                selection.append('?');
+            }
+            selection.append(')');
+
+            Cursor cursor = context.getContentResolver().query(Users.CONTENT_URI,
+                ALL_CONTACTS_PROJECTION, selection.toString(),
+                userIds.toArray(new String[userIds.size()]), null);
+            if (cursor == null)
+                return;
+
+            List<Contact> contacts = new ArrayList<>(userIds.size());
+            try {
+                while (cursor.moveToNext()) {
+                    String jid = cursor.getString(COLUMN_JID);
+                    if (!contains(jid))
+                        contacts.add(createFromUsersCursor(context, cursor, false));
+                }
+            }
+            finally {
+                cursor.close();
+            }
+
+            // load key information for the whole batch at once
+            List<String> jids = new ArrayList<>(contacts.size());
+            for (Contact c : contacts)
+                jids.add(c.getJID());
+            Map<String, Keyring.KeyInfo> keyInfo = Keyring.getKeyInfo(context, jids);
+
+            for (Contact c : contacts) {
+                String jid = c.getJID();
+                setKeyInfo(c, keyInfo.get(jid));
+                if (generation == mGeneration.get() && !contains(jid))
+                    put(jid, c);
+            }
+        }
+
+        /** Runs a task in the background, after any pending prefetch. */
+        public void execute(Runnable task) {
+            mExecutor.execute(task);
+        }
+
+        public void prefetchAsync(Context context, final Collection<String> userIds) {
+            // avoid keeping a local context from an unrelated thread
+            final Context globalContext = context.getApplicationContext();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prefetch(globalContext, userIds);
+                    }
+                    catch (Exception e) {
+                        // do not throw any exception while loading
+                        Log.w(TAG, "error prefetching contacts", e);
+                    }
+                }
+            });
+        }
     }
 
     private final static ContactCache cache = new ContactCache();
 
+    private final static AvatarLoader sAvatarLoader = new AvatarLoader();
+
     /** Stores volatile and connection-time information about a contact. */
     private static final class ContactState {
         private final String mJID;
@@ -488,30 +683,28 @@ public class Contact {
                 ColorGenerator.MATERIAL.getColor(contact.mJID));
     }
 
+    /**
+     * Loads the avatar in the background. The callback might be called
+     * immediately if the avatar is already available.
+     */
     public void getAvatarAsync(final Context context, final ContactCallback callback) {
         if (mAvatar != null) {
             callback.avatarLoaded(this, mAvatar);
         }
         else {
-            // start async load
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        Drawable avatar = getAvatar(context);
-                        callback.avatarLoaded(Contact.this, avatar);
-                    }
-                    catch (Exception e) {
-                        // do not throw any exception while loading
-                        Log.w(TAG, "error while loading avatar", e);
-                    }
-                }
-            }).start();
+            sAvatarLoader.load(context, this, callback);
         }
     }
 
+    /** Cancels pending avatar requests for the given callback. */
+    public static void cancelAvatarAsync(ContactCallback callback) {
+        sAvatarLoader.cancel(callback);
+    }
+
     public synchronized Drawable getAvatar(Context context) {
         if (mAvatar == null) {
-            Bitmap b = loadAvatarBitmap(context);
+            int size = context.getResources().getDimensionPixelSize(R.dimen.avatar_size_large);
+            Bitmap b = sAvatarLoader.getBitmap(context, this, size);
             if (b != null) {
                 mAvatar = new BitmapDrawable(context.getResources(), b);
             }
@@ -523,61 +716,51 @@ public class Contact {
         return mAvatar;
     }
 
-    private synchronized Bitmap loadAvatarBitmap(Context context) {
-        if (mAvatarData == null) {
+    /** Returns the raw avatar data, loading it if needed. */
+    synchronized byte[] getAvatarData(Context context) {
+        if (!mAvatarLoaded) {
             Uri uri = getUri();
-            if (uri != null)
+            if (uri != null) {
                 mAvatarData = loadAvatarData(context, uri);
+                if (mAvatarData != null)
+                    cache.resize(mJID, this);
+            }
+            mAvatarLoaded = true;
         }
-
-        if (mAvatarData != null)
-            return BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-
-        return null;
+        return mAvatarData;
     }
 
     /**
-     * Public version of {@link #loadAvatarBitmap} which includes the random
-     * avatar generation.
+     * Returns the avatar as a bitmap, including the random avatar generation.
      * @param context a context
      * @param resizeForNotification true for resizing the avatar to the large icon size 128x128
-     * @return a newly-allocated {@link Bitmap}
+     * @return a bitmap which might be shared, so it must not be recycled
      */
     @NonNull
     public synchronized Bitmap getAvatarBitmap(Context context, boolean resizeForNotification) {
-        Bitmap avatar = loadAvatarBitmap(context);
-        if (avatar == null) {
-            Drawable d = generateRandomAvatar(context, this);
-            avatar = MessageUtils.drawableToBitmap(d);
-        }
-
+        final Resources res = context.getResources();
+        int size;
         if (resizeForNotification && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
             // Contact bitmaps are 96x96 so we have to scale 'em up to 128x128 to fill the whole notification large icon.
             // inspired by the AOSP Mms app
-            final Resources res = context.getResources();
-            final int idealIconHeight =
-                res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
-            final int idealIconWidth =
-                res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
-            if (avatar.getHeight() < idealIconHeight) {
-                // Scale this image to fit the intended size
-                Bitmap scaledAvatar = Bitmap.createScaledBitmap(
-                    avatar, idealIconWidth, idealIconHeight, true);
-                if (scaledAvatar != null) {
-                    if (scaledAvatar != avatar)
-                        avatar.recycle();
-                    avatar = scaledAvatar;
-                }
-            }
+            size = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        }
+        else {
+            size = res.getDimensionPixelSize(R.dimen.avatar_size_large);
+        }
+
+        Bitmap avatar = sAvatarLoader.getBitmap(context, this, size);
+        if (avatar == null) {
+            Drawable d = generateRandomAvatar(context, this);
+            avatar = MessageUtils.drawableToBitmap(d);
         }
 
         return avatar;
     }
 
     /**
-     * Public version of {@link #loadAvatarBitmap} which includes the random
-     * avatar generation.
-     * @return a newly-allocated {@link Bitmap}
+     * Returns the avatar as a bitmap, including the random avatar generation.
+     * @return a bitmap which might be shared, so it must not be recycled
      */
     @NonNull
     public synchronized Bitmap getAvatarBitmap(Context context) {
@@ -590,20 +773,20 @@ public class Contact {
 
     public static void invalidate(String userId) {
         cache.remove(userId);
+        sAvatarLoader.invalidate(userId);
         fireContactInvalidated(userId);
     }
 
     public static void invalidate() {
         cache.evictAll();
+        sAvatarLoader.invalidate();
         fireContactInvalidated(null);
     }
 
     /** Invalidates cached data for all contacts. Does not delete contact information. */
     public static void invalidateData() {
-        synchronized (cache) {
-            for (Contact c : cache.snapshot().values()) {
-                c.clear();
-            }
+        for (ContactCache.Entry e : cache.entries()) {
+            e.contact.clear();
         }
         // invalidate contact state
         sStates.clear();
@@ -639,30 +822,58 @@ public class Contact {
         Contact c = cache.get(jid);
         if (c == null) {
             // don't let the cache fetch contact data again - we'll populate it
-            final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
-            final String key = cursor.getString(COLUMN_LOOKUP_KEY);
-            final String name = cursor.getString(COLUMN_DISPLAY_NAME);
-            final String number = cursor.getString(COLUMN_NUMBER);
-            final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
-            final String status = cursor.getString(COLUMN_STATUS);
-            final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
-
-            c = new Contact(contactId, key, name, number, jid, blocked);
-            c.mRegistered = registered;
-            c.mStatus = status;
-
-            Uri uri = c.getUri();
-            if (uri != null) {
-                c.loadStructuredNameAsync(context);
-            }
+            c = createFromUsersCursor(context, cursor);
+            cache.put(jid, c);
+        }
+        return c;
+    }
 
-            retrieveKeyInfo(context, c);
+    private static Contact createFromUsersCursor(Context context, Cursor cursor) {
+        return createFromUsersCursor(context, cursor, true);
+    }
 
-            cache.put(jid, c);
+    private static Contact createFromUsersCursor(Context context, Cursor cursor, boolean keyInfo) {
+        final String jid = cursor.getString(COLUMN_JID);
+        final long contactId = cursor.getLong(COLUMN_CONTACT_ID);
+        final String key = cursor.getString(COLUMN_LOOKUP_KEY);
+        final String name = cursor.getString(COLUMN_DISPLAY_NAME);
+        final String number = cursor.getString(COLUMN_NUMBER);
+        final boolean registered = (cursor.getInt(COLUMN_REGISTERED) != 0);
+        final String status = cursor.getString(COLUMN_STATUS);
+        final boolean blocked = (cursor.getInt(COLUMN_BLOCKED) != 0);
+
+        Contact c = new Contact(contactId, key, name, number, jid, blocked);
+        c.mRegistered = registered;
+        c.mStatus = status;
+
+        Uri uri = c.getUri();
+        if (uri != null) {
+            c.loadStructuredNameAsync(context);
         }
+
+        if (keyInfo)
+            retrieveKeyInfo(context, c);
         return c;
     }
 
+    /**
+     * Loads the given users into the cache with a single query.
+     * Users already cached are skipped.
+     */
+    public static void prefetch(Context context, Collection<String> userIds) {
+        cache.prefetch(context, userIds);
+    }
+
+    /** Same as {@link #prefetch} but in a background thread. */
+    public static void prefetchAsync(Context context, Collection<String> userIds) {
+        cache.prefetchAsync(context, userIds);
+    }
+
+    /** Returns cache statistics, including the hit rate. */
+    public static String getCacheStats() {
+        return cache.getStats();
+    }
+
     public static String numberByUserId(Context context, String userId) {
         Cursor c = null;
         try {
@@ -701,6 +912,37 @@ public class Contact {
         return c;
     }
 
+    /**
+     * Loads a contact in the background, e.g. while binding a list item. The
+     * callback is called immediately if the contact is already cached,
+     * otherwise from a background thread.
+     */
+    public static void findByUserIdAsync(Context context, @NonNull final String userId,
+            final ContactLoadedCallback callback) {
+        if (cache.contains(XmppStringUtils.parseBareJid(userId))) {
+            callback.contactLoaded(findByUserId(context, userId));
+            return;
+        }
+
+        // avoid keeping a local context from an unrelated thread
+        final Context globalContext = context.getApplicationContext();
+        cache.execute(new Runnable() {
+            @Override
+            public void run() {
+                Contact c;
+                try {
+                    c = findByUserId(globalContext, userId);
+                }
+                catch (Exception e) {
+                    // do not throw any exception while loading
+                    Log.w(TAG, "error loading contact " + userId, e);
+                    return;
+                }
+                callback.contactLoaded(c);
+            }
+        });
+    }
+
     private static void retrieveKeyInfo(Context context, Contact c) {
         // trusted key
         Keyring.TrustedPublicKeyData trustedKeyring = Keyring.getPublicKeyData(context, c.getJID(), Keys.TRUST_IGNORED);
@@ -712,6 +954,50 @@ public class Contact {
         }
     }
 
+    private static void setKeyInfo(Contact c, Keyring.KeyInfo keyInfo) {
+        if (keyInfo != null) {
+            c.mFingerprint = keyInfo.fingerprint;
+            if (keyInfo.trustedKey != null) {
+                c.mTrustedKeyRing = new PGPLazyPublicKeyRingLoader(keyInfo.trustedKey.keyData);
+                c.mTrustedLevel = keyInfo.trustedKey.trustLevel;
+            }
+        }
+    }
+
+    private static Contact lookupSystemContact(Context context, String userId, String numberHint) {
+        Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
+        ContentResolver resolver = context.getContentResolver();
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
+        Cursor cur = resolver.query(uri, new String[] {
+                    PhoneLookup.DISPLAY_NAME,
+                    PhoneLookup.LOOKUP_KEY,
+                    PhoneLookup._ID,
+                }, null, null, null);
+        Contact c = null;
+        if (cur.moveToFirst()) {
+            String name = cur.getString(0);
+            String lookupKey = cur.getString(1);
+            long cid = cur.getLong(2);
+
+            c = new Contact(cid, lookupKey, name, numberHint, userId, false);
+            Uri contactUri = c.getUri();
+            if (contactUri != null) {
+                c.loadStructuredNameAsync(context);
+            }
+
+            // insert result into users database immediately
+            ContentValues values = new ContentValues(5);
+            values.put(Users.NUMBER, numberHint);
+            values.put(Users.DISPLAY_NAME, name);
+            values.put(Users.JID, userId);
+            values.put(Users.LOOKUP_KEY, lookupKey);
+            values.put(Users.CONTACT_ID, cid);
+            resolver.insert(Users.CONTENT_URI, values);
+        }
+        cur.close();
+        return c;
+    }
+
     static Contact _findByUserId(Context context, String userId) {
         ContentResolver cres = context.getContentResolver();
         Cursor c = cres.query(Uri.withAppendedPath(Users.CONTENT_URI, userId),
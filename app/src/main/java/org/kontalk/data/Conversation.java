@@ -18,8 +18,10 @@
 
 package org.kontalk.data;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import android.content.AsyncQueryHandler;
@@ -187,6 +189,19 @@ public class Conversation {
         return cursor.getString(COLUMN_PEER);
     }
 
+    /** Returns the peers of all one-to-one conversations in the cursor. */
+    public static List<String> getPeers(Cursor cursor) {
+        List<String> peers = new ArrayList<>(cursor.getCount());
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (cursor.isNull(COLUMN_GROUP_JID))
+                peers.add(cursor.getString(COLUMN_PEER));
+        }
+        cursor.moveToPosition(position);
+        return peers;
+    }
+
     /** Holder for thread delete information. */
     public static final class DeleteThreadHolder {
         long id;
@@ -22,7 +22,9 @@ import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.jxmpp.util.XmppStringUtils;
 
@@ -33,6 +35,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.authenticator.Authenticator;
@@ -302,14 +305,18 @@ public class CompositeMessage {
         return mComponents;
     }
 
-    private void populateFromCursor(Cursor c) {
+    private void populateFromCursor(Cursor c, LongSparseArray<ReferencedMessage> referencedMessages) {
         // be sure to stick to our projection array
         mDatabaseId = c.getLong(COLUMN_ID);
         mId = c.getString(COLUMN_MESSAGE_ID);
         mTimestamp = c.getLong(COLUMN_TIMESTAMP);
         mStatusChanged = c.getLong(COLUMN_STATUS_CHANGED);
         mStatus = c.getInt(COLUMN_STATUS);
-        mRecipients = new ArrayList<>();
+        // recycled instances already have a recipients list
+        if (mRecipients != null)
+            mRecipients.clear();
+        else
+            mRecipients = new ArrayList<>();
         mEncrypted = (c.getShort(COLUMN_ENCRYPTED) > 0);
         mSecurityFlags = c.getInt(COLUMN_SECURITY);
         mServerTimestamp = c.getLong(COLUMN_SERVER_TIMESTAMP);
@@ -455,8 +462,12 @@ public class CompositeMessage {
             // in reply to
             long inReplyToId = c.getLong(COLUMN_IN_REPLY_TO);
             if (inReplyToId > 0) {
-                // load the referenced message
-                ReferencedMessage referencedMsg = ReferencedMessage.load(mContext, inReplyToId);
+                // load the referenced message, if it wasn't already
+                ReferencedMessage referencedMsg;
+                if (referencedMessages != null && referencedMessages.indexOfKey(inReplyToId) >= 0)
+                    referencedMsg = referencedMessages.get(inReplyToId);
+                else
+                    referencedMsg = ReferencedMessage.load(mContext, inReplyToId);
                 // a null message is allowed, meaning that it was not found
                 addComponent(new InReplyToComponent(referencedMsg));
             }
@@ -484,16 +495,58 @@ public class CompositeMessage {
         mEncrypted = false;
         mSecurityFlags = 0;
         mInReplyTo = 0;
+        if (mRecipients != null)
+            mRecipients.clear();
+        mComponents.clear();
     }
 
     /** Builds an instance from a {@link Cursor} row. */
     public static CompositeMessage fromCursor(Context context, Cursor cursor) {
-        CompositeMessage msg = new CompositeMessage(context);
-        msg.populateFromCursor(cursor);
-        // TODO
+        return fromCursor(context, cursor, null);
+    }
+
+    /**
+     * Builds a message from a cursor.
+     * @param referencedMessages prefetched referenced messages, see {@link #getReferencedMessageIds}
+     */
+    public static CompositeMessage fromCursor(Context context, Cursor cursor,
+            LongSparseArray<ReferencedMessage> referencedMessages) {
+        return fromCursor(context, cursor, referencedMessages, null);
+    }
+
+    /**
+     * Builds a message from a cursor, reusing an existing instance if possible.
+     * @param recycled a message that is not used anymore, or null to create a new one
+     */
+    public static CompositeMessage fromCursor(Context context, Cursor cursor,
+            LongSparseArray<ReferencedMessage> referencedMessages, CompositeMessage recycled) {
+        CompositeMessage msg;
+        if (recycled != null) {
+            msg = recycled;
+            msg.clear();
+            msg.mContext = context;
+        }
+        else {
+            msg = new CompositeMessage(context);
+        }
+        msg.populateFromCursor(cursor, referencedMessages);
         return msg;
     }
 
+    /** Returns the IDs of all the messages replied to by the messages in the cursor. */
+    public static Set<Long> getReferencedMessageIds(Cursor cursor) {
+        Set<Long> ids = new HashSet<>();
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            long inReplyToId = cursor.getLong(COLUMN_IN_REPLY_TO);
+            if (inReplyToId > 0)
+                ids.add(inReplyToId);
+        }
+        cursor.moveToPosition(position);
+        return ids;
+    }
+
     /** Holder for message delete information. */
     public static final class DeleteMessageHolder {
         long id;
@@ -18,8 +18,12 @@
 
 package org.kontalk.message;
 
+import java.util.Collection;
+import java.util.Iterator;
+
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
 
 import org.kontalk.util.MessageUtils;
 
@@ -55,6 +59,9 @@ public class ReferencedMessage {
     private static final int COLUMN_BODY_CONTENT = 6;
     //private static final int COLUMN_BODY_LENGTH = 7;
 
+    /** Maximum number of messages loaded in a single query. */
+    private static final int MAX_BATCH_SIZE = 500;
+
     private long mId;
     private String mMessageId;
     private String mPeer;
@@ -127,6 +134,44 @@ public class ReferencedMessage {
 
     }
 
+    /**
+     * Loads the given messages with as few queries as possible.
+     * @return the loaded messages keyed by database ID. Messages not found
+     * or not supported are mapped to null.
+     */
+    public static LongSparseArray<ReferencedMessage> load(Context context, Collection<Long> ids) {
+        LongSparseArray<ReferencedMessage> messages = new LongSparseArray<>(ids.size());
+        Iterator<Long> iter = ids.iterator();
+        while (iter.hasNext()) {
+            StringBuilder selection = new StringBuilder(Messages._ID + " IN (");
+            for (int i = 0; i < MAX_BATCH_SIZE && iter.hasNext(); i++) {
+                long id = iter.next();
+                if (i > 0)
+                    selection.append(',');
+                selection.append(id);
+                // not found until proven otherwise
+                messages.put(id, null);
+            }
+            selection.append(')');
+
+            Cursor c = context.getContentResolver().query(Messages.CONTENT_URI,
+                MESSAGE_PROJECTION, selection.toString(), null, null);
+            if (c == null)
+                continue;
+
+            try {
+                while (c.moveToNext()) {
+                    if (TextComponent.supportsMimeType(c.getString(COLUMN_BODY_MIME)))
+                        messages.put(c.getLong(COLUMN_ID), fromCursor(c));
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+        return messages;
+    }
+
     public static ReferencedMessage load(Context context, String messageId) {
         Cursor c = null;
         try {
@@ -19,6 +19,7 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -28,10 +29,13 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 
 import org.kontalk.client.EndpointServer;
@@ -54,6 +58,31 @@ public class Keyring {
     @VisibleForTesting
     static final String VALUE_AUTOTRUST = "<autotrust>";
 
+    /** Maximum number of parsed public keys kept in memory. */
+    private static final int PUBLIC_KEY_CACHE_SIZE = 100;
+
+    /**
+     * Parsed public keys by JID and minimum trust level.
+     * Entries are invalidated by any change to the keys of a JID.
+     */
+    private static final LruCache<String, PGPPublicKeyRing> sPublicKeyCache =
+        new LruCache<>(PUBLIC_KEY_CACHE_SIZE);
+
+    /** Maximum number of public key fingerprints kept in memory. */
+    private static final int FINGERPRINT_CACHE_SIZE = 1000;
+    /** Cached value for users without a public key. */
+    private static final String NO_FINGERPRINT = "";
+
+    /**
+     * Fingerprints of the latest public key by JID.
+     * Entries are invalidated together with the parsed keys.
+     */
+    private static final LruCache<String, String> sFingerprintCache =
+        new LruCache<>(FINGERPRINT_CACHE_SIZE);
+
+    /** Incremented on every invalidation so concurrent loads won't cache stale data. */
+    private static int sPublicKeyCacheGeneration;
+
     private Keyring() {
     }
 
@@ -109,6 +138,7 @@ public class Keyring {
             values.put(MyUsers.Keys.TRUST_LEVEL, autoTrustedLevel);
         }
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        invalidatePublicKey(jid);
 
         if (autoTrustedLevel >= 0) {
             // delete the autotrust entry
@@ -127,9 +157,23 @@ public class Keyring {
         values.put(MyUsers.Keys.TIMESTAMP, date.getTime());
         if (trustLevel >= 0)
             values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
-        context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint)
+        context.getContentResolver().insert(getPresenceKeyUri(jid, fingerprint), values);
+    }
+
+    /**
+     * Returns an operation updating the fingerprint and the date (for
+     * fingerprint in presence), for use in a batch.
+     */
+    public static ContentProviderOperation setKeyOperation(String jid, String fingerprint, Date date) {
+        return ContentProviderOperation.newInsert(getPresenceKeyUri(jid, fingerprint))
+            .withValue(MyUsers.Keys.TIMESTAMP, date.getTime())
+            .build();
+    }
+
+    private static Uri getPresenceKeyUri(String jid, String fingerprint) {
+        return MyUsers.Keys.getUri(jid, fingerprint)
             // since we are handling data from a presence, insert only if it doesn't exist
-            .buildUpon().appendQueryParameter(MyUsers.Keys.INSERT_ONLY, "true").build(), values);
+            .buildUpon().appendQueryParameter(MyUsers.Keys.INSERT_ONLY, "true").build();
     }
 
     /** Sets the trust level for the given key. */
@@ -137,6 +181,7 @@ public class Keyring {
         ContentValues values = new ContentValues(1);
         values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        invalidatePublicKey(jid);
     }
 
     public static void setAutoTrustLevel(Context context, String jid, int trustLevel) {
@@ -165,10 +210,25 @@ public class Keyring {
      * @param trustLevel the minimum trust level to consider
      */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, int trustLevel) {
+        String cacheKey = jid + "|" + trustLevel;
+        int generation;
+        synchronized (sPublicKeyCache) {
+            PGPPublicKeyRing cached = sPublicKeyCache.get(cacheKey);
+            if (cached != null)
+                return cached;
+            generation = sPublicKeyCacheGeneration;
+        }
+
         TrustedPublicKeyData key = getPublicKeyData(context, jid, trustLevel);
 
         try {
-            return PGP.readPublicKeyring(key.keyData);
+            PGPPublicKeyRing ring = PGP.readPublicKeyring(key.keyData);
+            synchronized (sPublicKeyCache) {
+                // keys might have changed in the meantime
+                if (generation == sPublicKeyCacheGeneration)
+                    sPublicKeyCache.put(cacheKey, ring);
+            }
+            return ring;
         }
         catch (Exception e) {
             // ignored
@@ -177,6 +237,73 @@ public class Keyring {
         return null;
     }
 
+    /**
+     * Retrieves the fingerprint of the latest public key of the given user
+     * without loading or parsing the key ring.
+     * @return the fingerprint or null if no public key is available
+     */
+    public static String getPublicKeyFingerprint(Context context, String jid) {
+        int generation;
+        synchronized (sPublicKeyCache) {
+            String cached = sFingerprintCache.get(jid);
+            if (cached != null)
+                return cached.length() > 0 ? cached : null;
+            generation = sPublicKeyCacheGeneration;
+        }
+
+        String fingerprint = null;
+        Cursor c = context.getContentResolver().query(MyUsers.Keys.getUri(jid),
+            new String[] { MyUsers.Keys.FINGERPRINT },
+            MyUsers.Keys.TRUST_LEVEL + " >= " + MyUsers.Keys.TRUST_UNKNOWN + " AND " +
+            MyUsers.Keys.FINGERPRINT + " <> ? AND " +
+            MyUsers.Keys.PUBLIC_KEY + " IS NOT NULL",
+            new String[] { VALUE_AUTOTRUST }, MyUsers.Keys.TIMESTAMP + " DESC");
+        if (c != null) {
+            if (c.moveToFirst())
+                fingerprint = c.getString(0);
+            c.close();
+        }
+
+        synchronized (sPublicKeyCache) {
+            // keys might have changed in the meantime
+            if (generation == sPublicKeyCacheGeneration)
+                sFingerprintCache.put(jid, fingerprint != null ? fingerprint : NO_FINGERPRINT);
+        }
+        return fingerprint;
+    }
+
+    /** Discards cached public keys for the given JID. */
+    public static void invalidatePublicKey(String jid) {
+        String prefix = jid + "|";
+        synchronized (sPublicKeyCache) {
+            sPublicKeyCacheGeneration++;
+            sFingerprintCache.remove(jid);
+            for (String cacheKey : sPublicKeyCache.snapshot().keySet()) {
+                if (cacheKey.startsWith(prefix))
+                    sPublicKeyCache.remove(cacheKey);
+            }
+        }
+    }
+
+    /** Discards all cached public keys. */
+    public static void invalidatePublicKeys() {
+        synchronized (sPublicKeyCache) {
+            sPublicKeyCacheGeneration++;
+            sPublicKeyCache.evictAll();
+            sFingerprintCache.evictAll();
+        }
+    }
+
+    /** Returns the number of public key lookups served from memory. */
+    public static int getPublicKeyCacheHits() {
+        return sPublicKeyCache.hitCount();
+    }
+
+    /** Returns the number of public key lookups that required a database query. */
+    public static int getPublicKeyCacheMisses() {
+        return sPublicKeyCache.missCount();
+    }
+
     /**
      * Retrieves the latest public key with the minimum given trust level.
      * @param trustLevel the minimum trust level to consider
@@ -198,6 +325,81 @@ public class Keyring {
         return data;
     }
 
+    /**
+     * Retrieves the latest fingerprint and the latest trusted public key of
+     * the given users with a single query. Same as calling
+     * {@link #getFingerprint} with {@link MyUsers.Keys#TRUST_UNKNOWN} and
+     * {@link #getPublicKeyData} with {@link MyUsers.Keys#TRUST_IGNORED}
+     * for every user.
+     * @return key information by JID, users without keys are not included
+     */
+    public static Map<String, KeyInfo> getKeyInfo(Context context, Collection<String> jids) {
+        Map<String, KeyInfo> result = new HashMap<>(jids.size());
+        if (jids.isEmpty())
+            return result;
+
+        StringBuilder selection = new StringBuilder(MyUsers.Keys.JID + " IN (");
+        String[] args = new String[jids.size() + 1];
+        int i = 0;
+        for (String jid : jids) {
+            if (i > 0)
+                selection.append(',');
+            selection.append('?');
+            args[i++] = jid;
+        }
+        selection.append(") AND ")
+            .append(MyUsers.Keys.TRUST_LEVEL).append(" >= ").append(MyUsers.Keys.TRUST_UNKNOWN)
+            .append(" AND ")
+            .append(MyUsers.Keys.FINGERPRINT).append(" <> ?");
+        args[i] = VALUE_AUTOTRUST;
+
+        Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI,
+            new String[] {
+                MyUsers.Keys.JID,
+                MyUsers.Keys.FINGERPRINT,
+                MyUsers.Keys.PUBLIC_KEY,
+                MyUsers.Keys.TRUST_LEVEL,
+            }, selection.toString(), args,
+            MyUsers.Keys.JID + ", " + MyUsers.Keys.TIMESTAMP + " DESC");
+        if (c == null)
+            return result;
+
+        try {
+            String currentJid = null;
+            String fingerprint = null;
+            TrustedPublicKeyData trustedKey = null;
+            boolean trustedFound = false;
+            while (c.moveToNext()) {
+                String jid = c.getString(0);
+                if (!jid.equals(currentJid)) {
+                    if (currentJid != null)
+                        result.put(currentJid, new KeyInfo(fingerprint, trustedKey));
+                    currentJid = jid;
+                    // the latest key gives the fingerprint
+                    fingerprint = c.getString(1);
+                    trustedKey = null;
+                    trustedFound = false;
+                }
+                if (!trustedFound) {
+                    int trustLevel = c.getInt(3);
+                    if (trustLevel >= MyUsers.Keys.TRUST_IGNORED) {
+                        // the latest trusted key, even if it has no data
+                        byte[] keyData = c.getBlob(2);
+                        if (keyData != null)
+                            trustedKey = new TrustedPublicKeyData(keyData, trustLevel);
+                        trustedFound = true;
+                    }
+                }
+            }
+            if (currentJid != null)
+                result.put(currentJid, new KeyInfo(fingerprint, trustedKey));
+        }
+        finally {
+            c.close();
+        }
+        return result;
+    }
+
     private static Cursor queryLatestWithMinimumTrustLevel(Context context, String jid, int trustLevel, String... columns) {
         return context.getContentResolver().query(MyUsers.Keys.getUri(jid), columns,
             MyUsers.Keys.TRUST_LEVEL + " >= " + trustLevel + " AND "+
@@ -314,6 +516,19 @@ public class Keyring {
         }
     }
 
+    /** Latest fingerprint and trusted public key of a user, see {@link #getKeyInfo}. */
+    public static final class KeyInfo {
+        /** The latest fingerprint, possibly of an untrusted key. */
+        public final String fingerprint;
+        /** The latest trusted key, or null. */
+        public final TrustedPublicKeyData trustedKey;
+
+        KeyInfo(String fingerprint, TrustedPublicKeyData trustedKey) {
+            this.fingerprint = fingerprint;
+            this.trustedKey = trustedKey;
+        }
+    }
+
     public static final class TrustedPublicKeyData {
         public final byte[] keyData;
         public final int trustLevel;
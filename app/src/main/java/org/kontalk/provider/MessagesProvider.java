@@ -19,15 +19,23 @@
 package org.kontalk.provider;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -63,7 +71,8 @@ public class MessagesProvider extends ContentProvider {
     static final String TAG = MessagesProvider.class.getSimpleName();
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".messages";
 
-    private static final String TABLE_MESSAGES = "messages";
+    @VisibleForTesting
+    static final String TABLE_MESSAGES = "messages";
     private static final String TABLE_MESSAGES_GROUPS = "messages_groups";
     private static final String TABLE_FULLTEXT = "fulltext";
     private static final String TABLE_THREADS = "threads";
@@ -91,6 +100,8 @@ public class MessagesProvider extends ContentProvider {
     private static final int REQUESTS = 14;
 
     private DatabaseHelper dbHelper;
+    /** Batch operation running on the current thread, if any. */
+    private final ThreadLocal<BatchState> mBatch = new ThreadLocal<>();
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
@@ -98,10 +109,23 @@ public class MessagesProvider extends ContentProvider {
     private static HashMap<String, String> groupsMembersProjectionMap;
     private static HashMap<String, String> groupsProjectionMap;
 
+    /** State of a batch operation (bulk insert or operations batch). */
+    private static final class BatchState {
+        /** Threads resolved during the batch, by peer. */
+        final Map<String, Long> threads = new HashMap<>();
+        /** Threads whose metadata need to be updated at the end of the batch. */
+        final Set<Long> dirtyThreads = new HashSet<>();
+        /** Change notifications to be sent at the end of the batch. */
+        final Set<Uri> notifications = new LinkedHashSet<>();
+
+        BatchState() {
+        }
+    }
+
     @VisibleForTesting
     static class DatabaseHelper extends SQLiteOpenHelper {
         @VisibleForTesting
-        static final int DATABASE_VERSION = 18;
+        static final int DATABASE_VERSION = 19;
         @VisibleForTesting
         static final String DATABASE_NAME = "messages.db";
 
@@ -238,39 +262,46 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        private static final String SCHEMA_MESSAGES_THREAD_ID_IDX =
-            "CREATE INDEX IF NOT EXISTS idx_messages_thread_id ON " + TABLE_MESSAGES +
-            "(" + Messages.THREAD_ID + ")";
-
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread/new count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
+        /**
+         * Index for the latest message lookup used by the thread status update.
+         * It also covers lookups by thread_id alone.
+         */
+        private static final String SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_timestamp ON " + TABLE_MESSAGES +
+            "(" + Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ")";
+
+        /**
+         * Updates the thread counters on insert.
+         * Delta arithmetic is used so that the cost doesn't depend on the thread size.
+         */
+        private static final String UPDATE_COUNTERS_INSERT =
             "UPDATE " + TABLE_THREADS + " SET " +
-                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND unread <> 0), " +
-                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND \"new\" <> 0) " +
+                "count = count + 1, " +
+                "unread = unread + (new.unread <> 0), " +
+                "\"new\" = \"new\" + (new.\"new\" <> 0) " +
                 "WHERE _id = new.thread_id";
+
+        /** Updates the thread counters on delete. */
+        private static final String UPDATE_COUNTERS_DELETE =
+            "UPDATE " + TABLE_THREADS + " SET " +
+                "count = MAX(count - 1, 0), " +
+                "unread = MAX(unread - (old.unread <> 0), 0), " +
+                "\"new\" = MAX(\"new\" - (old.\"new\" <> 0), 0) " +
+                "WHERE _id = old.thread_id";
+
+        /** Updates the thread unread/new counters when the flags of a message change. */
         private static final String UPDATE_UNREAD_COUNT_OLD =
             "UPDATE " + TABLE_THREADS + " SET " +
-                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id AND unread <> 0), " +
-                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id AND \"new\" <> 0) " +
+                "unread = MAX(unread - (old.unread <> 0), 0), " +
+                "\"new\" = MAX(\"new\" - (old.\"new\" <> 0), 0) " +
                 "WHERE _id = old.thread_id";
+        private static final String UPDATE_UNREAD_COUNT_NEW =
+            "UPDATE " + TABLE_THREADS + " SET " +
+                "unread = unread + (new.unread <> 0), " +
+                "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+                "WHERE _id = new.thread_id";
 
         /** Updates the thread status reflected by the latest message. */
-        /*
-        private static final String UPDATE_STATUS_OLD =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = old.thread_id";
-        */
         private static final String UPDATE_STATUS_NEW =
             "UPDATE " + TABLE_THREADS + " SET status = (" +
             "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
@@ -280,8 +311,7 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
+            UPDATE_COUNTERS_INSERT    + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
@@ -293,6 +323,16 @@ public class MessagesProvider extends ContentProvider {
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
+        /** This trigger will update the threads unread/new counters on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_UNREAD =
+            "CREATE TRIGGER update_thread_on_update_unread AFTER UPDATE OF " +
+                Messages.UNREAD + ", \"" + Messages.NEW + "\" ON " + TABLE_MESSAGES +
+            " WHEN (old.unread <> 0) <> (new.unread <> 0) OR (old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
+            " BEGIN " +
+            UPDATE_UNREAD_COUNT_OLD   + ";" +
+            UPDATE_UNREAD_COUNT_NEW   + ";" +
+            "END";
+
         /** Delete group members linked to thread. */
         private static final String DELETE_GROUP_MEMBERS = "DELETE FROM " + TABLE_GROUP_MEMBERS + " WHERE " +
             Groups.GROUP_JID + "=old." + Groups.GROUP_JID;
@@ -301,9 +341,8 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
-            // do not call this here -- UPDATE_STATUS_OLD         + ";" +
+            UPDATE_COUNTERS_DELETE    + ";" +
+            // status will be updated by updateThreadInfo()
             "END";
 
         /** This trigger will delete group members when a group is deleted. */
@@ -425,6 +464,51 @@ public class MessagesProvider extends ContentProvider {
             "ALTER TABLE threads ADD COLUMN archived NOT NULL DEFAULT 0",
         };
 
+        private static final String[] SCHEMA_UPGRADE_V18 = {
+            "DROP INDEX IF EXISTS idx_messages_thread_id",
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_timestamp ON messages(thread_id, timestamp)",
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON messages" +
+                " BEGIN " +
+                "UPDATE threads SET " +
+                    "count = count + 1, " +
+                    "unread = unread + (new.unread <> 0), " +
+                    "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+                    "WHERE _id = new.thread_id;" +
+                "UPDATE threads SET status = (" +
+                    "SELECT status FROM messages WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
+                    " WHERE _id = new.thread_id;" +
+                "END",
+            "DROP TRIGGER IF EXISTS update_thread_on_update_unread",
+            "CREATE TRIGGER update_thread_on_update_unread AFTER UPDATE OF " +
+                "unread, \"new\" ON messages" +
+                " WHEN (old.unread <> 0) <> (new.unread <> 0) OR (old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
+                " BEGIN " +
+                "UPDATE threads SET " +
+                    "unread = MAX(unread - (old.unread <> 0), 0), " +
+                    "\"new\" = MAX(\"new\" - (old.\"new\" <> 0), 0) " +
+                    "WHERE _id = old.thread_id;" +
+                "UPDATE threads SET " +
+                    "unread = unread + (new.unread <> 0), " +
+                    "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+                    "WHERE _id = new.thread_id;" +
+                "END",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON messages" +
+                " BEGIN " +
+                "UPDATE threads SET " +
+                    "count = MAX(count - 1, 0), " +
+                    "unread = MAX(unread - (old.unread <> 0), 0), " +
+                    "\"new\" = MAX(\"new\" - (old.\"new\" <> 0), 0) " +
+                    "WHERE _id = old.thread_id;" +
+                "END",
+            // counters will be maintained incrementally from now on, start from exact values
+            "UPDATE threads SET " +
+                "count = (SELECT COUNT(_id) FROM messages WHERE thread_id = threads._id), " +
+                "unread = (SELECT COUNT(_id) FROM messages WHERE thread_id = threads._id AND unread <> 0), " +
+                "\"new\" = (SELECT COUNT(_id) FROM messages WHERE thread_id = threads._id AND \"new\" <> 0)",
+        };
+
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
@@ -439,9 +523,10 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_FULLTEXT);
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
-            db.execSQL(SCHEMA_MESSAGES_THREAD_ID_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
+            db.execSQL(TRIGGER_THREADS_UPDATE_UNREAD);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
             db.execSQL(TRIGGER_GROUPS_DELETE_MEMBERS);
         }
@@ -502,6 +587,11 @@ public class MessagesProvider extends ContentProvider {
                         db.execSQL(sql);
                     }
                     // fall through
+                case 18:
+                    for (String sql : SCHEMA_UPGRADE_V18) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
             }
         }
     }
@@ -517,6 +607,11 @@ public class MessagesProvider extends ContentProvider {
         dbHelper.close();
     }
 
+    @VisibleForTesting
+    SQLiteDatabase getWritableDatabase() {
+        return dbHelper.getWritableDatabase();
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -643,139 +738,238 @@ public class MessagesProvider extends ContentProvider {
         if (match != MESSAGES && match != REQUESTS && match != GROUPS && match != GROUPS_MEMBERS)
             throw new IllegalArgumentException("Unknown URI " + uri);
 
-        // if this column is present, we'll insert the thread only
-        String draft = initialValues.getAsString(Threads.DRAFT);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Collection<Uri> notifications = new LinkedHashSet<>();
 
-        ContentValues values = new ContentValues(initialValues);
+        db.beginTransactionNonExclusive();
+
+        try {
+            Uri result = insertInternal(db, uri, match, initialValues, notifications);
+            db.setTransactionSuccessful();
+            return result;
+        }
+        finally {
+            db.endTransaction();
+            notifyChanges(notifications);
+        }
+    }
+
+    /**
+     * Inserts multiple messages in a single transaction. Each thread is resolved
+     * only once and change notifications are sent once per thread.
+     * Duplicated messages are skipped.
+     * @return the number of messages actually inserted
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (sUriMatcher.match(uri) != MESSAGES)
+            return super.bulkInsert(uri, values);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        List<Uri> notifications = new ArrayList<>();
+        BatchState batch = new BatchState();
+        int count = 0;
 
+        mBatch.set(batch);
         db.beginTransactionNonExclusive();
 
         try {
-            switch (match) {
-                case GROUPS:
-                    // configure thread as group
-                    insertGroup(db, values, notifications);
-                    db.setTransactionSuccessful();
-                    // no uri needed
-                    return null;
-                case GROUPS_MEMBERS:
-                    // insert members into group
-                    String groupJid = uri.getPathSegments().get(1);
-                    insertGroupMembers(db, groupJid, values);
-                    db.setTransactionSuccessful();
-                    // no uri needed
-                    return null;
-            }
+            for (ContentValues v : values) {
+                if (v == null)
+                    continue;
 
-            // we need to know if there previously was a pending request
-            // so we can decide if we have to fire a notification or not
-            boolean requestExists = false;
-            if (match == REQUESTS) {
-                requestExists = isRequestPending(db, initialValues.getAsString(Threads.PEER));
+                try {
+                    if (insertInternal(db, uri, MESSAGES, v, batch.notifications) != null)
+                        count++;
+                }
+                catch (SQLiteConstraintException e) {
+                    // duplicated message, skip it
+                }
             }
 
-            // create the thread first
-            long threadId = updateThreads(db, values, notifications, match == REQUESTS);
-            values.put(Messages.THREAD_ID, threadId);
+            commitBatch(db, batch);
+            db.setTransactionSuccessful();
+            return count;
+        }
+        finally {
+            db.endTransaction();
+            mBatch.remove();
+            notifyChanges(batch.notifications);
+        }
+    }
 
-            if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
-                // notify thread change
-                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                // notify conversation change
-                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+    /**
+     * Applies all operations in a single transaction. Message inserts will
+     * resolve each thread only once and change notifications are coalesced.
+     * Unlike {@link #bulkInsert}, a duplicated message will fail the whole batch.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        BatchState batch = new BatchState();
 
-                db.setTransactionSuccessful();
+        mBatch.set(batch);
+        db.beginTransactionNonExclusive();
 
-                // draft or request - return conversation
-                return (draft != null || !requestExists) ?
-                    ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId) : null;
-            }
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            commitBatch(db, batch);
+            db.setTransactionSuccessful();
+            return results;
+        }
+        finally {
+            db.endTransaction();
+            mBatch.remove();
+            notifyChanges(batch.notifications);
+        }
+    }
 
-            // remove reserved columns
-            values.remove(Groups.GROUP_JID);
-            values.remove(Groups.SUBJECT);
-            values.remove(Groups.GROUP_TYPE);
-            values.remove(Threads.ENCRYPTION);
+    /** Updates metadata of threads that received more than one message in a batch. */
+    private void commitBatch(SQLiteDatabase db, BatchState batch) {
+        for (Long threadId : batch.dirtyThreads) {
+            updateThreadInfo(db, threadId, batch.notifications);
+        }
+    }
 
-            // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+    /**
+     * Sends the given change notifications, or queues them to the current
+     * batch if one is running on this thread.
+     */
+    private void notifyChanges(Collection<Uri> notifications) {
+        BatchState batch = mBatch.get();
+        if (batch != null) {
+            if (batch.notifications != notifications)
+                batch.notifications.addAll(notifications);
+            return;
+        }
 
-            /*
-             * this will be useful one day perhaps :)
-            long rowId = 0;
-            try {
-                rowId = db.insert(TABLE_MESSAGES, null, values);
-            }
-            catch (SQLiteConstraintException e) {
-                // unique constraint is on msg_id, direction
-                // already stored message, skip it and return uri
-                Cursor c = null;
-                try {
-                    c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
-                        Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
-                        new String[] {
-                            values.getAsString(Messages.MESSAGE_ID),
-                            values.getAsString(Messages.DIRECTION)
-                        }, null, null, null, "1");
-                    if (c.moveToFirst()) {
-                        rowId = c.getLong(0);
-                        return ContentUris.withAppendedId(uri, rowId);
-                    }
-                }
-                finally {
-                    try {
-                        c.close();
-                    }
-                    catch (Exception eClose) {
-                        // ignore exception
-                    }
-                }
+        ContentResolver cr = getContext().getContentResolver();
+        for (Uri nuri : notifications)
+            cr.notifyChange(nuri, null);
+    }
 
-                // message not found (WHAT???)
-                throw e;
-            }
-            */
-
-            if (rowId > 0) {
-                if (threadId != Messages.NO_THREAD) {
-                    // update fulltext table
-                    byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
-                    String mime = values.getAsString(Messages.BODY_MIME);
-                    Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
-                    if (content != null && content.length > 0 && TextComponent.MIME_TYPE.equals(mime) &&
-                            (encrypted == null || !encrypted)) {
-                        updateFulltext(db, rowId, threadId, content);
-                    }
-                }
+    private Uri insertInternal(SQLiteDatabase db, Uri uri, int match, ContentValues initialValues, Collection<Uri> notifications) {
+        // if this column is present, we'll insert the thread only
+        String draft = initialValues.getAsString(Threads.DRAFT);
 
-                Uri msgUri = ContentUris.withAppendedId(uri, rowId);
-                notifications.add(msgUri);
+        ContentValues values = new ContentValues(initialValues);
 
-                if (threadId != Messages.NO_THREAD) {
-                    // notify thread change
-                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                    // notify conversation change
-                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+        switch (match) {
+            case GROUPS:
+                // configure thread as group
+                insertGroup(db, values, notifications);
+                // no uri needed
+                return null;
+            case GROUPS_MEMBERS:
+                // insert members into group
+                String groupJid = uri.getPathSegments().get(1);
+                insertGroupMembers(db, groupJid, values);
+                // no uri needed
+                return null;
+        }
+
+        // we need to know if there previously was a pending request
+        // so we can decide if we have to fire a notification or not
+        boolean requestExists = false;
+        if (match == REQUESTS) {
+            requestExists = isRequestPending(db, initialValues.getAsString(Threads.PEER));
+        }
+
+        // messages in a batch will resolve their thread only once
+        BatchState batch = mBatch.get();
+        String threadPeer = null;
+        if (batch != null && match == MESSAGES && draft == null &&
+                !initialValues.containsKey(Messages.THREAD_ID)) {
+            // avoid touching the thread for duplicated messages
+            if (isMessageExisting(db, initialValues))
+                throw new SQLiteConstraintException("duplicated message");
+            threadPeer = getThreadPeer(initialValues);
+        }
+
+        // create the thread first
+        long threadId;
+        Long batchThreadId = threadPeer != null ? batch.threads.get(threadPeer) : null;
+        if (batchThreadId != null) {
+            // thread metadata will be updated at the end of the batch
+            threadId = batchThreadId;
+            batch.dirtyThreads.add(threadId);
+        }
+        else {
+            threadId = updateThreads(db, values, notifications, match == REQUESTS);
+            if (threadPeer != null && threadId != Messages.NO_THREAD)
+                batch.threads.put(threadPeer, threadId);
+        }
+        values.put(Messages.THREAD_ID, threadId);
+
+        if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
+            // notify thread change
+            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+            // notify conversation change
+            notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+
+            // draft or request - return conversation
+            return (draft != null || !requestExists) ?
+                ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId) : null;
+        }
+
+        // remove reserved columns
+        values.remove(Groups.GROUP_JID);
+        values.remove(Groups.SUBJECT);
+        values.remove(Groups.GROUP_TYPE);
+        values.remove(Threads.ENCRYPTION);
+
+        // insert the new message now!
+        long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+
+        if (rowId > 0) {
+            if (threadId != Messages.NO_THREAD) {
+                // update fulltext table
+                byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
+                String mime = values.getAsString(Messages.BODY_MIME);
+                Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
+                if (content != null && content.length > 0 && TextComponent.MIME_TYPE.equals(mime) &&
+                        (encrypted == null || !encrypted)) {
+                    updateFulltext(db, rowId, threadId, content);
                 }
+            }
 
-                db.setTransactionSuccessful();
-                return msgUri;
+            Uri msgUri = ContentUris.withAppendedId(uri, rowId);
+            // a single notification on the parent URI will do for a batch
+            notifications.add(batch != null ? uri : msgUri);
+
+            if (threadId != Messages.NO_THREAD) {
+                // notify thread change
+                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                // notify conversation change
+                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
             }
 
-            throw new SQLException("Failed to insert row into " + uri);
-        }
-        finally {
-            db.endTransaction();
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            return msgUri;
         }
+
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    private boolean isMessageExisting(SQLiteDatabase db, ContentValues values) {
+        String msgId = values.getAsString(Messages.MESSAGE_ID);
+        Integer direction = values.getAsInteger(Messages.DIRECTION);
+        if (msgId == null || direction == null)
+            return false;
+
+        return DatabaseUtils.queryNumEntries(db, TABLE_MESSAGES,
+            Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
+            new String[] { msgId, String.valueOf(direction) }) > 0;
     }
 
-    private void insertGroup(SQLiteDatabase db, ContentValues values, List<Uri> notifications) {
+    /** Returns the thread peer for the given message values. */
+    private String getThreadPeer(ContentValues values) {
+        // group JID will be the thread peer in this case
+        String groupJid = values.getAsString(Groups.GROUP_JID);
+        return groupJid != null ? groupJid : values.getAsString(Threads.PEER);
+    }
+
+    private void insertGroup(SQLiteDatabase db, ContentValues values, Collection<Uri> notifications) {
         if (notifications != null) {
             long threadId = values.getAsLong(Groups.THREAD_ID);
             // notify thread change
@@ -859,7 +1053,7 @@ public class MessagesProvider extends ContentProvider {
      * A thread is created for the given message if not found.
      * @return the thread id
      */
-    private long updateThreads(SQLiteDatabase db, ContentValues initialValues, List<Uri> notifications, boolean requestOnly) {
+    private long updateThreads(SQLiteDatabase db, ContentValues initialValues, Collection<Uri> notifications, boolean requestOnly) {
         long threadId = -1;
         if (initialValues.containsKey(Messages.THREAD_ID)) {
             threadId = initialValues.getAsLong(Messages.THREAD_ID);
@@ -868,13 +1062,8 @@ public class MessagesProvider extends ContentProvider {
         }
 
         ContentValues values = new ContentValues();
-        // group JID will be the thread peer in this case
-        String peer;
         String groupJid = initialValues.getAsString(Groups.GROUP_JID);
-        if (groupJid != null)
-            peer = groupJid;
-        else
-            peer = initialValues.getAsString(Threads.PEER);
+        String peer = getThreadPeer(initialValues);
 
         values.put(Threads.PEER, peer);
         values.put(Threads.TIMESTAMP, initialValues.getAsLong(Messages.TIMESTAMP));
@@ -1195,11 +1384,8 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            if (notifications != null) {
-                ContentResolver cr = getContext().getContentResolver();
-                for (Uri nuri : notifications)
-                    cr.notifyChange(nuri, null);
-            }
+            if (notifications != null)
+                notifyChanges(notifications);
         }
     }
 
@@ -1414,15 +1600,13 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             db.endTransaction();
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
     }
 
-    private void updateThreadAfterDelete(SQLiteDatabase db, long threadId, @Nullable List<Uri> notifications) {
+    private void updateThreadAfterDelete(SQLiteDatabase db, long threadId, @Nullable Collection<Uri> notifications) {
         // check for empty threads
         if (deleteEmptyThreads(db) > 0 && notifications != null)
             notifications.add(Threads.CONTENT_URI);
@@ -1481,7 +1665,7 @@ public class MessagesProvider extends ContentProvider {
     }
 
     /** Updates metadata of a given thread. */
-    private void updateThreadInfo(SQLiteDatabase db, long threadId, @Nullable List<Uri> notifications) {
+    private void updateThreadInfo(SQLiteDatabase db, long threadId, @Nullable Collection<Uri> notifications) {
         Cursor c = db.query(TABLE_MESSAGES_GROUPS, new String[] {
                 Messages.MESSAGE_ID,
                 Messages.DIRECTION,
@@ -1522,17 +1706,7 @@ public class MessagesProvider extends ContentProvider {
             }
             c.close();
 
-            // extract counters now
-            c = db.rawQuery("SELECT SUM(unread), SUM(\"new\") FROM " + TABLE_MESSAGES + " WHERE " +
-                    Messages.THREAD_ID + " = ?",
-                new String[] { String.valueOf(threadId) });
-            if (c != null) {
-                if (c.moveToFirst()) {
-                    v.put(Threads.UNREAD, c.getLong(0));
-                    v.put(Threads.NEW, c.getLong(1));
-                }
-                c.close();
-            }
+            // counters are maintained by triggers
 
             db.update(TABLE_THREADS, v, Threads._ID + "=" + threadId, null);
             if (notifications != null) {
@@ -19,16 +19,23 @@
 package org.kontalk.provider;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import org.kontalk.Log;
 import org.kontalk.crypto.Coder;
@@ -177,6 +184,69 @@ public class MessagesProviderClient {
         }
     }
 
+    /**
+     * Stores multiple incoming messages in a single transaction.
+     * @return the message URIs, with null entries for duplicated messages
+     */
+    public static Uri[] newIncomingMessages(Context context, ContentValues[] values) {
+        Uri[] results = new Uri[values.length];
+
+        // a duplicated message would fail the whole batch
+        Set<String> skip = getIncomingMessageIds(context, values);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(values.length);
+        int[] indexes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (skip.add(values[i].getAsString(Messages.MESSAGE_ID))) {
+                indexes[ops.size()] = i;
+                ops.add(ContentProviderOperation.newInsert(Messages.CONTENT_URI)
+                    .withValues(values[i])
+                    .build());
+            }
+        }
+
+        if (ops.size() > 0) {
+            try {
+                ContentProviderResult[] opResults = context.getContentResolver()
+                    .applyBatch(MessagesProvider.AUTHORITY, ops);
+                for (int i = 0; i < opResults.length; i++)
+                    results[indexes[i]] = opResults[i].uri;
+            }
+            catch (RemoteException | OperationApplicationException | SQLiteConstraintException e) {
+                Log.w(MessagesProvider.TAG, "batch insert failed, inserting one by one", e);
+                for (int i = 0; i < ops.size(); i++)
+                    results[indexes[i]] = newIncomingMessage(context, values[indexes[i]]);
+            }
+        }
+
+        return results;
+    }
+
+    /** Returns the message IDs of the given incoming messages already in the database. */
+    private static Set<String> getIncomingMessageIds(Context context, ContentValues[] values) {
+        Set<String> ids = new HashSet<>();
+        if (values.length == 0)
+            return ids;
+
+        String[] args = new String[values.length];
+        StringBuilder where = new StringBuilder(Messages.DIRECTION + " = " +
+            Messages.DIRECTION_IN + " AND " + Messages.MESSAGE_ID + " IN (?");
+        for (int i = 0; i < values.length; i++) {
+            args[i] = values[i].getAsString(Messages.MESSAGE_ID);
+            if (i > 0)
+                where.append(",?");
+        }
+        where.append(")");
+
+        Cursor c = context.getContentResolver().query(Messages.CONTENT_URI,
+            new String[] { Messages.MESSAGE_ID }, where.toString(), args, null);
+        if (c != null) {
+            while (c.moveToNext())
+                ids.add(c.getString(0));
+            c.close();
+        }
+        return ids;
+    }
+
     public static Uri newChatRequest(Context context, String jid) {
         ContentValues values = new ContentValues(2);
         values.put(Threads.PEER, jid);
@@ -18,6 +18,9 @@
 
 package org.kontalk.provider;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -26,12 +29,18 @@ import java.util.Map;
 import com.android.providers.contacts.ContactLocaleUtils;
 import com.android.providers.contacts.FastScrollingIndexCache;
 
+import org.jxmpp.util.XmppStringUtils;
+
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -42,26 +51,29 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DeletedContacts;
 import android.provider.ContactsContract.RawContacts;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.authenticator.Authenticator;
-import org.kontalk.client.NumberValidator;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.client.PhoneNumberNormalizer;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.provider.MyUsers.Keys;
 import org.kontalk.provider.MyUsers.Users;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.sync.SyncAdapter;
-import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.XMPPUtils;
 
@@ -82,6 +94,12 @@ public class UsersProvider extends ContentProvider {
     private static final String TABLE_USERS_OFFLINE = "users_offline";
     private static final String TABLE_KEYS = "keys";
 
+    /** Memoized phone number normalization results. */
+    private static final String NUMBERS_CACHE_FILENAME = "phone_numbers.cache";
+
+    /** Maximum number of IDs in a single IN clause. */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private static final int USERS = 1;
     private static final int USERS_JID = 2;
     private static final int KEYS = 3;
@@ -582,8 +600,84 @@ public class UsersProvider extends ContentProvider {
         }
     }
 
-    /** Triggers a complete resync of the users database. */
+    /**
+     * Triggers a resync of the users database. Only contacts changed since
+     * the last resync are processed, if possible.
+     */
     private int resync() {
+        Context context = getContext();
+        long now = System.currentTimeMillis();
+
+        String signature = getResyncSignature(context);
+        long since = signature != null ?
+            Preferences.getContactsResyncTimestamp(signature) : -1;
+
+        // results from previous resyncs
+        PhoneNumberNormalizer normalizer = PhoneNumberNormalizer.create(context);
+        File cacheFile = new File(context.getCacheDir(), NUMBERS_CACHE_FILENAME);
+        if (cacheFile.isFile()) {
+            try {
+                normalizer.load(cacheFile);
+            }
+            catch (IOException e) {
+                Log.w(SyncAdapter.TAG, "unable to load phone numbers cache", e);
+            }
+        }
+
+        int count = -1;
+        if (since > 0 && canResyncIncremental(context, since, now)) {
+            count = resyncIncremental(since, normalizer);
+            if (count < 0)
+                Log.w(SyncAdapter.TAG, "incremental users database resync failed");
+        }
+
+        if (count < 0)
+            count = resyncFull(normalizer);
+
+        if (count >= 0 && signature != null)
+            Preferences.setContactsResyncTimestamp(now, signature);
+
+        try {
+            normalizer.save(cacheFile);
+        }
+        catch (IOException e) {
+            Log.w(SyncAdapter.TAG, "unable to save phone numbers cache", e);
+        }
+
+        return Math.max(count, 0);
+    }
+
+    /**
+     * Returns a string describing all the settings that affect the contents
+     * of the offline table. If any of them changes, a full resync is needed.
+     */
+    private static String getResyncSignature(Context context) {
+        String accountName = Authenticator.getDefaultAccountName(context);
+        EndpointServer server = Preferences.getEndpointServer(context);
+        if (accountName == null || server == null)
+            return null;
+
+        return accountName + "|" + server.getNetwork() + "|" +
+            Preferences.getDialPrefix() + "|" +
+            Preferences.getSyncInvisibleContacts(context) + "|" +
+            Preferences.getSyncSIMContacts(context);
+    }
+
+    private boolean canResyncIncremental(Context context, long since, long now) {
+        // SIM contacts have no way to tell what changed
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
+            // deleted contacts older than this are forgotten by the system
+            since >= now - DeletedContacts.DAYS_KEPT_MILLISECONDS &&
+            !Preferences.getSyncSIMContacts(context) &&
+            DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(), TABLE_USERS_OFFLINE) > 0;
+    }
+
+    /**
+     * Rebuilds the offline table from scratch.
+     * @return the number of contacts added, or -1 if the resync failed
+     */
+    @VisibleForTesting
+    int resyncFull(PhoneNumberNormalizer normalizer) {
         Context context = getContext();
         ContentResolver cr = context.getContentResolver();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
@@ -604,85 +698,23 @@ public class UsersProvider extends ContentProvider {
         }
 
         // we are trying to be fast here
-        SQLiteStatement stm = db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
-            " (number, jid, display_name, lookup_key, contact_id, registered)" +
-            " VALUES(?, ?, ?, ?, ?, ?)");
+        SQLiteStatement stm = compileOfflineInsert(db);
 
         // these two statements are used to immediately update data in the online table
         // even if the data is dummy, it will be soon replaced by sync or by manual request
-        SQLiteStatement onlineUpd = db.compileStatement("UPDATE " + TABLE_USERS +
-            " SET number = ?, display_name = ?, lookup_key = ?, contact_id = ? WHERE jid = ?");
-        SQLiteStatement onlineIns = db.compileStatement("INSERT INTO " + TABLE_USERS +
-            " (number, jid, display_name, lookup_key, contact_id, registered)" +
-            " VALUES(?, ?, ?, ?, ?, ?)");
+        SQLiteStatement onlineUpd = compileOnlineUpdate(db);
+        SQLiteStatement onlineIns = compileOnlineInsert(db);
 
         Cursor phones = null;
         String dialPrefix = Preferences.getDialPrefix();
         int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
 
         try {
-            String where = !Preferences.getSyncInvisibleContacts(context) ?
-                ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
-                "";
-
             // query for phone numbers
-            phones = cr.query(Phone.CONTENT_URI,
-                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
-                where + " (" +
-                // this will filter out RawContacts from Kontalk
-                RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
-                RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
-                new String[] {
-                    Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
-                }, null);
+            phones = queryPhones(cr, null);
 
             if (phones != null) {
-                while (phones.moveToNext()) {
-                    String number = phones.getString(0);
-                    String name = phones.getString(1);
-
-                    // buggy provider - skip entry
-                    if (name == null || number == null)
-                        continue;
-
-                    // remove dial prefix first
-                    if (dialPrefix != null && number.startsWith(dialPrefix))
-                        number = number.substring(dialPrefixLen);
-
-                    // a phone number with less than 4 digits???
-                    if (number.length() < 4)
-                        continue;
-
-                    // fix number
-                    try {
-                        number = NumberValidator.fixNumber(context, number,
-                            Authenticator.getDefaultAccountName(context), 0);
-                    }
-                    catch (Exception e) {
-                        Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
-                        // skip number
-                        continue;
-                    }
-
-                    try {
-                        String hash = MessageUtils.sha1(number);
-                        String lookupKey = phones.getString(2);
-                        long contactId = phones.getLong(3);
-                        String jid = XMPPUtils.createLocalJID(getContext(), hash);
-
-                        addResyncContact(db, stm, onlineUpd, onlineIns,
-                            number, jid, name,
-                            lookupKey, contactId, false);
-                        count++;
-                    }
-                    catch (IllegalArgumentException iae) {
-                        Log.w(SyncAdapter.TAG, "doing sync with no server?");
-                    }
-                    catch (SQLiteConstraintException sqe) {
-                        // skip duplicate number
-                    }
-                }
-
+                count += addResyncPhones(db, stm, onlineUpd, onlineIns, phones, normalizer);
                 phones.close();
             }
             else {
@@ -729,9 +761,9 @@ public class UsersProvider extends ContentProvider {
                             continue;
 
                         // fix number
+                        PhoneNumberNormalizer.Result normalized;
                         try {
-                            number = NumberValidator.fixNumber(context, number,
-                                    Authenticator.getDefaultAccountName(context), 0);
+                            normalized = normalizer.normalize(number);
                         }
                         catch (Exception e) {
                             Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
@@ -740,7 +772,8 @@ public class UsersProvider extends ContentProvider {
                         }
 
                         try {
-                            String hash = MessageUtils.sha1(number);
+                            number = normalized.number;
+                            String hash = normalized.hash;
                             String jid = XMPPUtils.createLocalJID(getContext(), hash);
                             long contactId = phones.getLong(phones.getColumnIndex(BaseColumns._ID));
 
@@ -761,41 +794,10 @@ public class UsersProvider extends ContentProvider {
             }
 
             // try to add account number with display name
-            String ownNumber = Authenticator.getDefaultAccountName(getContext());
-            if (ownNumber != null) {
-                String ownName = Authenticator.getDefaultDisplayName(getContext());
-                String fingerprint = null;
-                byte[] publicKeyData = null;
-                try {
-                    PersonalKey myKey = Kontalk.get(getContext()).getPersonalKey();
-                    if (myKey != null) {
-                        fingerprint = myKey.getFingerprint();
-                        publicKeyData = myKey.getEncodedPublicKeyRing();
-                    }
-                }
-                catch (Exception e) {
-                    Log.w(SyncAdapter.TAG, "unable to load personal key", e);
-                }
-                try {
-                    String hash = MessageUtils.sha1(ownNumber);
-                    String jid = XMPPUtils.createLocalJID(getContext(), hash);
-
-                    addResyncContact(db, stm, onlineUpd, onlineIns,
-                        ownNumber, jid, ownName,
-                        null, null,
-                        true);
-                    insertOrUpdateKey(jid, fingerprint, publicKeyData, false);
-                    count++;
-                }
-                catch (IllegalArgumentException iae) {
-                    Log.w(SyncAdapter.TAG, "doing sync with no server?");
-                }
-                catch (SQLiteConstraintException sqe) {
-                    // skip duplicate number
-                }
-            }
+            count += addResyncOwnContact(db, stm, onlineUpd, onlineIns);
 
             db.setTransactionSuccessful();
+            success = true;
         }
         catch (SecurityException e) {
             Log.w(SyncAdapter.TAG, "no access to contacts. Did you deny the permission?", e);
@@ -806,13 +808,304 @@ public class UsersProvider extends ContentProvider {
             if (phones != null)
                 phones.close();
             stm.close();
+            onlineUpd.close();
+            onlineIns.close();
+
+            // time to invalidate contacts cache (because of updates to online)
+            Contact.invalidate();
+        }
+        return success ? count : -1;
+    }
+
+    /**
+     * Updates the offline table with the contacts changed or deleted since
+     * the given time, leaving it as a full resync would.
+     * @return the number of contacts added, or -1 if the resync failed
+     */
+    @VisibleForTesting
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    int resyncIncremental(long since, PhoneNumberNormalizer normalizer) {
+        Context context = getContext();
+        ContentResolver cr = context.getContentResolver();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        // begin transaction
+        db.beginTransactionNonExclusive();
+        boolean success = false;
+
+        int count = 0;
+
+        SQLiteStatement stm = compileOfflineInsert(db);
+        SQLiteStatement onlineUpd = compileOnlineUpdate(db);
+        SQLiteStatement onlineIns = compileOnlineInsert(db);
+
+        Cursor c = null;
+        String[] sinceArgs = { String.valueOf(since) };
+
+        try {
+            // discard data from the last sync
+            resetOfflineUsers(context, db);
+
+            // deleted contacts
+            c = cr.query(DeletedContacts.CONTENT_URI,
+                new String[] { DeletedContacts.CONTACT_ID },
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?", sinceArgs, null);
+            if (c == null)
+                return -1;
+            List<Long> deletedIds = new ArrayList<>(c.getCount());
+            while (c.moveToNext())
+                deletedIds.add(c.getLong(0));
+            c.close();
+
+            // changed contacts - including the ones whose numbers were removed
+            c = cr.query(ContactsContract.Contacts.CONTENT_URI,
+                new String[] { ContactsContract.Contacts._ID },
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", sinceArgs, null);
+            if (c == null)
+                return -1;
+            List<Long> changedIds = new ArrayList<>(c.getCount());
+            while (c.moveToNext())
+                changedIds.add(c.getLong(0));
+            c.close();
+            c = null;
+
+            Log.v(SyncAdapter.TAG, "incremental resync: " + changedIds.size() +
+                " changed contacts, " + deletedIds.size() + " deleted contacts");
+
+            deleteOfflineContacts(db, deletedIds);
+            deleteOfflineContacts(db, changedIds);
+
+            // add numbers from changed contacts again
+            for (int i = 0; i < changedIds.size(); i += MAX_IDS_PER_QUERY) {
+                List<Long> ids = changedIds.subList(i,
+                    Math.min(i + MAX_IDS_PER_QUERY, changedIds.size()));
+                c = queryPhones(cr, Phone.CONTACT_ID + " IN (" + TextUtils.join(",", ids) + ")");
+                if (c == null)
+                    return -1;
+                count += addResyncPhones(db, stm, onlineUpd, onlineIns, c, normalizer);
+                c.close();
+                c = null;
+            }
+
+            // own contact was deleted by resetOfflineUsers
+            count += addResyncOwnContact(db, stm, onlineUpd, onlineIns);
+
+            db.setTransactionSuccessful();
+            success = true;
+        }
+        catch (SecurityException e) {
+            Log.w(SyncAdapter.TAG, "no access to contacts. Did you deny the permission?", e);
+            ReportingManager.logException(e);
+        }
+        finally {
+            db.endTransaction();
+            if (c != null)
+                c.close();
+            stm.close();
+            onlineUpd.close();
+            onlineIns.close();
 
             // time to invalidate contacts cache (because of updates to online)
             Contact.invalidate();
         }
+        return success ? count : -1;
+    }
+
+    /**
+     * Brings the offline table back to the state of a fresh resync: removes
+     * data coming from the last sync and users not coming from system
+     * contacts (e.g. our own account or users known only by the server).
+     */
+    private void resetOfflineUsers(Context context, SQLiteDatabase db) {
+        db.delete(TABLE_USERS_OFFLINE, Users.CONTACT_ID + " IS NULL", null);
+
+        ContentValues values = new ContentValues(4);
+        values.put(Users.REGISTERED, 0);
+        values.putNull(Users.STATUS);
+        values.putNull(Users.LAST_SEEN);
+        values.put(Users.BLOCKED, 0);
+        db.update(TABLE_USERS_OFFLINE, values, null, null);
+
+        // sync might have replaced our JIDs with the ones reported by the server
+        Cursor c = db.query(TABLE_USERS_OFFLINE, new String[] { Users._ID, Users.JID },
+            null, null, null, null, null);
+        try {
+            ContentValues jidValues = new ContentValues(1);
+            String[] args = new String[1];
+            while (c.moveToNext()) {
+                String jid = c.getString(1);
+                String localJid = XMPPUtils.createLocalJID(context,
+                    XmppStringUtils.parseLocalpart(jid));
+                if (!localJid.equals(jid)) {
+                    jidValues.put(Users.JID, localJid);
+                    args[0] = String.valueOf(c.getLong(0));
+                    try {
+                        db.update(TABLE_USERS_OFFLINE, jidValues, Users._ID + " = ?", args);
+                    }
+                    catch (SQLiteConstraintException e) {
+                        // duplicate number
+                        db.delete(TABLE_USERS_OFFLINE, Users._ID + " = ?", args);
+                    }
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    private void deleteOfflineContacts(SQLiteDatabase db, List<Long> contactIds) {
+        for (int i = 0; i < contactIds.size(); i += MAX_IDS_PER_QUERY) {
+            List<Long> ids = contactIds.subList(i,
+                Math.min(i + MAX_IDS_PER_QUERY, contactIds.size()));
+            db.delete(TABLE_USERS_OFFLINE, Users.CONTACT_ID + " IN (" +
+                TextUtils.join(",", ids) + ")", null);
+        }
+    }
+
+    /**
+     * Queries system contacts for phone numbers, skipping our own raw contacts.
+     * @param selection additional selection, may be null
+     */
+    private Cursor queryPhones(ContentResolver cr, String selection) {
+        String where = !Preferences.getSyncInvisibleContacts(getContext()) ?
+            ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
+            "";
+        if (selection != null)
+            where += selection + " AND ";
+
+        return cr.query(Phone.CONTENT_URI,
+            new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.LOOKUP_KEY, Phone.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
+            where + " (" +
+            // this will filter out RawContacts from Kontalk
+            RawContacts.ACCOUNT_TYPE + " IS NULL OR " +
+            RawContacts.ACCOUNT_TYPE + " NOT IN (?, ?))",
+            new String[] {
+                Authenticator.ACCOUNT_TYPE, Authenticator.ACCOUNT_TYPE_LEGACY
+            }, null);
+    }
+
+    /** Adds the phone numbers returned by {@link #queryPhones} to the offline table. */
+    private int addResyncPhones(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd,
+            SQLiteStatement onlineIns, Cursor phones, PhoneNumberNormalizer normalizer) {
+        String dialPrefix = Preferences.getDialPrefix();
+        int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
+
+        // collect numbers first so they can be normalized all at once
+        List<String> numbers = new ArrayList<>(phones.getCount());
+        List<String> names = new ArrayList<>(phones.getCount());
+        List<String> lookupKeys = new ArrayList<>(phones.getCount());
+        List<Long> contactIds = new ArrayList<>(phones.getCount());
+        while (phones.moveToNext()) {
+            String number = phones.getString(0);
+            String name = phones.getString(1);
+
+            // buggy provider - skip entry
+            if (name == null || number == null)
+                continue;
+
+            // remove dial prefix first
+            if (dialPrefix != null && number.startsWith(dialPrefix))
+                number = number.substring(dialPrefixLen);
+
+            // a phone number with less than 4 digits???
+            if (number.length() < 4)
+                continue;
+
+            numbers.add(number);
+            names.add(name);
+            lookupKeys.add(phones.getString(2));
+            contactIds.add(phones.getLong(3));
+        }
+
+        // fix numbers
+        Map<String, PhoneNumberNormalizer.Result> normalized = normalizer.normalizeAll(numbers);
+
+        int count = 0;
+        for (int i = 0; i < numbers.size(); i++) {
+            String number = numbers.get(i);
+            PhoneNumberNormalizer.Result result = normalized.get(number);
+            if (result == null) {
+                Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping");
+                // skip number
+                continue;
+            }
+
+            try {
+                String jid = XMPPUtils.createLocalJID(getContext(), result.hash);
+
+                addResyncContact(db, stm, onlineUpd, onlineIns,
+                    result.number, jid, names.get(i),
+                    lookupKeys.get(i), contactIds.get(i), false);
+                count++;
+            }
+            catch (IllegalArgumentException iae) {
+                Log.w(SyncAdapter.TAG, "doing sync with no server?");
+            }
+            catch (SQLiteConstraintException sqe) {
+                // skip duplicate number
+            }
+        }
+
         return count;
     }
 
+    /** Adds our own account to the offline table. */
+    private int addResyncOwnContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd,
+            SQLiteStatement onlineIns) {
+        String ownNumber = Authenticator.getDefaultAccountName(getContext());
+        if (ownNumber != null) {
+            String ownName = Authenticator.getDefaultDisplayName(getContext());
+            String fingerprint = null;
+            byte[] publicKeyData = null;
+            try {
+                PersonalKey myKey = Kontalk.get(getContext()).getPersonalKey();
+                if (myKey != null) {
+                    fingerprint = myKey.getFingerprint();
+                    publicKeyData = myKey.getEncodedPublicKeyRing();
+                }
+            }
+            catch (Exception e) {
+                Log.w(SyncAdapter.TAG, "unable to load personal key", e);
+            }
+            try {
+                String hash = XMPPUtils.createLocalpart(ownNumber);
+                String jid = XMPPUtils.createLocalJID(getContext(), hash);
+
+                addResyncContact(db, stm, onlineUpd, onlineIns,
+                    ownNumber, jid, ownName,
+                    null, null,
+                    true);
+                insertOrUpdateKey(jid, fingerprint, publicKeyData, false);
+                return 1;
+            }
+            catch (IllegalArgumentException iae) {
+                Log.w(SyncAdapter.TAG, "doing sync with no server?");
+            }
+            catch (SQLiteConstraintException sqe) {
+                // skip duplicate number
+            }
+        }
+        return 0;
+    }
+
+    private static SQLiteStatement compileOfflineInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_USERS_OFFLINE +
+            " (number, jid, display_name, lookup_key, contact_id, registered)" +
+            " VALUES(?, ?, ?, ?, ?, ?)");
+    }
+
+    private static SQLiteStatement compileOnlineUpdate(SQLiteDatabase db) {
+        return db.compileStatement("UPDATE " + TABLE_USERS +
+            " SET number = ?, display_name = ?, lookup_key = ?, contact_id = ? WHERE jid = ?");
+    }
+
+    private static SQLiteStatement compileOnlineInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_USERS +
+            " (number, jid, display_name, lookup_key, contact_id, registered)" +
+            " VALUES(?, ?, ?, ?, ?, ?)");
+    }
+
     private void addResyncContact(SQLiteDatabase db, SQLiteStatement stm, SQLiteStatement onlineUpd, SQLiteStatement onlineIns,
         String number, String jid, String displayName, String lookupKey,
         Long contactId, boolean registered) {
@@ -982,6 +1275,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (rows > 0)
+            Keyring.invalidatePublicKey(jid);
+
         if (rows >= 0)
             return Keys.CONTENT_URI.buildUpon()
                     .appendPath(jid)
@@ -1009,6 +1305,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (rows > 0)
+            Keyring.invalidatePublicKeys();
+
         return rows;
     }
 
@@ -1024,12 +1323,32 @@ public class UsersProvider extends ContentProvider {
         }
     }
 
+    /** Applies all operations in a single transaction. */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
     private int deleteKeys(String userId, String fingerprint, String selection, String[] selectionArgs) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         selection = DatabaseUtils.concatenateWhere(selection, Keys.JID + "=?");
         selection = DatabaseUtils.concatenateWhere(selection, Keys.FINGERPRINT + "=?");
         selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[] { userId, fingerprint });
-        return db.delete(TABLE_KEYS, selection, selectionArgs);
+        int rows = db.delete(TABLE_KEYS, selection, selectionArgs);
+        if (rows > 0)
+            Keyring.invalidatePublicKey(userId);
+        return rows;
     }
 
     @Override
@@ -0,0 +1,229 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * A priority queue of downloads with limits on concurrent downloads, both
+ * globally and per host. Requests with the same URL are de-duplicated.
+ * Requests with the same priority are served in FIFO order.
+ * This class is thread-safe.
+ */
+public class DownloadQueue<T extends DownloadQueue.Request> {
+
+    /** Normal priority (e.g. automatic downloads). */
+    public static final int PRIORITY_NORMAL = 0;
+    /** High priority (e.g. requested by the user or visible on screen). */
+    public static final int PRIORITY_HIGH = 10;
+
+    /** A download request. */
+    public static class Request {
+        final String url;
+        final String host;
+        int priority;
+        long sequence;
+
+        public Request(String url, int priority) {
+            this.url = url;
+            this.host = parseHost(url);
+            this.priority = priority;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        private static String parseHost(String url) {
+            try {
+                String host = URI.create(url).getHost();
+                if (host != null)
+                    return host.toLowerCase(Locale.US);
+            }
+            catch (IllegalArgumentException ignored) {
+            }
+            return "";
+        }
+    }
+
+    /** Higher priority first, then older requests first. */
+    private final Comparator<Request> mComparator = new Comparator<Request>() {
+        @Override
+        public int compare(Request lhs, Request rhs) {
+            if (lhs.priority != rhs.priority)
+                return lhs.priority > rhs.priority ? -1 : 1;
+            return lhs.sequence < rhs.sequence ? -1 :
+                (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private final TreeSet<T> mPending = new TreeSet<>(mComparator);
+    private final Map<String, T> mPendingByUrl = new HashMap<>();
+    private final Map<String, T> mRunning = new HashMap<>();
+    private final Map<String, Integer> mRunningByHost = new HashMap<>();
+
+    private int mMaxRunning;
+    private int mMaxPerHost;
+    private long mSequence;
+
+    public DownloadQueue(int maxRunning, int maxPerHost) {
+        setLimits(maxRunning, maxPerHost);
+    }
+
+    private void setLimits(int maxRunning, int maxPerHost) {
+        if (maxRunning < 1 || maxPerHost < 1)
+            throw new IllegalArgumentException("limits must be positive");
+        mMaxRunning = maxRunning;
+        mMaxPerHost = Math.min(maxPerHost, maxRunning);
+    }
+
+    public synchronized int getMaxRunning() {
+        return mMaxRunning;
+    }
+
+    /**
+     * Queues a request.
+     * @return false if a request for the same URL is already queued or running
+     * (its priority will be raised if needed)
+     */
+    public synchronized boolean add(T request) {
+        if (mRunning.containsKey(request.url)) {
+            return false;
+        }
+        if (mPendingByUrl.containsKey(request.url)) {
+            prioritize(request.url, request.priority);
+            return false;
+        }
+
+        request.sequence = mSequence++;
+        mPending.add(request);
+        mPendingByUrl.put(request.url, request);
+        return true;
+    }
+
+    /**
+     * Raises the priority of a pending request.
+     * @return true if the request was found and its priority changed
+     */
+    public synchronized boolean prioritize(String url, int priority) {
+        T request = mPendingByUrl.get(url);
+        if (request != null && request.priority < priority) {
+            // reinsert to keep ordering consistent, after the other
+            // requests that already had the new priority
+            mPending.remove(request);
+            request.priority = priority;
+            request.sequence = mSequence++;
+            mPending.add(request);
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns true if a request for the given URL is pending or running. */
+    public synchronized boolean contains(String url) {
+        return mPendingByUrl.containsKey(url) || mRunning.containsKey(url);
+    }
+
+    /** Removes a pending request. */
+    public synchronized T removePending(String url) {
+        T request = mPendingByUrl.remove(url);
+        if (request != null)
+            mPending.remove(request);
+        return request;
+    }
+
+    /** Returns a running request. */
+    public synchronized T getRunning(String url) {
+        return mRunning.get(url);
+    }
+
+    /** Returns a snapshot of the running requests. */
+    public synchronized List<T> getRunning() {
+        return new ArrayList<>(mRunning.values());
+    }
+
+    /**
+     * Returns the next request that can be started and marks it as running.
+     * @return the request to start, or null if nothing can be started now
+     */
+    public synchronized T poll() {
+        if (mRunning.size() >= mMaxRunning)
+            return null;
+
+        Iterator<T> iter = mPending.iterator();
+        while (iter.hasNext()) {
+            T request = iter.next();
+            Integer hostCount = mRunningByHost.get(request.host);
+            if (hostCount == null || hostCount < mMaxPerHost) {
+                iter.remove();
+                mPendingByUrl.remove(request.url);
+                mRunning.put(request.url, request);
+                mRunningByHost.put(request.host, hostCount != null ? hostCount + 1 : 1);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /** Marks a running request as finished. */
+    public synchronized void finished(T request) {
+        if (mRunning.remove(request.url) != null) {
+            Integer hostCount = mRunningByHost.get(request.host);
+            if (hostCount != null && hostCount > 1)
+                mRunningByHost.put(request.host, hostCount - 1);
+            else
+                mRunningByHost.remove(request.host);
+        }
+    }
+
+    /** Removes all pending requests. */
+    public synchronized Collection<T> clearPending() {
+        List<T> pending = new ArrayList<>(mPending);
+        mPending.clear();
+        mPendingByUrl.clear();
+        return pending;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty() && mRunning.isEmpty();
+    }
+
+}
@@ -24,26 +24,24 @@ package org.kontalk.service;
  */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.ContentValues;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 
 import org.kontalk.Kontalk;
@@ -57,7 +55,6 @@ import org.kontalk.crypto.PersonalKey;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.provider.Keyring;
 import org.kontalk.provider.MessagesProviderClient;
-import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.ui.ConversationsActivity;
@@ -65,6 +62,7 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.StepTimer;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_ERROR;
@@ -73,155 +71,190 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_DOWNLOAD_OK;
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are run in parallel, up to a maximum number of concurrent
+ * transfers (globally and per host). Pending downloads are served by priority,
+ * so attachments requested by the user or visible on screen go first.
+ * Progress of all running downloads is aggregated in a single foreground
+ * notification.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<>();
+    /** Default maximum number of concurrent downloads. */
+    public static final int DEFAULT_MAX_DOWNLOADS = 3;
+    /** Default maximum number of concurrent downloads from the same host. */
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+
+    /** Minimum delay between progress notification updates. */
+    private static final long PROGRESS_PUBLISH_DELAY = 1000;
+
+    /** The download queue. Also used to avoid duplicate downloads. */
+    private static final DownloadQueue<DownloadTask> sQueue =
+        new DownloadQueue<>(DEFAULT_MAX_DOWNLOADS, DEFAULT_MAX_DOWNLOADS_PER_HOST);
 
     private static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     private static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
 
     private static final String EXTRA_NOTIFY = "org.kontalk.download.notify";
+    private static final String EXTRA_PRIORITY = "org.kontalk.download.priority";
 
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the download currently being processed
-    private Notification mCurrentNotification;
-    private long mTotalBytes;
+    /** Guards the foreground notification. */
+    private final Object mNotificationLock = new Object();
+    private final StepTimer mPublishTimer = new StepTimer(PROGRESS_PUBLISH_DELAY);
+    private boolean mForeground;
 
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
-    private boolean mNotify;
+    private ExecutorService mExecutor;
+    private Handler mHandler;
+    private int mLastStartId;
 
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mHandler = new Handler();
+        // concurrency is bounded by the download queue
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        sQueue.clearPending();
+        for (DownloadTask task : sQueue.getRunning())
+            task.abort();
+        mExecutor.shutdown();
+        mHandler.removeCallbacks(mScheduleRunnable);
+    }
 
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+
         // crappy firmware - as per docs, intent can't be null in this case
         if (intent != null) {
-            if (mNotificationManager == null)
-                mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-            if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
-                final Uri uri = intent.getData();
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        onDownloadAbort(uri);
-                    }
-                }).start();
+            String action = intent.getAction();
+
+            if (ACTION_DOWNLOAD_URL.equals(action)) {
+                onDownloadURL(intent.getData(), intent.getExtras());
+            }
+            else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
+                onDownloadAbort(intent.getData());
             }
         }
 
-        return super.onStartCommand(intent, flags, startId);
+        schedule();
+        return START_NOT_STICKY;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // crappy firmware - as per docs, intent can't be null in this case
-        if (intent == null)
-            return;
-
-        String action = intent.getAction();
-
-        if (ACTION_DOWNLOAD_URL.equals(action)) {
-            onDownloadURL(intent.getData(), intent.getExtras());
+    private void onDownloadURL(Uri uri, Bundle args) {
+        DownloadTask task = new DownloadTask(uri.toString(), args);
+        // the queue will take care of duplicates
+        if (sQueue.add(task)) {
+            // notify user about download immediately
+            updateForeground(true);
         }
     }
 
-    private void onDownloadURL(Uri uri, Bundle args) {
+    private void onDownloadAbort(Uri uri) {
         String url = uri.toString();
 
-        // check if download has already been queued
-        if (sQueue.get(url) != null) return;
+        // remove from queue - will never be processed
+        if (sQueue.removePending(url) != null) {
+            updateForeground(true);
+            return;
+        }
 
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
+        // interrupt worker if running
+        DownloadTask task = sQueue.getRunning(url);
+        if (task != null)
+            task.abort();
+    }
 
-        mNotify = args.getBoolean(EXTRA_NOTIFY, true);
+    /** Starts as many pending downloads as allowed. Must run on the main thread. */
+    void schedule() {
+        // the queue outlives this service: leave pending downloads to the next instance
+        if (mExecutor.isShutdown())
+            return;
 
-        if (mDownloadClient == null) {
-            mDownloadClient = new ClientHTTPConnection(this);
+        DownloadTask task;
+        while ((task = sQueue.poll()) != null) {
+            mExecutor.execute(task);
         }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
+        if (sQueue.isEmpty()) {
+            stopForeground();
+            stopSelf(mLastStartId);
+        }
+    }
+
+    void finished(DownloadTask task) {
+        sQueue.finished(task);
+        if (mExecutor.isShutdown())
+            return;
+        updateForeground(true);
+        mHandler.post(mScheduleRunnable);
+    }
+
+    private void updateForeground(boolean force) {
+        synchronized (mNotificationLock) {
+            if (!force && mForeground && !mPublishTimer.isStep(true))
                 return;
-            }
 
-            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
-            mPeer = args.getString(CompositeMessage.MSG_SENDER);
-            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
-
-            Date date;
-            long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
-            if (timestamp > 0)
-                date = new Date(timestamp);
-            else
-                date = new Date();
-
-            String mime = args.getString(CompositeMessage.MSG_MIME);
-            // this will be used if the server doesn't provide one
-            // if the server provides a filename, only the path will be used
-            File defaultFile = CompositeMessage.getIncomingFile(mime, date);
-            if (defaultFile == null) {
-                defaultFile = MediaStorage.getIncomingFile(date, "bin");
+            List<DownloadTask> running = sQueue.getRunning();
+            int count = running.size() + sQueue.getPendingCount();
+            if (count == 0)
+                return;
+
+            long bytes = 0;
+            long totalBytes = 0;
+            for (DownloadTask task : running) {
+                long length = task.mTotalBytes;
+                if (length > 0) {
+                    bytes += task.mBytes;
+                    totalBytes += length;
+                }
             }
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, defaultFile, date, this);
-        }
-        catch (Exception e) {
-            error(url, null, e);
-        }
-        finally {
-            sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
-        }
-    }
+            // if we don't know the content length yet, use an interminate progress
+            int progress = totalBytes > 0 ? (int) ((100 * bytes) / totalBytes) : -1;
+            Notification notification = foregroundNotification(progress, count);
 
-    void onDownloadAbort(Uri uri) {
-        String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
-            // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
+            if (mForeground) {
+                // send the updates to the notification manager
+                mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, notification);
+            }
+            else {
+                Log.d(TAG, "starting foreground progress notification");
+                startForeground(NOTIFICATION_ID_DOWNLOADING, notification);
+                mForeground = true;
             }
-            // remove from queue - will never be processed
-            else
-                sQueue.remove(url);
+            mPublishTimer.reset();
         }
     }
 
-    public void startForeground(long totalBytes) {
-        Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
-
-        Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
-        // FIXME this intent should actually open the ComposeMessage activity
-        PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+    private Notification foregroundNotification(int progress, int count) {
+        if (mNotificationBuilder == null) {
+            Intent ni = new Intent(getApplicationContext(), ConversationsActivity.class);
+            // FIXME this intent should actually open the ComposeMessage activity
+            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
                 NOTIFICATION_ID_DOWNLOADING, ni, 0);
 
-        if (mNotificationBuilder == null) {
             mNotificationBuilder = new ProgressNotificationBuilder(getApplicationContext(),
                 R.layout.progress_notification,
                 getString(R.string.downloading_attachment),
@@ -229,142 +262,20 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
-        startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-    }
-
-    private void foregroundNotification(int progress) {
-        mCurrentNotification = mNotificationBuilder
+        mNotificationBuilder.setNumber(count > 1 ? count : 0);
+        return mNotificationBuilder
             .progress(progress,
                 R.string.attachment_download,
                 R.string.downloading_attachment)
             .build();
     }
 
-    public void stopForeground() {
-        stopForeground(true);
-        mCurrentNotification = null;
-        mTotalBytes = 0;
-    }
-
-    @Override
-    public void start(String url, File destination, long length) {
-        startForeground(length);
-    }
-
-    @Override
-    public void completed(String url, String mime, File destination) {
-        Uri uri = Uri.fromFile(destination);
-
-        ContentValues values = null;
-
-        // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                EndpointServer server = Preferences.getEndpointServer(this);
-                PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = Keyring.getDecryptCoder(this, server, key, mPeer);
-                if (coder != null) {
-                    in = new FileInputStream(destination);
-
-                    File outFile = new File(destination + ".new");
-                    out = new FileOutputStream(outFile);
-                    List<DecryptException> errors = new LinkedList<>();
-                    coder.decryptFile(in, true, out, errors);
-
-                    // TODO process errors
-
-                    // delete old file and rename the decrypted one
-                    destination.delete();
-                    outFile.renameTo(destination);
-
-                    // save this for later
-                    values = new ContentValues(3);
-                    values.put(Messages.ATTACHMENT_ENCRYPTED, false);
-                    values.put(Messages.ATTACHMENT_LENGTH, destination.length());
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "decryption failed!", e);
-                errorNotification(getString(R.string.notify_ticker_download_error),
-                    getString(R.string.notify_text_decryption_error));
-                return;
+    private void stopForeground() {
+        synchronized (mNotificationLock) {
+            if (mForeground) {
+                stopForeground(true);
+                mForeground = false;
             }
-            finally {
-                try {
-                    if (in != null)
-                        in.close();
-                }
-                catch (IOException e) {
-                    // ignored
-                }
-                try {
-                    if (out != null)
-                        out.close();
-                }
-                catch (IOException e) {
-                    // ignored
-                }
-            }
-        }
-
-        // mark file as downloaded
-        MessagesProviderClient.downloaded(this, mMessageId, uri);
-
-        // update media store
-        MediaStorage.scanFile(this, destination, mime);
-
-        // stop foreground
-        stopForeground();
-
-        // notify only if conversation is not open
-        if (!MessagingNotification.isPaused(mPeer) && mNotify) {
-
-            // detect mime type if not available
-            if (mime == null)
-                mime = getContentResolver().getType(uri);
-
-            // create intent for download complete notification
-            Intent i = new Intent(Intent.ACTION_VIEW);
-            i.setDataAndType(uri, mime);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
-                NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
-
-            // create notification
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
-                .setSmallIcon(R.drawable.ic_stat_notify)
-                .setContentTitle(getString(R.string.notify_title_download_completed))
-                .setContentText(getString(R.string.notify_text_download_completed))
-                .setTicker(getString(R.string.notify_ticker_download_completed))
-                .setContentIntent(pi)
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .setAutoCancel(true);
-
-            // notify!!
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
-        }
-    }
-
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled) {
-            ReportingManager.logException(exc);
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
         }
     }
 
@@ -390,18 +301,183 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+    /** A single download, run by a worker thread. */
+    private final class DownloadTask extends DownloadQueue.Request
+            implements Runnable, DownloadListener {
+
+        private final ClientHTTPConnection mDownloadClient;
+
+        private final long mMessageId;
+        private final String mPeer;
+        private final boolean mEncrypted;
+        private final boolean mNotify;
+        private final String mMime;
+        private final long mTimestamp;
+
+        volatile long mTotalBytes;
+        volatile long mBytes;
+        private volatile boolean mCanceled;
+
+        DownloadTask(String url, Bundle args) {
+            super(url, args.getInt(EXTRA_PRIORITY, DownloadQueue.PRIORITY_NORMAL));
+            mDownloadClient = new ClientHTTPConnection(DownloadService.this);
+            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
+            mPeer = args.getString(CompositeMessage.MSG_SENDER);
+            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
+            mNotify = args.getBoolean(EXTRA_NOTIFY, true);
+            mMime = args.getString(CompositeMessage.MSG_MIME);
+            mTimestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
+        }
+
+        void abort() {
+            mCanceled = true;
+            // disconnecting might block
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mDownloadClient.abort();
+                }
+            }).start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!mCanceled)
+                    download();
+            }
+            finally {
+                DownloadService.this.finished(this);
+            }
+        }
+
+        private void download() {
+            String url = getUrl();
+            try {
+                // check if external storage is available
+                if (!MediaStorage.isExternalStorageAvailable()) {
+                    errorNotification(getString(R.string.notify_ticker_external_storage),
+                        getString(R.string.notify_text_external_storage));
+                    return;
+                }
+
+                Date date;
+                if (mTimestamp > 0)
+                    date = new Date(mTimestamp);
+                else
+                    date = new Date();
+
+                // this will be used if the server doesn't provide one
+                // if the server provides a filename, only the path will be used
+                File defaultFile = CompositeMessage.getIncomingFile(mMime, date);
+                if (defaultFile == null) {
+                    defaultFile = MediaStorage.getIncomingFile(date, "bin");
+                }
+
+                Coder coder = null;
+                if (mEncrypted) {
+                    try {
+                        EndpointServer server = Preferences.getEndpointServer(DownloadService.this);
+                        PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
+                        coder = Keyring.getDecryptCoder(DownloadService.this, server, key, mPeer);
+                    }
+                    catch (Exception e) {
+                        Log.e(TAG, "decryption failed!", e);
+                        errorNotification(getString(R.string.notify_ticker_download_error),
+                            getString(R.string.notify_text_decryption_error));
+                        return;
+                    }
+                }
+
+                // download content
+                if (coder != null) {
+                    // decrypt while downloading
+                    List<DecryptException> errors = new LinkedList<>();
+                    mDownloadClient.downloadAutofilename(url, defaultFile, date, coder, errors, this);
+                    // TODO process errors
+                }
+                else {
+                    mDownloadClient.downloadAutofilename(url, defaultFile, date, this);
+                }
+            }
+            catch (Exception e) {
+                error(url, null, e);
+            }
+        }
+
+        @Override
+        public void start(String url, File destination, long length) {
+            mTotalBytes = length;
+            updateForeground(true);
+        }
+
+        @Override
+        public void completed(String url, String mime, File destination) {
+            Uri uri = Uri.fromFile(destination);
+
+            // mark file as downloaded
+            MessagesProviderClient.downloaded(DownloadService.this, mMessageId, uri);
+
+            // update media store
+            MediaStorage.scanFile(DownloadService.this, destination, mime);
+
+            // notify only if conversation is not open
+            if (!MessagingNotification.isPaused(mPeer) && mNotify) {
+
+                // detect mime type if not available
+                if (mime == null)
+                    mime = getContentResolver().getType(uri);
+
+                // create intent for download complete notification
+                Intent i = new Intent(Intent.ACTION_VIEW);
+                i.setDataAndType(uri, mime);
+                i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                PendingIntent pi = PendingIntent.getActivity(getApplicationContext(),
+                    NOTIFICATION_ID_DOWNLOAD_OK, i, 0);
+
+                // create notification
+                NotificationCompat.Builder builder = new NotificationCompat.Builder(getApplicationContext())
+                    .setSmallIcon(R.drawable.ic_stat_notify)
+                    .setContentTitle(getString(R.string.notify_title_download_completed))
+                    .setContentText(getString(R.string.notify_text_download_completed))
+                    .setTicker(getString(R.string.notify_ticker_download_completed))
+                    .setContentIntent(pi)
+                    .setPriority(NotificationCompat.PRIORITY_LOW)
+                    .setAutoCancel(true);
+
+                // notify!!
+                mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_OK, builder.build());
+            }
+        }
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            Log.e(TAG, "download error", exc);
+            if (!mCanceled) {
+                ReportingManager.logException(exc);
+                // network errors while decrypting are wrapped in a security exception
+                boolean decryptError = exc instanceof GeneralSecurityException &&
+                    !(exc.getCause() instanceof IOException);
+                errorNotification(getString(R.string.notify_ticker_download_error),
+                    getString(decryptError ? R.string.notify_text_decryption_error :
+                        R.string.notify_text_download_error));
+            }
+        }
+
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            mBytes = bytes;
+            updateForeground(false);
         }
     }
 
     public static boolean isQueued(String url) {
-        return sQueue.containsKey(url);
+        return sQueue.contains(url);
+    }
+
+    /** Moves a pending download ahead in the queue, e.g. because it's visible on screen. */
+    public static void prioritize(String url) {
+        sQueue.prioritize(url, DownloadQueue.PRIORITY_HIGH);
     }
 
     public static void start(Context context, long databaseId, String sender,
@@ -411,6 +487,12 @@ public class DownloadService extends IntentService implements DownloadListener {
 
     public static void start(Context context, long databaseId, String sender,
             String mime, long timestamp, boolean encrypted, String url, boolean notify) {
+        start(context, databaseId, sender, mime, timestamp, encrypted, url, notify,
+            DownloadQueue.PRIORITY_NORMAL);
+    }
+
+    public static void start(Context context, long databaseId, String sender,
+            String mime, long timestamp, boolean encrypted, String url, boolean notify, int priority) {
         Intent i = new Intent(context, DownloadService.class);
         i.setAction(DownloadService.ACTION_DOWNLOAD_URL);
         i.putExtra(CompositeMessage.MSG_ID, databaseId);
@@ -419,6 +501,7 @@ public class DownloadService extends IntentService implements DownloadListener {
         i.putExtra(CompositeMessage.MSG_TIMESTAMP, timestamp);
         i.putExtra(CompositeMessage.MSG_ENCRYPTED, encrypted);
         i.putExtra(EXTRA_NOTIFY, notify);
+        i.putExtra(EXTRA_PRIORITY, priority);
         i.setData(Uri.parse(url));
         context.startService(i);
     }
@@ -38,6 +38,7 @@ import android.support.v4.app.NotificationCompat;
 
 import org.kontalk.Log;
 import org.kontalk.R;
+import org.kontalk.crypto.Coder;
 import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
@@ -46,6 +47,7 @@ import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.HTPPFileUploadConnection;
 import org.kontalk.upload.UploadConnection;
 import org.kontalk.util.MediaStorage;
+import org.kontalk.util.MessageUtils;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOAD_ERROR;
@@ -85,6 +87,13 @@ public class UploadService extends IntentService implements ProgressListener {
     public static final String EXTRA_ENCRYPT = "org.kontalk.upload.ENCRYPT";
     /** Delete local file after sending attempt. */
     public static final String EXTRA_DELETE_ORIGINAL = "org.kontalk.upload.DELETE_ORIGINAL";
+    /** Length of the uploaded data, if different from the local file (e.g. encrypted on the fly). */
+    public static final String EXTRA_LENGTH = "org.kontalk.upload.LENGTH";
+    /**
+     * Parameters for encrypting while uploading ({@link Coder.EncryptionSeed#toByteArray()}).
+     * Secret material: they are removed from the intent and destroyed after the upload.
+     */
+    public static final String EXTRA_ENCRYPTION_SEED = "org.kontalk.upload.ENCRYPTION_SEED";
     // Intent data is the local file Uri
 
     private ProgressNotificationBuilder mNotificationBuilder;
@@ -168,14 +177,27 @@ public class UploadService extends IntentService implements ProgressListener {
         boolean encrypt = intent.getBooleanExtra(EXTRA_ENCRYPT, false);
         // delete original
         boolean deleteOriginal = intent.getBooleanExtra(EXTRA_DELETE_ORIGINAL, false);
+        // seed for encrypting while uploading
+        Coder.EncryptionSeed encryptionSeed = Coder.EncryptionSeed
+            .fromByteArray(intent.getByteArrayExtra(EXTRA_ENCRYPTION_SEED));
+        intent.removeExtra(EXTRA_ENCRYPTION_SEED);
 
         // check if upload has already been queued
-        if (queue.get(filename) != null) return;
+        if (queue.get(filename) != null) {
+            if (encryptionSeed != null)
+                encryptionSeed.destroy();
+            return;
+        }
 
         try {
             // notify user about upload immediately
-            long length = MediaStorage.getLength(this, file);
-            Log.v(TAG, "file size is " + length + " bytes");
+            long length = intent.getLongExtra(EXTRA_LENGTH, -1);
+            if (length < 0)
+                length = MediaStorage.getLength(this, file);
+            Log.v(TAG, "upload size is " + length + " bytes");
+
+            if (encrypt && encryptionSeed == null && intent.hasExtra(EXTRA_LENGTH))
+                throw new IllegalStateException("encryption seed missing");
 
             mTotalBytes = length;
             startForeground(0);
@@ -189,7 +211,7 @@ public class UploadService extends IntentService implements ProgressListener {
             queue.put(filename, mMessageId);
 
             // upload content
-            String mediaUrl = mConn.upload(file, length, mime, encrypt, to, this);
+            String mediaUrl = mConn.upload(file, length, mime, encryptionSeed, to, this);
             if (mediaUrl == null)
                 mediaUrl = fetchUrl;
             Log.d(TAG, "uploaded with media URL: " + mediaUrl);
@@ -211,9 +233,15 @@ public class UploadService extends IntentService implements ProgressListener {
             completed();
         }
         catch (Exception e) {
+            // compute the encrypted length again next time
+            MessageUtils.invalidateEncryptedLength(databaseId);
             error(url, null, e);
         }
         finally {
+            // the seed must not survive the upload attempt
+            if (encryptionSeed != null)
+                encryptionSeed.destroy();
+
             // only file uri are supported for delete
             if (deleteOriginal && "file".equals(file.getScheme()))
                 new File(file.getPath()).delete();
@@ -323,7 +351,7 @@ public class UploadService extends IntentService implements ProgressListener {
             mCanceled = true;
         }
 
-        if (mCurrentNotification != null) {
+        if (mCurrentNotification != null && mTotalBytes > 0) {
             int progress = (int) ((100 * bytes) / mTotalBytes);
             foregroundNotification(progress);
             // send the updates to the notification manager
@@ -19,12 +19,16 @@
 package org.kontalk.service;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.segment.backo.Backo;
@@ -46,8 +50,10 @@ import android.provider.Settings;
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.authenticator.LegacyAuthentication;
+import org.kontalk.client.EndpointRacer;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerList;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
@@ -76,6 +82,9 @@ public class XMPPConnectionHelper extends Thread {
     /** Max number of retries after stopping ourselves out of desperation. */
     private static final int MAX_RETRY_STRUGGLING = 10;
 
+    /** Max number of endpoints to race when connecting. */
+    private static final int MAX_RACING_ENDPOINTS = 3;
+
     private final Context mContext;
     private EndpointServer mServer;
     private boolean mServerDirty;
@@ -201,9 +210,27 @@ public class XMPPConnectionHelper extends Thread {
                 mListener.created(mConn);
         }
 
+        // stream state is kept by the connection, login will try to resume it
+        if (mConn.isStreamResumable())
+            Log.d(TAG, "previous stream is resumable");
+
+        // find the fastest endpoint (direct SSL needs a SSL socket)
+        // a resumable stream lives on the host it was established on
+        if (USE_STARTTLS) {
+            if (mConn.isStreamResumable())
+                connectResumptionHost();
+            else
+                raceEndpoints();
+        }
+
         // connect
         mConn.connect();
 
+        if (mConn.isSecureConnection()) {
+            Log.d(TAG, "TLS handshake completed in " + mConn.getTlsHandshakeTime() + " ms" +
+                (mConn.isTlsSessionResumed() ? " (session resumed)" : ""));
+        }
+
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
             mListener.connected(mConn);
@@ -215,6 +242,68 @@ public class XMPPConnectionHelper extends Thread {
 
     }
 
+    /**
+     * Races connections to the current server and to the other endpoints of
+     * the same network, and hands the winning socket over to the connection.
+     * @throws IOException if all endpoints failed
+     */
+    private void raceEndpoints() throws IOException, InterruptedException {
+        EndpointRacer racer = new EndpointRacer(getCandidateServers(),
+            MAX_RACING_ENDPOINTS, !USE_STARTTLS, KontalkConnection.CONNECT_TIMEOUT,
+            EndpointRacer.DEFAULT_ATTEMPT_DELAY);
+
+        EndpointRacer.Result result = racer.race();
+        if (result != null) {
+            Log.d(TAG, "connected to " + result.server + " (" +
+                result.socket.getInetAddress().getHostAddress() + ") in " + result.latency + " ms");
+            mConn.setConnectedSocket(result.socket, result.host);
+        }
+        // no host to connect to directly: Smack will take care of it
+    }
+
+    /**
+     * Connects to the host holding the resumable stream (or to the location
+     * advertised by the server) and hands the socket over to the connection.
+     * If that fails, Smack will connect to the configured host.
+     */
+    private void connectResumptionHost() {
+        String host = mConn.getSmResumptionHost();
+        String address = mConn.getSmResumptionAddress();
+        if (host == null || address == null)
+            return;
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, mConn.getSmResumptionPort()),
+                KontalkConnection.CONNECT_TIMEOUT);
+            Log.d(TAG, "connected to " + address + " for stream resumption");
+            mConn.setConnectedSocket(socket, host);
+        }
+        catch (IOException e) {
+            Log.d(TAG, "unable to connect to " + address + " for stream resumption", e);
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Returns the current server and the other endpoints of its network. */
+    private List<EndpointServer> getCandidateServers() {
+        List<EndpointServer> servers = new ArrayList<>();
+        servers.add(mServer);
+
+        ServerList list = ServerListUpdater.getCurrentList(mContext);
+        if (list != null) {
+            for (EndpointServer server : list) {
+                if (mServer.getNetwork().equalsIgnoreCase(server.getNetwork()))
+                    servers.add(server);
+            }
+        }
+        return servers;
+    }
+
     public void connect() {
         PersonalKey key = null;
 
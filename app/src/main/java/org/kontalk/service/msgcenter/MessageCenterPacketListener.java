@@ -19,6 +19,7 @@
 package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
+import java.util.List;
 
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.packet.Message;
@@ -96,10 +97,9 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return (instance != null) ? instance.getRosterEntry(jid) : null;
     }
 
-    protected void queueTask(Runnable task) {
+    protected boolean queueTask(Runnable task, int category) {
         MessageCenterService instance = mInstance.get();
-        if (instance != null)
-            instance.queueTask(task);
+        return instance != null && instance.queueTask(task, category);
     }
 
     protected void sendBroadcast(Intent intent) {
@@ -210,6 +210,12 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             .getMessagesController(context).incoming(msg) : null;
     }
 
+    protected Uri[] incoming(List<CompositeMessage> msgs) {
+        Context context = getContext();
+        return (context != null) ? Kontalk
+            .getMessagesController(context).incoming(msgs) : null;
+    }
+
     protected IdleConnectionHandler getIdleHandler() {
         MessageCenterService instance = mInstance.get();
         return (instance != null) ? instance.mIdleHandler: null;
@@ -35,8 +35,6 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.zip.ZipInputStream;
 
 import org.jivesoftware.smack.ExceptionCallback;
@@ -246,6 +244,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      */
     public static final String ACTION_PRESENCE = "org.kontalk.action.PRESENCE";
 
+    /**
+     * Broadcasted once for each batch of received presence stanzas, after the
+     * individual {@link #ACTION_PRESENCE} broadcasts, and in reply to a probe
+     * without a recipient (the whole roster). {@link #EXTRA_PRESENCES} holds
+     * the extras of the {@link #ACTION_PRESENCE} broadcast of each presence.
+     */
+    public static final String ACTION_PRESENCE_BATCH = "org.kontalk.action.PRESENCE_BATCH";
+
     /**
      * Broadcasted when a last activity iq is received.
      * Send this intent to request a last activity.
@@ -350,6 +356,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     // use with org.kontalk.action.ROSTER(_MATCH)
     public static final String EXTRA_JIDLIST = "org.kontalk.roster.JIDList";
+
+    // use with org.kontalk.action.PRESENCE_BATCH
+    public static final String EXTRA_PRESENCES = "org.kontalk.presence.list";
     public static final String EXTRA_ROSTER_NAME = "org.kontalk.roster.name";
 
     // use with org.kontalk.action.LAST_ACTIVITY
@@ -484,6 +493,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private AlarmManager mAlarmManager;
 
     private LastActivityListener mLastActivityListener;
+    private MessageListener mMessageListener;
+    private PresenceListener mPresenceListener;
     private PingFailedListener mPingFailedListener;
 
     /**
@@ -520,7 +531,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /**
      * Task execution pool. Generally used by packet listeners.
      */
-    private ExecutorService mThreadPool;
+    private PriorityTaskExecutor mThreadPool;
 
     /**
      * Idle handler.
@@ -833,10 +844,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         registerInactivity();
     }
 
-    void queueTask(Runnable task) {
-        if (mThreadPool != null) {
-            mThreadPool.execute(task);
-        }
+    /**
+     * Queues a background task.
+     * @param category one of the {@link PriorityTaskExecutor} task categories
+     * @return true if the task was queued
+     */
+    boolean queueTask(Runnable task, int category) {
+        PriorityTaskExecutor pool = mThreadPool;
+        return pool != null && pool.execute(task, category);
     }
 
     private void createIdleHandler() {
@@ -990,6 +1005,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     private synchronized void quit(boolean restarting) {
+        // store incoming messages and presences still waiting in the current batch
+        if (mMessageListener != null)
+            mMessageListener.flushPendingMessages();
+        if (mPresenceListener != null)
+            mPresenceListener.flushPendingPresences();
+
         if (!restarting) {
             // quit the idle handler
             mIdleHandler.quit();
@@ -999,13 +1020,22 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             mHandler = null;
         }
         else {
-            // reset the reference counter
+            // reset the reference counter, keeping the holds of messages
+            // still waiting for an ack (released by their ack listeners if
+            // the stream is resumed, or in authenticated() otherwise)
             int refCount = ((Kontalk) getApplicationContext()).getReferenceCounter();
+            synchronized (mWaitingReceipt) {
+                refCount += mWaitingReceipt.size();
+            }
             mIdleHandler.reset(refCount);
         }
 
+        Log.d(TAG, "public key cache stats: hits=" + Keyring.getPublicKeyCacheHits() +
+            " misses=" + Keyring.getPublicKeyCacheMisses());
+
         // stop all running tasks
         if (mThreadPool != null) {
+            Log.d(TAG, "task queue stats: " + mThreadPool.dumpStats());
             mThreadPool.shutdownNow();
             mThreadPool = null;
         }
@@ -1029,6 +1059,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
         }
 
+        // a restart will try to resume the current stream
+        boolean resumable = restarting && mConnection != null &&
+            mConnection.isStreamResumable();
+
         // disconnect from server (if any)
         if (mConnection != null) {
             // disable ping manager
@@ -1039,7 +1073,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 .unregisterPingFailedListener(mPingFailedListener);
             mPingFailedListener = null;
             // this is because of NetworkOnMainThreadException
-            DisconnectThread disconnectThread = new DisconnectThread(mConnection);
+            DisconnectThread disconnectThread = new DisconnectThread(mConnection, resumable);
             disconnectThread.start();
             disconnectThread.joinTimeout(500);
 
@@ -1048,15 +1082,19 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 // clear the roster store since we are about to close it
                 getRoster().setRosterStore(null);
                 mConnection = null;
+                mMessageListener = null;
+                mPresenceListener = null;
             }
         }
 
-        if (mUploadServices != null) {
+        // upload services will be discovered again if the stream is not resumed
+        if (mUploadServices != null && !resumable) {
             mUploadServices.clear();
             mUploadServices = null;
         }
 
         // clear cached data from contacts
+        Log.d(TAG, "contact cache stats: " + Contact.getCacheStats());
         Contact.invalidateData();
 
         // stop any key pair regeneration service
@@ -1090,13 +1128,25 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     private static final class DisconnectThread extends Thread {
         private final KontalkConnection mConn;
+        private final boolean mResumable;
 
-        public DisconnectThread(KontalkConnection conn) {
+        /**
+         * @param resumable true to keep the stream resumable: the socket will
+         * just be closed, without sending any unavailable presence or closing
+         * the stream
+         */
+        public DisconnectThread(KontalkConnection conn, boolean resumable) {
             mConn = conn;
+            mResumable = resumable;
         }
 
         @Override
         public void run() {
+            if (mResumable) {
+                mConn.instantShutdown();
+                return;
+            }
+
             try {
                 mConn.disconnect();
             }
@@ -1110,7 +1160,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 // we must wait for the connection to actually close
                 join(millis);
                 // this won't send the last sm ack, preventing another interruptable zone
-                mConn.suspendSmAck();
+                // (not needed for a resumable stream, no final ack will be sent anyway)
+                if (!mResumable)
+                    mConn.suspendSmAck();
                 interrupt();
             }
             catch (InterruptedException ignored) {
@@ -1524,15 +1576,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 final Roster roster = getRoster();
 
                 if (to == null) {
-                    for (RosterEntry entry : roster.getEntries()) {
-                        broadcastPresence(roster, entry, id);
-                    }
-
-                    // broadcast our own presence
-                    broadcastMyPresence(id);
+                    // the whole roster and our own presence
+                    broadcastRosterPresence(roster, id);
                 }
                 else {
-                    queueTask(new Runnable() {
+                    Runnable presenceBroadcast = new Runnable() {
                         @Override
                         public void run() {
                             try {
@@ -1545,7 +1593,10 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                                 throw new IllegalArgumentException(e);
                             }
                         }
-                    });
+                    };
+                    // the requester is waiting for this, it must not be discarded
+                    if (!queueTask(presenceBroadcast, PriorityTaskExecutor.TASK_CONTACT))
+                        presenceBroadcast.run();
                 }
             }
             else {
@@ -1732,11 +1783,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // reset push notification variable
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService != null && mPushService.isServiceAvailable();
-            // reset waiting messages
-            mWaitingReceipt.clear();
-
             // setup task execution pool
-            mThreadPool = Executors.newCachedThreadPool();
+            mThreadPool = new PriorityTaskExecutor(PriorityTaskExecutor.defaultThreadCount());
 
             mInactive = false;
 
@@ -1816,6 +1864,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // setup presence and roster listener
         PresenceListener presenceListener = new PresenceListener(this);
+        mPresenceListener = presenceListener;
         RosterListener rosterListener = new RosterListener(this, presenceListener);
         Roster roster = getRoster();
         roster.addRosterLoadedListener(rosterListener);
@@ -1846,7 +1895,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncStanzaListener(presenceListener, filter);
 
         filter = new StanzaTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addSyncStanzaListener(new MessageListener(this), filter);
+        mMessageListener = new MessageListener(this);
+        connection.addSyncStanzaListener(mMessageListener, filter);
 
         // this is used as a reply callback
         mLastActivityListener = new LastActivityListener(this);
@@ -1862,27 +1912,57 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
-        Log.v(TAG, "authenticated!");
+        Log.v(TAG, resumed ? "stream resumed!" : "authenticated!");
 
-        // add message ack listener
-        if (mConnection.isSmEnabled()) {
-            mConnection.removeAllStanzaIdAcknowledgedListeners();
-        }
-        else {
-            Log.w(TAG, "stream management not available - disabling delivery receipts");
+        if (!resumed) {
+            // add message ack listener
+            if (mConnection.isSmEnabled()) {
+                mConnection.removeAllStanzaIdAcknowledgedListeners();
+            }
+            else {
+                Log.w(TAG, "stream management not available - disabling delivery receipts");
+            }
+
+            // reset waiting messages
+            synchronized (mWaitingReceipt) {
+                // their ack listeners are gone, release their holds
+                for (int i = mWaitingReceipt.size(); i > 0; i--)
+                    mIdleHandler.release();
+                mWaitingReceipt.clear();
+            }
         }
 
         // we can release the message center now
         // this must be done before sending the presence since it's based on isHeld()
         mIdleHandler.release();
 
-        // send presence
-        sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
-        // clear upload service
-        if (mUploadServices != null)
-            mUploadServices.clear();
-        // discovery
-        discovery();
+        if (resumed) {
+            /*
+             * The server kept our session (presence, roster, etc.) and the
+             * connection already sent the unacknowledged stanzas again.
+             * Messages waiting for an ack are skipped, so this will send only
+             * messages queued while we were disconnected.
+             */
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isConnected())
+                            resendPendingMessages(false, false);
+                    }
+                });
+            }
+        }
+        else {
+            // send presence
+            sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
+            // clear upload service
+            if (mUploadServices != null)
+                mUploadServices.clear();
+            // discovery
+            discovery();
+        }
 
         // helper is not needed any more
         mHelper = null;
@@ -1901,7 +1981,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             .onConnectionCompleted();
 
         // request server key if needed
-        Async.go(new Runnable() {
+        Runnable requestServerKey = new Runnable() {
             @Override
             public void run() {
                 final XMPPConnection conn = mConnection;
@@ -1914,7 +1994,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     }
                 }
             }
-        });
+        };
+        if (!queueTask(requestServerKey, PriorityTaskExecutor.TASK_CONTACT))
+            requestServerKey.run();
 
         // re-acquire the wakelock for a limited time to allow for messages to come
         mWakeLock.acquire(WAIT_FOR_MESSAGES_DELAY);
@@ -2401,20 +2483,42 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             !entry.isSubscriptionPending());
     }
 
-    private void broadcastPresence(Roster roster, RosterEntry entry, String id) {
-        broadcastPresence(roster, entry, entry.getJid(), id);
-    }
-
     void broadcastPresence(Roster roster, BareJid jid, String id) {
-        broadcastPresence(roster, roster.getEntry(jid), jid, id);
+        // this method might be called async
+        final LocalBroadcastManager lbm = mLocalBroadcastManager;
+        if (lbm == null)
+            return;
+
+        Intent i = createPresenceIntent(roster, roster.getEntry(jid), jid);
+        // to keep track of request-reply
+        i.putExtra(EXTRA_PACKET_ID, id);
+        lbm.sendBroadcast(i);
     }
 
-    private void broadcastPresence(Roster roster, RosterEntry entry, BareJid jid, String id) {
-        // this method might be called async
+    /**
+     * Broadcasts the presence of every roster entry and our own in a single
+     * {@link #ACTION_PRESENCE_BATCH}.
+     */
+    private void broadcastRosterPresence(Roster roster, String id) {
         final LocalBroadcastManager lbm = mLocalBroadcastManager;
         if (lbm == null)
             return;
 
+        Set<RosterEntry> entries = roster.getEntries();
+        ArrayList<Bundle> presences = new ArrayList<>(entries.size() + 1);
+        for (RosterEntry entry : entries) {
+            presences.add(createPresenceIntent(roster, entry, entry.getJid()).getExtras());
+        }
+        presences.add(createMyPresenceIntent().getExtras());
+
+        Intent i = new Intent(ACTION_PRESENCE_BATCH);
+        i.putParcelableArrayListExtra(EXTRA_PRESENCES, presences);
+        // to keep track of request-reply
+        i.putExtra(EXTRA_PACKET_ID, id);
+        lbm.sendBroadcast(i);
+    }
+
+    private Intent createPresenceIntent(Roster roster, RosterEntry entry, BareJid jid) {
         Intent i;
         // entry present and not pending subscription
         if (isRosterEntrySubscribed(entry) || Authenticator.isSelfJID(this, jid)) {
@@ -2427,16 +2531,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             i = new Intent(ACTION_PRESENCE);
             i.putExtra(EXTRA_FROM, jid.toString());
         }
-
-        // to keep track of request-reply
-        i.putExtra(EXTRA_PACKET_ID, id);
-        lbm.sendBroadcast(i);
+        return i;
     }
 
     /**
-     * A special method to broadcast our own presence.
+     * A special method to create our own presence broadcast.
      */
-    private void broadcastMyPresence(String id) {
+    private Intent createMyPresenceIntent() {
         Presence presence = createPresence(null);
         presence.setFrom(mConnection.getUser());
 
@@ -2444,10 +2545,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.putExtra(EXTRA_FINGERPRINT, getMyFingerprint());
         i.putExtra(EXTRA_SUBSCRIBED_FROM, true);
         i.putExtra(EXTRA_SUBSCRIBED_TO, true);
-
-        // to keep track of request-reply
-        i.putExtra(EXTRA_PACKET_ID, id);
-        mLocalBroadcastManager.sendBroadcast(i);
+        return i;
     }
 
     private String getMyFingerprint() {
@@ -2569,6 +2667,74 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         sendPacket(p);
     }
 
+    /**
+     * Prepares a media message for upload and starts the upload service.
+     * Encrypted media will be encrypted while uploading.
+     */
+    private void uploadMedia(IUploadService uploadService, final long msgId, final String id,
+            final Uri mediaUri, final String mime, final boolean encrypt, final String previewPath,
+            final String uploadTo, final String[] uploadGroupTo, final String groupJid) {
+        final Coder.EncryptionSeed encryptionSeed;
+        final long fileLength;
+
+        try {
+            // file will be encrypted while uploading, just compute the length
+            if (encrypt) {
+                MessageUtils.EncryptedUpload upload = MessageUtils
+                    .prepareEncryptedUpload(this, msgId, mediaUri, mime, uploadGroupTo);
+                encryptionSeed = upload.seed;
+                fileLength = upload.length;
+            }
+            else {
+                encryptionSeed = null;
+                fileLength = MediaStorage.getLength(this, mediaUri);
+            }
+        }
+        catch (Exception e) {
+            Log.w(TAG, "error preprocessing media: " + mediaUri, e);
+            // simulate upload error
+            UploadService.errorNotification(this,
+                getString(R.string.notify_ticker_upload_error),
+                getString(R.string.notify_text_upload_error));
+            return;
+        }
+
+        // build a filename
+        String filename = CompositeMessage.getFilename(mime, new Date());
+        if (filename == null)
+            filename = MediaStorage.UNKNOWN_FILENAME;
+
+        // media message - start upload service
+        uploadService.getPostUrl(filename, fileLength, mime, new IUploadService.UrlCallback() {
+            @Override
+            public void callback(String putUrl, String getUrl) {
+                // start upload intent service
+                Intent i = new Intent(MessageCenterService.this, UploadService.class);
+                i.setData(mediaUri);
+                i.setAction(UploadService.ACTION_UPLOAD);
+                i.putExtra(UploadService.EXTRA_POST_URL, putUrl);
+                i.putExtra(UploadService.EXTRA_GET_URL, getUrl);
+                i.putExtra(UploadService.EXTRA_DATABASE_ID, msgId);
+                i.putExtra(UploadService.EXTRA_MESSAGE_ID, id);
+                i.putExtra(UploadService.EXTRA_MIME, mime);
+                // this will be used only for out of band data
+                i.putExtra(UploadService.EXTRA_ENCRYPT, encrypt);
+                i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
+                if (encryptionSeed != null) {
+                    // encrypted length, content will be encrypted while uploading
+                    i.putExtra(UploadService.EXTRA_LENGTH, fileLength);
+                    // encryption parameters live only in the intent
+                    i.putExtra(UploadService.EXTRA_ENCRYPTION_SEED, encryptionSeed.toByteArray());
+                    encryptionSeed.destroy();
+                }
+                i.putExtra(UploadService.EXTRA_USER, groupJid != null ? uploadGroupTo : uploadTo);
+                if (groupJid != null)
+                    i.putExtra(UploadService.EXTRA_GROUP, groupJid);
+                startService(i);
+            }
+        });
+    }
+
     private void sendMessage(Bundle data) {
         if (!isRosterLoaded()) {
             Log.d(TAG, "roster not loaded yet, not sending message");
@@ -2668,73 +2834,22 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         String _mediaUri = data.getString("org.kontalk.message.media.uri");
         if (_mediaUri != null) {
             // take the first available upload service :)
-            IUploadService uploadService = getUploadService();
+            final IUploadService uploadService = getUploadService();
             if (uploadService != null) {
-                Uri preMediaUri = Uri.parse(_mediaUri);
+                final Uri mediaUri = Uri.parse(_mediaUri);
                 final String previewPath = data.getString("org.kontalk.message.preview.path");
-                long fileLength;
-
-                try {
-                    // encrypt the file if necessary
-                    if (encrypt) {
-                        InputStream in = null;
-                        try {
-                            in = getContentResolver().openInputStream(preMediaUri);
-                            File encrypted = MessageUtils.encryptFile(this, in, toGroup);
-                            fileLength = encrypted.length();
-                            preMediaUri = Uri.fromFile(encrypted);
-                        }
-                        finally {
-                            SystemUtils.closeStream(in);
-                        }
-                    }
-                    else {
-                        fileLength = MediaStorage.getLength(this, preMediaUri);
-                    }
-                }
-                catch (Exception e) {
-                    Log.w(TAG, "error preprocessing media: " + preMediaUri, e);
-                    // simulate upload error
-                    UploadService.errorNotification(this,
-                        getString(R.string.notify_ticker_upload_error),
-                        getString(R.string.notify_text_upload_error));
-                    return;
-                }
-
-                final Uri mediaUri = preMediaUri;
-
-                // build a filename
-                String filename = CompositeMessage.getFilename(mime, new Date());
-                if (filename == null)
-                    filename = MediaStorage.UNKNOWN_FILENAME;
-
-                // media message - start upload service
                 final String uploadTo = to;
                 final String[] uploadGroupTo = toGroup;
-                uploadService.getPostUrl(filename, fileLength, mime, new IUploadService.UrlCallback() {
+                // preparing the upload (e.g. computing the encrypted length) might take a while
+                Runnable upload = new Runnable() {
                     @Override
-                    public void callback(String putUrl, String getUrl) {
-                        // start upload intent service
-                        Intent i = new Intent(MessageCenterService.this, UploadService.class);
-                        i.setData(mediaUri);
-                        i.setAction(UploadService.ACTION_UPLOAD);
-                        i.putExtra(UploadService.EXTRA_POST_URL, putUrl);
-                        i.putExtra(UploadService.EXTRA_GET_URL, getUrl);
-                        i.putExtra(UploadService.EXTRA_DATABASE_ID, msgId);
-                        i.putExtra(UploadService.EXTRA_MESSAGE_ID, id);
-                        i.putExtra(UploadService.EXTRA_MIME, mime);
-                        // this will be used only for out of band data
-                        i.putExtra(UploadService.EXTRA_ENCRYPT, encrypt);
-                        i.putExtra(UploadService.EXTRA_PREVIEW_PATH, previewPath);
-                        // delete original (actually it's the encrypted temp file) if we already encrypted it
-                        i.putExtra(UploadService.EXTRA_DELETE_ORIGINAL, encrypt);
-                        i.putExtra(UploadService.EXTRA_USER, groupJid != null ? uploadGroupTo : uploadTo);
-                        if (groupJid != null)
-                            i.putExtra(UploadService.EXTRA_GROUP, groupJid);
-                        startService(i);
+                    public void run() {
+                        uploadMedia(uploadService, msgId, id, mediaUri, mime, encrypt, previewPath,
+                            uploadTo, uploadGroupTo, groupJid);
                     }
-                });
-
+                };
+                if (!queueTask(upload, PriorityTaskExecutor.TASK_MESSAGE))
+                    upload.run();
             }
             else {
                 // TODO warn user about this problem
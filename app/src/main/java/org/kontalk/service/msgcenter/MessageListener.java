@@ -20,7 +20,9 @@ package org.kontalk.service.msgcenter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -38,6 +40,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.PowerManager;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
@@ -79,6 +82,7 @@ import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
 
 import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP;
@@ -95,8 +99,50 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
  */
 class MessageListener extends WakefulMessageCenterPacketListener {
 
+    /** Maximum number of incoming messages stored in a single batch. */
+    private static final int MAX_PENDING_MESSAGES = 50;
+    /** How long to wait for more incoming messages before storing them. */
+    private static final long PENDING_MESSAGES_DELAY = 250;
+    /** Maximum time the CPU is kept awake for a pending batch. */
+    private static final long PENDING_WAKELOCK_TIMEOUT = 30000;
+
+    /** An incoming message waiting to be stored. */
+    private static final class PendingMessage {
+        final CompositeMessage message;
+        final boolean needAck;
+        final Jid from;
+
+        PendingMessage(CompositeMessage message, boolean needAck, Jid from) {
+            this.message = message;
+            this.needAck = needAck;
+            this.from = from;
+        }
+    }
+
+    private final List<PendingMessage> mPendingMessages = new ArrayList<>();
+    private final Object mFlushLock = new Object();
+    /** Keeps the CPU awake while there are messages waiting to be stored. */
+    private final PowerManager.WakeLock mPendingWakeLock;
+
+    private final Runnable mFlushPending = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingMessages();
+        }
+    };
+
+    /** Posted on the idle handler: stores pending messages in the task pool. */
+    private final Runnable mQueueFlush = new Runnable() {
+        @Override
+        public void run() {
+            queueFlush();
+        }
+    };
+
     public MessageListener(MessageCenterService instance) {
         super(instance, "-RECV");
+        mPendingWakeLock = SystemUtils.createPartialWakeLock(instance,
+            Kontalk.TAG + "-RECV-BATCH", false);
     }
 
     private boolean processGroupMessage(KontalkGroupManager.KontalkGroup group, Stanza packet, CompositeMessage msg, Intent chatStateBroadcast) {
@@ -264,9 +310,18 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
         // delivery receipt
         if (deliveryReceipt != null) {
-            MessageUpdater.forMessage(getContext(), deliveryReceipt.getId(), false)
-                .setStatus(Messages.STATUS_RECEIVED, System.currentTimeMillis())
-                .commit();
+            final String receiptId = deliveryReceipt.getId();
+            final long receivedTimestamp = System.currentTimeMillis();
+            Runnable storeReceipt = new Runnable() {
+                @Override
+                public void run() {
+                    MessageUpdater.forMessage(getContext(), receiptId, false)
+                        .setStatus(Messages.STATUS_RECEIVED, receivedTimestamp)
+                        .commit();
+                }
+            };
+            if (!queueTask(storeReceipt, PriorityTaskExecutor.TASK_RECEIPT))
+                storeReceipt.run();
         }
 
         // incoming message
@@ -513,11 +568,91 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
             msg.setStatus(needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
 
-            Uri msgUri = incoming(msg);
+            if (msg.hasComponent(GroupCommandComponent.class)) {
+                // group commands are applied immediately, keep them in order
+                flushPendingMessages();
+
+                Uri msgUri = incoming(msg);
 
-            if (needAck) {
-                // send ack :)
-                sendReceipt(msgUri, msgId, from);
+                if (needAck) {
+                    // send ack :)
+                    sendReceipt(msgUri, msgId, from);
+                }
+            }
+            else {
+                queueIncoming(new PendingMessage(msg, needAck, from));
+            }
+        }
+    }
+
+    /**
+     * Queues an incoming message for storage. Messages will be stored in a
+     * single batch after a short delay or when the queue is full.
+     */
+    private void queueIncoming(PendingMessage pending) {
+        MessageCenterService.IdleConnectionHandler handler = getIdleHandler();
+
+        boolean flush;
+        synchronized (mPendingMessages) {
+            if (mPendingMessages.isEmpty())
+                mPendingWakeLock.acquire(PENDING_WAKELOCK_TIMEOUT);
+            mPendingMessages.add(pending);
+            flush = handler == null || mPendingMessages.size() >= MAX_PENDING_MESSAGES;
+        }
+
+        if (flush) {
+            queueFlush();
+        }
+        else {
+            // wait for more messages
+            handler.removeCallbacks(mQueueFlush);
+            handler.postDelayed(mQueueFlush, PENDING_MESSAGES_DELAY);
+        }
+    }
+
+    private void queueFlush() {
+        if (!queueTask(mFlushPending, PriorityTaskExecutor.TASK_MESSAGE))
+            flushPendingMessages();
+    }
+
+    /**
+     * Stores all pending incoming messages and sends the requested receipts.
+     * Called synchronously by the message center when quitting.
+     */
+    void flushPendingMessages() {
+        synchronized (mFlushLock) {
+            List<PendingMessage> pending;
+            synchronized (mPendingMessages) {
+                if (mPendingMessages.isEmpty())
+                    return;
+                pending = new ArrayList<>(mPendingMessages);
+                mPendingMessages.clear();
+            }
+
+            MessageCenterService.IdleConnectionHandler handler = getIdleHandler();
+            if (handler != null)
+                handler.removeCallbacks(mQueueFlush);
+
+            try {
+                List<CompositeMessage> messages = new ArrayList<>(pending.size());
+                for (PendingMessage p : pending)
+                    messages.add(p.message);
+
+                Uri[] msgUris = incoming(messages);
+
+                for (int i = 0; i < pending.size(); i++) {
+                    PendingMessage p = pending.get(i);
+                    if (p.needAck) {
+                        // send ack :)
+                        sendReceipt(msgUris != null ? msgUris[i] : null, p.message.getId(), p.from);
+                    }
+                }
+            }
+            finally {
+                synchronized (mPendingMessages) {
+                    if (mPendingMessages.isEmpty() && mPendingWakeLock.isHeld())
+                        mPendingWakeLock.release();
+                }
             }
         }
     }
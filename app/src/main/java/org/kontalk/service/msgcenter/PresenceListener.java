@@ -19,7 +19,11 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -33,10 +37,14 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.os.Bundle;
+import android.os.RemoteException;
 
 import org.kontalk.Log;
 import org.kontalk.client.PublicKeyPresence;
@@ -52,9 +60,11 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.Preferences;
 
 import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCE;
+import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCE_BATCH;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FINGERPRINT;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRESENCES;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRIORITY;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ROSTER_NAME;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SHOW;
@@ -72,6 +82,37 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
  */
 class PresenceListener extends MessageCenterPacketListener {
 
+    /** Maximum number of presences processed in a single batch. */
+    private static final int MAX_PENDING_PRESENCES = 100;
+    /** How long to wait for more presences before processing them. */
+    private static final long PENDING_PRESENCES_DELAY = 500;
+
+    /** Latest pending presence by full JID, in arrival order. */
+    private final Map<String, Presence> mPendingPresences = new LinkedHashMap<>();
+    private final Object mFlushLock = new Object();
+    /** True if a delayed flush has been scheduled. */
+    private boolean mFlushPosted;
+
+    private final Runnable mProcessPending = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingPresences();
+        }
+    };
+
+    private final Runnable mFlushPending = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPendingPresences) {
+                mFlushPosted = false;
+            }
+            if (!queueTask(mProcessPending, PriorityTaskExecutor.TASK_PRESENCE)) {
+                // task queue is full, try again later
+                scheduleFlush();
+            }
+        }
+    };
+
     public PresenceListener(MessageCenterService instance) {
         super(instance);
     }
@@ -229,54 +270,112 @@ class PresenceListener extends MessageCenterPacketListener {
             entry.getType() == RosterPacket.ItemType.both));
     }
 
-    private void handlePresence(final Presence p) {
-        queueTask(new Runnable() {
-            @Override
-            public void run() {
-                updateUsersDatabase(p);
-
-                // request the new key if fingerprint changed
-                String newFingerprint = PublicKeyPresence.getFingerprint(p);
-                if (newFingerprint != null) {
-                    boolean requestKey = false;
-                    String jid = p.getFrom().asBareJid().toString();
-                    PGPPublicKeyRing pubRing = Keyring.getPublicKey(getContext(),
-                        jid, MyUsers.Keys.TRUST_UNKNOWN);
-                    if (pubRing != null) {
-                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
-                        if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                            // key has changed, request new one
-                            requestKey = true;
-                        }
-                    }
-                    else {
-                        // no key available, request one
-                        requestKey = true;
-                    }
+    /**
+     * Queues a presence for processing. Presences are processed in a single
+     * batch after a short delay or when the queue is full; only the latest
+     * presence from each resource is kept.
+     */
+    private void handlePresence(Presence p) {
+        boolean flush;
+        synchronized (mPendingPresences) {
+            String from = p.getFrom().toString();
+            // move to the end to keep arrival order
+            mPendingPresences.remove(from);
+            mPendingPresences.put(from, p);
+            flush = mPendingPresences.size() >= MAX_PENDING_PRESENCES;
+        }
 
-                    if (requestKey)
-                        MessageCenterService.requestPublicKey(getContext(), jid);
-                }
+        if (!flush || !queueTask(mProcessPending, PriorityTaskExecutor.TASK_PRESENCE)) {
+            // wait for more presences
+            scheduleFlush();
+        }
+    }
 
-                Intent i = createIntent(getContext(), p, getRosterEntry(p.getFrom()));
-                sendBroadcast(i);
+    /** Schedules a delayed flush of pending presences, if not already scheduled. */
+    private void scheduleFlush() {
+        synchronized (mPendingPresences) {
+            if (mFlushPosted)
+                return;
+            mFlushPosted = true;
+        }
+
+        MessageCenterService.IdleConnectionHandler handler = getIdleHandler();
+        if (handler == null || !handler.postDelayed(mFlushPending, PENDING_PRESENCES_DELAY)) {
+            // idle handler is quitting, process presences immediately
+            synchronized (mPendingPresences) {
+                mFlushPosted = false;
             }
-        });
+            if (!queueTask(mProcessPending, PriorityTaskExecutor.TASK_PRESENCE))
+                flushPendingPresences();
+        }
     }
 
-    public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
-        Intent i = new Intent(ACTION_PRESENCE);
-        Presence.Type type = p.getType();
-        i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
-        i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
+    /**
+     * Processes all pending presences.
+     * Called synchronously by the message center when quitting.
+     */
+    void flushPendingPresences() {
+        synchronized (mFlushLock) {
+            List<Presence> pending;
+            synchronized (mPendingPresences) {
+                if (mPendingPresences.isEmpty())
+                    return;
+                pending = new ArrayList<>(mPendingPresences.values());
+                mPendingPresences.clear();
+            }
 
-        i.putExtra(EXTRA_FROM, StringUtils.maybeToString(p.getFrom().toString()));
-        i.putExtra(EXTRA_TO, StringUtils.maybeToString(p.getTo()));
-        i.putExtra(EXTRA_STATUS, p.getStatus());
-        Presence.Mode mode = p.getMode();
-        i.putExtra(EXTRA_SHOW, mode != null ? mode.name() : Presence.Mode.available.name());
-        i.putExtra(EXTRA_PRIORITY, p.getPriority());
+            processPresences(pending);
+        }
+    }
+
+    private void processPresences(List<Presence> presences) {
+        Context ctx = getContext();
+        if (ctx == null)
+            return;
+
+        int count = presences.size();
 
+        // store everything in a single transaction
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(count * 2);
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++)
+            timestamps[i] = addUsersDatabaseUpdate(ops, presences.get(i));
+
+        try {
+            ctx.getContentResolver().applyBatch(UsersProvider.AUTHORITY, ops);
+        }
+        catch (RemoteException | OperationApplicationException e) {
+            Log.w(MessageCenterService.TAG, "unable to store presence batch", e);
+        }
+
+        ArrayList<Bundle> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Presence p = presences.get(i);
+            String jid = p.getFrom().asBareJid().toString();
+
+            String fingerprint = PublicKeyPresence.getFingerprint(p);
+            if (fingerprint != null) {
+                // request the new key if fingerprint changed or no key is available
+                if (!fingerprint.equalsIgnoreCase(Keyring.getPublicKeyFingerprint(ctx, jid)))
+                    MessageCenterService.requestPublicKey(ctx, jid);
+            }
+            else {
+                // try untrusted fingerprint from database
+                fingerprint = Keyring.getFingerprint(ctx, jid, MyUsers.Keys.TRUST_UNKNOWN);
+            }
+
+            Intent intent = createIntent(p, getRosterEntry(p.getFrom()),
+                timestamps[i], fingerprint);
+            sendBroadcast(intent);
+            batch.add(intent.getExtras());
+        }
+
+        Intent intent = new Intent(ACTION_PRESENCE_BATCH);
+        intent.putParcelableArrayListExtra(EXTRA_PRESENCES, batch);
+        sendBroadcast(intent);
+    }
+
+    public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
         String jid = p.getFrom().asBareJid().toString();
 
         long timestamp;
@@ -291,14 +390,29 @@ class PresenceListener extends MessageCenterPacketListener {
                 timestamp = System.currentTimeMillis();
         }
 
-        i.putExtra(EXTRA_STAMP, timestamp);
-
         // public key fingerprint
         String fingerprint = PublicKeyPresence.getFingerprint(p);
         if (fingerprint == null) {
             // try untrusted fingerprint from database
             fingerprint = Keyring.getFingerprint(ctx, jid, MyUsers.Keys.TRUST_UNKNOWN);
         }
+
+        return createIntent(p, entry, timestamp, fingerprint);
+    }
+
+    private static Intent createIntent(Presence p, RosterEntry entry, long timestamp, String fingerprint) {
+        Intent i = new Intent(ACTION_PRESENCE);
+        Presence.Type type = p.getType();
+        i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
+        i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
+
+        i.putExtra(EXTRA_FROM, StringUtils.maybeToString(p.getFrom().toString()));
+        i.putExtra(EXTRA_TO, StringUtils.maybeToString(p.getTo()));
+        i.putExtra(EXTRA_STATUS, p.getStatus());
+        Presence.Mode mode = p.getMode();
+        i.putExtra(EXTRA_SHOW, mode != null ? mode.name() : Presence.Mode.available.name());
+        i.putExtra(EXTRA_PRIORITY, p.getPriority());
+        i.putExtra(EXTRA_STAMP, timestamp);
         i.putExtra(EXTRA_FINGERPRINT, fingerprint);
 
         // subscription information
@@ -315,8 +429,11 @@ class PresenceListener extends MessageCenterPacketListener {
         return i;
     }
 
-    @SuppressWarnings("WeakerAccess")
-    int updateUsersDatabase(Presence p) {
+    /**
+     * Adds the users table update for the given presence to a batch.
+     * @return the last seen timestamp
+     */
+    private long addUsersDatabaseUpdate(List<ContentProviderOperation> ops, Presence p) {
         String jid = p.getFrom().asBareJid().toString();
 
         ContentValues values = new ContentValues(4);
@@ -350,12 +467,16 @@ class PresenceListener extends MessageCenterPacketListener {
             String fingerprint = pkey.getFingerprint();
             if (fingerprint != null) {
                 // insert new key with empty key data
-                Keyring.setKey(getContext(), jid, fingerprint, new Date());
+                ops.add(Keyring.setKeyOperation(jid, fingerprint, new Date()));
             }
         }
 
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + "=?", new String[] { jid });
+        ops.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+            .withValues(values)
+            .withSelection(Users.JID + "=?", new String[] { jid })
+            .build());
+
+        return timestamp;
     }
 
 }
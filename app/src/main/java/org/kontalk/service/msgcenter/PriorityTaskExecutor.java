@@ -0,0 +1,276 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kontalk.Log;
+
+
+/**
+ * An executor for Message Center background tasks with a fixed number of
+ * threads. Tasks are divided in categories served in priority order
+ * (messages, then receipts, then contact data, then presence); tasks in the
+ * same category are served in FIFO order. Tasks are never run on the calling
+ * thread, since producers are usually the main thread or the connection
+ * reader thread. Only the presence queue is bounded: when it's full, presence
+ * tasks are discarded (they will be repeated by later presences anyway).
+ * The other queues are unbounded: tasks beyond their capacity are queued
+ * anyway and counted as overflowing.
+ * Queue depth and wait times are tracked per category.
+ * This class is thread-safe.
+ */
+public class PriorityTaskExecutor {
+
+    /** Message sending and receiving. */
+    public static final int TASK_MESSAGE = 0;
+    /** Delivery receipts. */
+    public static final int TASK_RECEIPT = 1;
+    /**
+     * Public keys and other contact or login data that won't be sent again.
+     * These tasks are never discarded.
+     */
+    public static final int TASK_CONTACT = 2;
+    /** Presence updates, repeated by later presences. */
+    public static final int TASK_PRESENCE = 3;
+
+    private static final String[] CATEGORY_NAMES = { "message", "receipt", "contact", "presence" };
+
+    /** Default queue capacity per category. */
+    private static final int[] DEFAULT_CAPACITY = { 500, 500, 500, 100 };
+
+    /** Idle threads will be stopped after this time. */
+    private static final long KEEP_ALIVE_TIME = 30;
+
+    /** Statistics are logged when the queue drains after a backlog this big. */
+    private static final int LOG_BACKLOG_THRESHOLD = 50;
+
+    /** Counters for a task category. */
+    private static final class Stats {
+        int pending;
+        int maxPending;
+        long submitted;
+        long executed;
+        long dropped;
+        long overflows;
+        long totalWait;
+        long maxWait;
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        final Runnable task;
+        final int category;
+        final long sequence;
+        final long enqueued;
+
+        Task(Runnable task, int category) {
+            this.task = task;
+            this.category = category;
+            this.sequence = mSequence.getAndIncrement();
+            this.enqueued = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            started(category, System.nanoTime() - enqueued);
+            task.run();
+        }
+
+        /** Higher priority (lower category) first, then older tasks first. */
+        @Override
+        public int compareTo(Task other) {
+            if (category != other.category)
+                return category < other.category ? -1 : 1;
+            return sequence < other.sequence ? -1 :
+                (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int[] mCapacity;
+    private final Stats[] mStats;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /** True if the queue has grown past {@link #LOG_BACKLOG_THRESHOLD}. */
+    private boolean mBacklog;
+
+    public PriorityTaskExecutor(int threads) {
+        this(threads, DEFAULT_CAPACITY);
+    }
+
+    public PriorityTaskExecutor(int threads, int[] capacity) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        if (capacity.length != CATEGORY_NAMES.length)
+            throw new IllegalArgumentException("capacity required for each category");
+
+        mCapacity = capacity.clone();
+        mStats = new Stats[CATEGORY_NAMES.length];
+        for (int i = 0; i < mStats.length; i++)
+            mStats[i] = new Stats();
+
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+            KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "MessageCenterTask-" + mCount.incrementAndGet());
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Returns a reasonable number of worker threads for this device. */
+    public static int defaultThreadCount() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Queues a task for execution. If the queue for the task category is
+     * full, presence tasks are discarded; other tasks are queued anyway.
+     * Tasks submitted after shutdown are discarded.
+     * @return true if the task was queued
+     */
+    public boolean execute(Runnable task, int category) {
+        if (category < 0 || category >= mStats.length)
+            throw new IllegalArgumentException("invalid category: " + category);
+        if (mExecutor.isShutdown())
+            return false;
+
+        synchronized (this) {
+            Stats stats = mStats[category];
+            stats.submitted++;
+            if (stats.pending >= mCapacity[category]) {
+                if (category == TASK_PRESENCE) {
+                    stats.dropped++;
+                    return false;
+                }
+                stats.overflows++;
+            }
+
+            stats.pending++;
+            if (stats.pending > stats.maxPending)
+                stats.maxPending = stats.pending;
+            if (stats.pending >= LOG_BACKLOG_THRESHOLD)
+                mBacklog = true;
+        }
+
+        try {
+            mExecutor.execute(new Task(task, category));
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            // executor has been shut down in the meantime
+            synchronized (this) {
+                mStats[category].pending--;
+            }
+            return false;
+        }
+    }
+
+    private void started(int category, long waitNanos) {
+        boolean drained = false;
+        synchronized (this) {
+            Stats stats = mStats[category];
+            stats.pending--;
+            stats.executed++;
+            stats.totalWait += waitNanos;
+            if (waitNanos > stats.maxWait)
+                stats.maxWait = waitNanos;
+
+            if (mBacklog && getPendingCount() == 0) {
+                mBacklog = false;
+                drained = true;
+            }
+        }
+
+        if (drained && Log.isDebug())
+            Log.d(MessageCenterService.TAG, "task queue drained: " + dumpStats());
+    }
+
+    /** Stops all workers and discards any pending task. */
+    public void shutdownNow() {
+        mExecutor.shutdownNow();
+        synchronized (this) {
+            for (Stats stats : mStats)
+                stats.pending = 0;
+        }
+    }
+
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    /** Returns the number of tasks waiting to be run in the given category. */
+    public synchronized int getPendingCount(int category) {
+        return mStats[category].pending;
+    }
+
+    /** Returns the total number of tasks waiting to be run. */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Stats stats : mStats)
+            count += stats.pending;
+        return count;
+    }
+
+    /** Returns the number of tasks of the given category discarded because the queue was full. */
+    public synchronized long getDroppedCount(int category) {
+        return mStats[category].dropped;
+    }
+
+    /** Returns the number of tasks of the given category queued beyond capacity. */
+    public synchronized long getOverflowCount(int category) {
+        return mStats[category].overflows;
+    }
+
+    /** Returns the number of tasks of the given category started so far. */
+    public synchronized long getExecutedCount(int category) {
+        return mStats[category].executed;
+    }
+
+    /** Returns a printable summary of the counters for each category. */
+    public synchronized String dumpStats() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < mStats.length; i++) {
+            Stats stats = mStats[i];
+            if (i > 0)
+                out.append("; ");
+            out.append(String.format(Locale.US,
+                "%s: pending=%d max=%d submitted=%d executed=%d dropped=%d overflow=%d wait avg=%dms max=%dms",
+                CATEGORY_NAMES[i], stats.pending, stats.maxPending, stats.submitted,
+                stats.executed, stats.dropped, stats.overflows,
+                stats.executed > 0 ? TimeUnit.NANOSECONDS.toMillis(stats.totalWait / stats.executed) : 0,
+                TimeUnit.NANOSECONDS.toMillis(stats.maxWait)));
+        }
+        return out.toString();
+    }
+
+}
@@ -61,11 +61,11 @@ class PublicKeyListener extends MessageCenterPacketListener implements Exception
     public void processStanza(Stanza packet) {
         PublicKeyPublish p = (PublicKeyPublish) packet;
 
-        byte[] _publicKey = p.getPublicKey();
+        final byte[] _publicKey = p.getPublicKey();
 
         if (_publicKey != null) {
-            BareJid from = p.getFrom().asBareJid();
-            boolean selfJid = Authenticator.isSelfJID(getContext(), from);
+            final BareJid from = p.getFrom().asBareJid();
+            final boolean selfJid = Authenticator.isSelfJID(getContext(), from);
 
             // is this our key?
             if (selfJid) {
@@ -102,38 +102,49 @@ class PublicKeyListener extends MessageCenterPacketListener implements Exception
             // if we are not syncing and this is not a response for the Syncer
             // save the key immediately
             if (!SyncAdapter.getIQPacketId().equals(id) || !SyncAdapter.isActive(getContext())) {
-
-                // updating server key
-                if (from.isDomainBareJid()) {
-                    Log.v("pubkey", "Updating server key for " + from);
-                    try {
-                        Keyring.setKey(getContext(), from.toString(), _publicKey);
-                    }
-                    catch (Exception e) {
-                        // TODO warn user
-                        Log.e(MessageCenterService.TAG, "unable to update user key", e);
+                Runnable store = new Runnable() {
+                    @Override
+                    public void run() {
+                        storeKey(from, _publicKey, selfJid);
                     }
-                }
+                };
+                // the key won't be sent again, don't lose it
+                if (!queueTask(store, PriorityTaskExecutor.TASK_CONTACT))
+                    store.run();
+            }
+        }
+    }
+
+    private void storeKey(BareJid from, byte[] _publicKey, boolean selfJid) {
+        // updating server key
+        if (from.isDomainBareJid()) {
+            Log.v("pubkey", "Updating server key for " + from);
+            try {
+                Keyring.setKey(getContext(), from.toString(), _publicKey);
+            }
+            catch (Exception e) {
+                // TODO warn user
+                Log.e(MessageCenterService.TAG, "unable to update user key", e);
+            }
+        }
 
-                else {
-                    try {
-                        Log.v("pubkey", "Updating key for " + from);
-                        Keyring.setKey(getContext(), from.toString(), _publicKey,
-                            selfJid ? MyUsers.Keys.TRUST_VERIFIED : -1);
+        else {
+            try {
+                Log.v("pubkey", "Updating key for " + from);
+                Keyring.setKey(getContext(), from.toString(), _publicKey,
+                    selfJid ? MyUsers.Keys.TRUST_VERIFIED : -1);
 
-                        // update display name with uid (if empty)
-                        PGPUserID keyUid = PGP.parseUserId(_publicKey, getConnection().getServiceName().toString());
-                        if (keyUid != null && keyUid.getName() != null)
-                            UsersProvider.updateDisplayNameIfEmpty(getContext(), from.toString(), keyUid.getName());
+                // update display name with uid (if empty)
+                PGPUserID keyUid = PGP.parseUserId(_publicKey, getConnection().getServiceName().toString());
+                if (keyUid != null && keyUid.getName() != null)
+                    UsersProvider.updateDisplayNameIfEmpty(getContext(), from.toString(), keyUid.getName());
 
-                        // invalidate cache for this user
-                        Contact.invalidate(from.toString());
-                    }
-                    catch (Exception e) {
-                        // TODO warn user
-                        Log.e(MessageCenterService.TAG, "unable to update user key", e);
-                    }
-                }
+                // invalidate cache for this user
+                Contact.invalidate(from.toString());
+            }
+            catch (Exception e) {
+                // TODO warn user
+                Log.e(MessageCenterService.TAG, "unable to update user key", e);
             }
         }
     }
@@ -42,7 +42,7 @@ import org.kontalk.crypto.PersonalKey;
 import org.kontalk.service.KeyPairGeneratorService;
 import org.kontalk.service.KeyPairGeneratorService.KeyGeneratorReceiver;
 import org.kontalk.service.KeyPairGeneratorService.PersonalKeyRunnable;
-import org.kontalk.util.MessageUtils;
+import org.kontalk.util.XMPPUtils;
 
 import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_REGENERATE_KEYPAIR;
 
@@ -103,7 +103,7 @@ class RegenerateKeyPairListener extends RegisterKeyPairListener {
                         Account acc = Authenticator.getDefaultAccount(am);
                         String name = Authenticator.getDisplayName(am, acc);
 
-                        String userId = MessageUtils.sha1(acc.name);
+                        String userId = XMPPUtils.createLocalpart(acc.name);
                         mKeyRing = key.storeNetwork(userId, getServer().getNetwork(), name,
                             // TODO should we ask passphrase to the user?
                             getApplication().getCachedPassphrase());
@@ -47,6 +47,7 @@ import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Process;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
@@ -142,34 +143,17 @@ public class Syncer {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
-            if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
+            if (MessageCenterService.ACTION_PRESENCE_BATCH.equals(action)) {
 
                 // consider only presences received *after* roster response
-                if (response != null && presenceId != null) {
-
-                    String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                    String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                    String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                    if (type != null && presenceId.equals(id)) {
-                        // update presence item data
-                        String bareJid = XmppStringUtils.parseBareJid(jid);
-                        PresenceItem item = getPresenceItem(bareJid);
-                        item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
-                        item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
-                        item.rosterName = intent.getStringExtra(MessageCenterService.EXTRA_ROSTER_NAME);
-                        if (!item.presence) {
-                            item.presence = true;
-                            // increment presence count
-                            presenceCount++;
-                            // check user existance (only if subscription is "both")
-                            if (!item.matched && intent.getBooleanExtra(MessageCenterService.EXTRA_SUBSCRIBED_FROM, false) &&
-                                intent.getBooleanExtra(MessageCenterService.EXTRA_SUBSCRIBED_TO, false)) {
-                                // verify actual user existance through last activity
-                                String lastActivityId = StringUtils.randomString(6);
-                                MessageCenterService.requestLastActivity(context, item.from, lastActivityId);
-                                notMatched.add(lastActivityId);
-                            }
-                        }
+                if (response != null && presenceId != null &&
+                        presenceId.equals(intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID))) {
+
+                    List<Bundle> presences = intent
+                        .getParcelableArrayListExtra(MessageCenterService.EXTRA_PRESENCES);
+                    if (presences != null) {
+                        for (Bundle presence : presences)
+                            onPresence(context, presence);
                     }
                 }
             }
@@ -325,6 +309,32 @@ public class Syncer {
             }
         }
 
+        private void onPresence(Context context, Bundle presence) {
+            String jid = presence.getString(MessageCenterService.EXTRA_FROM);
+            String type = presence.getString(MessageCenterService.EXTRA_TYPE);
+            if (type != null) {
+                // update presence item data
+                String bareJid = XmppStringUtils.parseBareJid(jid);
+                PresenceItem item = getPresenceItem(bareJid);
+                item.status = presence.getString(MessageCenterService.EXTRA_STATUS);
+                item.timestamp = presence.getLong(MessageCenterService.EXTRA_STAMP, -1);
+                item.rosterName = presence.getString(MessageCenterService.EXTRA_ROSTER_NAME);
+                if (!item.presence) {
+                    item.presence = true;
+                    // increment presence count
+                    presenceCount++;
+                    // check user existance (only if subscription is "both")
+                    if (!item.matched && presence.getBoolean(MessageCenterService.EXTRA_SUBSCRIBED_FROM, false) &&
+                        presence.getBoolean(MessageCenterService.EXTRA_SUBSCRIBED_TO, false)) {
+                        // verify actual user existance through last activity
+                        String lastActivityId = StringUtils.randomString(6);
+                        MessageCenterService.requestLastActivity(context, item.from, lastActivityId);
+                        notMatched.add(lastActivityId);
+                    }
+                }
+            }
+        }
+
         private PresenceItem getPresenceItem(String jid) {
             for (PresenceItem item : response) {
                 if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(jid))
@@ -481,7 +491,7 @@ public class Syncer {
             // register presence broadcast receiver
             PresenceBroadcastReceiver receiver = new PresenceBroadcastReceiver(jidList, this);
             IntentFilter f = new IntentFilter();
-            f.addAction(MessageCenterService.ACTION_PRESENCE);
+            f.addAction(MessageCenterService.ACTION_PRESENCE_BATCH);
             f.addAction(MessageCenterService.ACTION_ROSTER_MATCH);
             f.addAction(MessageCenterService.ACTION_PUBLICKEY);
             f.addAction(MessageCenterService.ACTION_BLOCKLIST);
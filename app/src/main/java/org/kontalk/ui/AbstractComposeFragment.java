@@ -64,6 +64,8 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.provider.ContactsContract.Contacts;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
@@ -72,6 +74,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.ListFragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.util.LongSparseArray;
 import android.text.ClipboardManager;
 import android.text.TextUtils;
 import android.util.SparseBooleanArray;
@@ -102,6 +105,7 @@ import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.message.ImageComponent;
 import org.kontalk.message.LocationComponent;
 import org.kontalk.message.MessageComponent;
+import org.kontalk.message.ReferencedMessage;
 import org.kontalk.message.TextComponent;
 import org.kontalk.message.VCardComponent;
 import org.kontalk.position.Position;
@@ -111,6 +115,7 @@ import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.reporting.ReportingManager;
+import org.kontalk.service.DownloadQueue;
 import org.kontalk.service.DownloadService;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.ui.adapter.MessageListAdapter;
@@ -1063,7 +1068,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
             DownloadService.start(getContext(), msg.getDatabaseId(),
                 msg.getSender(), attachment.getMime(), msg.getTimestamp(),
                 attachment.getSecurityFlags() != Coder.SECURITY_CLEARTEXT,
-                attachment.getFetchUrl());
+                attachment.getFetchUrl(), true, DownloadQueue.PRIORITY_HIGH);
         }
         else {
             // corrupted message :(
@@ -2587,12 +2592,68 @@ public abstract class AbstractComposeFragment extends ListFragment implements
      */
     private static final class MessageListQueryHandler extends AsyncQueryHandler {
         private WeakReference<AbstractComposeFragment> mParent;
+        private final Context mContext;
         private boolean mCancel;
         private long mLastId;
 
         MessageListQueryHandler(AbstractComposeFragment parent) {
             super(parent.getActivity().getApplicationContext().getContentResolver());
             mParent = new WeakReference<>(parent);
+            mContext = parent.getActivity().getApplicationContext();
+        }
+
+        @Override
+        protected Handler createHandler(Looper looper) {
+            return new MessageListWorkerHandler(looper);
+        }
+
+        /**
+         * Runs message queries in the worker thread and loads the messages
+         * replied to by the resulting cursor there too, so the list adapter
+         * won't have to do it in the UI thread. The prefetched messages are
+         * handed over as the query cookie.
+         */
+        private final class MessageListWorkerHandler extends WorkerHandler {
+            MessageListWorkerHandler(Looper looper) {
+                super(looper);
+            }
+
+            @Override
+            public void handleMessage(Message msg) {
+                int token = msg.what;
+                if (token != MESSAGE_LIST_QUERY_TOKEN && token != MESSAGE_PAGE_QUERY_TOKEN) {
+                    super.handleMessage(msg);
+                    return;
+                }
+
+                // only queries are started with these tokens
+                WorkerArgs args = (WorkerArgs) msg.obj;
+                Cursor cursor;
+                LongSparseArray<ReferencedMessage> referencedMessages = null;
+                try {
+                    cursor = mContext.getContentResolver().query(args.uri, args.projection,
+                        args.selection, args.selectionArgs, args.orderBy);
+                    if (cursor != null) {
+                        // calling getCount() causes the cursor window to be filled
+                        cursor.getCount();
+                        Set<Long> ids = CompositeMessage.getReferencedMessageIds(cursor);
+                        if (ids.size() > 0)
+                            referencedMessages = ReferencedMessage.load(mContext, ids);
+                    }
+                }
+                catch (Exception e) {
+                    Log.w(TAG, "exception thrown during message list query", e);
+                    cursor = null;
+                }
+
+                args.result = cursor;
+                args.cookie = referencedMessages;
+
+                Message reply = args.handler.obtainMessage(token);
+                reply.obj = args;
+                reply.arg1 = msg.arg1;
+                reply.sendToTarget();
+            }
         }
 
         @Override
@@ -2601,6 +2662,12 @@ public abstract class AbstractComposeFragment extends ListFragment implements
             super.startQuery(token, cookie, uri, projection, selection, selectionArgs, orderBy);
         }
 
+        /** Returns the referenced messages prefetched by the worker thread. */
+        @SuppressWarnings("unchecked")
+        private static LongSparseArray<ReferencedMessage> getReferencedMessages(Object cookie) {
+            return (LongSparseArray<ReferencedMessage>) cookie;
+        }
+
         @Override
         protected synchronized void onQueryComplete(int token, Object cookie, Cursor cursor) {
             final AbstractComposeFragment parent = mParent.get();
@@ -2667,6 +2734,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                             args.putBoolean(ComposeMessage.EXTRA_RELOADING, true);
                         }
 
+                        parent.mListAdapter.setReferencedMessages(getReferencedMessages(cookie));
                         parent.mListAdapter.changeCursor(cursor);
                         if (newSelectionPos >= 0) {
                             // +1 is for the header view
@@ -2707,6 +2775,12 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                             cursor = new MergeCursor(new Cursor[]{cursor, oldCursor});
                         }
 
+                        LongSparseArray<ReferencedMessage> referencedMessages =
+                            getReferencedMessages(cookie);
+                        if (oldCursor != null)
+                            parent.mListAdapter.addReferencedMessages(referencedMessages);
+                        else
+                            parent.mListAdapter.setReferencedMessages(referencedMessages);
                         parent.mListAdapter.swapCursor(cursor);
                         if (newSelectionPos >= 0)
                             parent.getListView().setSelection(newSelectionPos);
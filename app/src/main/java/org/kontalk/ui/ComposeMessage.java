@@ -45,7 +45,6 @@ import org.kontalk.data.Conversation;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Conversations;
-import org.kontalk.util.MessageUtils;
 import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
 
@@ -321,7 +320,7 @@ public class ComposeMessage extends ToolbarActivity implements ComposeMessagePar
                             uri.getSchemeSpecificPart(),
                             Authenticator.getDefaultAccountName(this), 0);
                     // compute hash and open conversation
-                    String jid = XMPPUtils.createLocalJID(this, MessageUtils.sha1(number));
+                    String jid = XMPPUtils.createLocalJID(this, XMPPUtils.createLocalpart(number));
 
                     // two-panes UI: start conversation list
                     if (Kontalk.hasTwoPanesUI(this)) {
@@ -390,6 +390,9 @@ public class ConversationListFragment extends ListFragment
         if (ctx != null) {
             try {
                 c = Conversation.startQuery(ctx, false);
+                // load contacts in the background before they are bound
+                if (c != null)
+                    Contact.prefetchAsync(ctx, Conversation.getPeers(c));
             }
             catch (SQLiteException e) {
                 Log.e(TAG, "query error", e);
@@ -59,7 +59,6 @@ import org.kontalk.sync.Syncer;
 import org.kontalk.ui.adapter.ConversationListAdapter;
 import org.kontalk.ui.prefs.HelpPreference;
 import org.kontalk.ui.prefs.PreferencesActivity;
-import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.XMPPUtils;
 
@@ -132,7 +131,7 @@ public class ConversationsActivity extends MainActivity
                     if (c.moveToFirst()) {
                         String phone = c.getString(0);
                         String userJID = XMPPUtils.createLocalJID(this,
-                            MessageUtils.sha1(phone));
+                            XMPPUtils.createLocalpart(phone));
                         uri = Threads.getUri(userJID);
                     }
                     c.close();
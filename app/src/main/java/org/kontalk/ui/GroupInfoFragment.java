@@ -18,7 +18,9 @@
 
 package org.kontalk.ui;
 
+import java.lang.ref.WeakReference;
 import java.text.Collator;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
@@ -38,6 +40,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -97,6 +100,7 @@ public class GroupInfoFragment extends ListFragment
     private MenuItem mReaddMenu;
 
     GroupMembersAdapter mMembersAdapter;
+    private LoadMembersTask mLoadMembersTask;
 
     Conversation mConversation;
 
@@ -144,12 +148,24 @@ public class GroupInfoFragment extends ListFragment
             mLocalBroadcastManager.registerReceiver(mRosterReceiver, filter);
         }
 
-        // load members
+        // load members in the background
+        if (mLoadMembersTask != null)
+            mLoadMembersTask.cancel(false);
+        mLoadMembersTask = new LoadMembersTask(this, getGroupMembers());
+        mLoadMembersTask.execute();
+
+        updateUI();
+    }
+
+    void onMembersLoaded(String[] members, Contact[] contacts) {
+        mLoadMembersTask = null;
+
+        String selfJid = Authenticator.getSelfJID(getContext());
         boolean showIgnoreAll = false;
-        String[] members = getGroupMembers();
         mMembersAdapter.clear();
-        for (String jid : members) {
-            Contact c = Contact.findByUserId(getContext(), jid);
+        for (int i = 0; i < members.length; i++) {
+            String jid = members[i];
+            Contact c = contacts[i];
             if (c.isKeyChanged() || c.getTrustedLevel() == MyUsers.Keys.TRUST_UNKNOWN)
                 showIgnoreAll = true;
             boolean owner = KontalkGroup.checkOwnership(mConversation.getGroupJid(), jid);
@@ -164,7 +180,6 @@ public class GroupInfoFragment extends ListFragment
         mIgnoreAll.setVisibility(showIgnoreAll ? View.VISIBLE : View.GONE);
 
         mMembersAdapter.notifyDataSetChanged();
-        updateUI();
     }
 
     private void updateUI() {
@@ -645,12 +660,46 @@ public class GroupInfoFragment extends ListFragment
     @Override
     public void onDetach() {
         super.onDetach();
+        if (mLoadMembersTask != null) {
+            mLoadMembersTask.cancel(false);
+            mLoadMembersTask = null;
+        }
         if (mLocalBroadcastManager != null && mRosterReceiver != null) {
             mLocalBroadcastManager.unregisterReceiver(mRosterReceiver);
         }
         mRosterReceiver = null;
     }
 
+    /** Loads the contacts of the group members. */
+    private static final class LoadMembersTask extends AsyncTask<Void, Void, Contact[]> {
+        private final WeakReference<GroupInfoFragment> mParent;
+        private final Context mContext;
+        private final String[] mMembers;
+
+        LoadMembersTask(GroupInfoFragment parent, String[] members) {
+            mParent = new WeakReference<>(parent);
+            mContext = parent.getContext().getApplicationContext();
+            mMembers = members;
+        }
+
+        @Override
+        protected Contact[] doInBackground(Void... params) {
+            // load all members with a single query
+            Contact.prefetch(mContext, Arrays.asList(mMembers));
+            Contact[] contacts = new Contact[mMembers.length];
+            for (int i = 0; i < mMembers.length; i++)
+                contacts[i] = Contact.findByUserId(mContext, mMembers[i]);
+            return contacts;
+        }
+
+        @Override
+        protected void onPostExecute(Contact[] contacts) {
+            GroupInfoFragment parent = mParent.get();
+            if (parent != null && parent.isAdded())
+                parent.onMembersLoaded(mMembers, contacts);
+        }
+    }
+
     private static final class GroupMembersAdapter extends BaseAdapter {
         private static final class GroupMember {
             final Contact contact;
@@ -18,10 +18,14 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
 import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -33,6 +37,7 @@ import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.GroupCommandComponent;
+import org.kontalk.message.ReferencedMessage;
 import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.view.MessageListItem;
@@ -43,12 +48,29 @@ public class MessageListAdapter extends CursorAdapter {
 
     private static final String TAG = ComposeMessage.TAG;
 
+    /**
+     * Maximum number of parsed messages to keep. This must be well above
+     * twice the number of visible items, so that a message evicted from the
+     * cache is never still bound to a visible item.
+     */
+    private static final int MESSAGE_CACHE_SIZE = 100;
+    /** Maximum number of evicted messages kept for reuse. */
+    private static final int RECYCLE_POOL_SIZE = 10;
+
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
     private OnContentChangedListener mOnContentChangedListener;
 
     private AudioPlayerControl mAudioPlayerControl;
 
+    /** Messages replied to by the messages in the cursor. */
+    private LongSparseArray<ReferencedMessage> mReferencedMessages;
+
+    /** Parsed messages, keyed by database ID. */
+    private MessageCache mMessageCache = new MessageCache();
+    /** Messages evicted from the cache, ready to be reused. */
+    private final Queue<CompositeMessage> mRecycledMessages = new ArrayDeque<>(RECYCLE_POOL_SIZE);
+
     public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
         super(context, cursor, false);
         mFactory = LayoutInflater.from(context);
@@ -72,22 +94,91 @@ public class MessageListAdapter extends CursorAdapter {
         }
 
         MessageListItem headerView = (MessageListItem) view;
-        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+        CachedMessage current = getCachedMessage(context, cursor);
 
         long previousTimestamp = -1;
         int previousItemType = -1;
         String previousPeer = null;
         if (cursor.moveToPrevious()) {
-            previousTimestamp = MessageUtils.getMessageTimestamp(cursor);
-            previousPeer = MessageUtils.getMessagePeer(cursor);
-            previousItemType = getItemViewType(cursor);
+            // the previous row has most likely been bound already
+            CachedMessage previous = mMessageCache
+                .get(cursor.getLong(CompositeMessage.COLUMN_ID));
+            if (previous != null && previous.statusChanged == cursor
+                    .getLong(CompositeMessage.COLUMN_STATUS_CHANGED)) {
+                previousTimestamp = previous.timestamp;
+                previousPeer = previous.peer;
+                previousItemType = previous.itemType;
+            }
+            else {
+                previousTimestamp = MessageUtils.getMessageTimestamp(cursor);
+                previousPeer = MessageUtils.getMessagePeer(cursor);
+                previousItemType = getItemViewType(cursor);
+            }
         }
         cursor.moveToNext();
 
-        headerView.bind(context, msg, mHighlight, getItemViewType(cursor),
+        headerView.bind(context, current.message, mHighlight, current.itemType,
             previousItemType, previousTimestamp, previousPeer, mAudioPlayerControl);
     }
 
+    /**
+     * Returns the parsed message for the current cursor row, parsing it only
+     * if it wasn't already cached or if its status has changed.
+     */
+    private CachedMessage getCachedMessage(Context context, Cursor cursor) {
+        long id = cursor.getLong(CompositeMessage.COLUMN_ID);
+        long statusChanged = cursor.getLong(CompositeMessage.COLUMN_STATUS_CHANGED);
+
+        CachedMessage cached = mMessageCache.get(id);
+        if (cached == null || cached.statusChanged != statusChanged) {
+            CompositeMessage msg = CompositeMessage.fromCursor(context, cursor,
+                mReferencedMessages, mRecycledMessages.poll());
+            cached = new CachedMessage(msg, statusChanged, getItemViewType(cursor));
+            mMessageCache.put(id, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Sets the messages replied to by the messages in the next cursor. They
+     * must be loaded in a background thread, see
+     * {@link ReferencedMessage#load(Context, java.util.Collection)}.
+     * @param referencedMessages the prefetched messages, or null to load them while binding
+     */
+    public void setReferencedMessages(LongSparseArray<ReferencedMessage> referencedMessages) {
+        mReferencedMessages = referencedMessages;
+    }
+
+    /**
+     * Adds the messages replied to by a page of messages that is going to be
+     * merged with the current cursor.
+     */
+    public void addReferencedMessages(LongSparseArray<ReferencedMessage> referencedMessages) {
+        if (referencedMessages == null)
+            return;
+        if (mReferencedMessages == null) {
+            mReferencedMessages = referencedMessages;
+        }
+        else {
+            for (int i = 0, c = referencedMessages.size(); i < c; i++)
+                mReferencedMessages.put(referencedMessages.keyAt(i), referencedMessages.valueAt(i));
+        }
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        if (newCursor == null)
+            mReferencedMessages = null;
+        /*
+         * Data not covered by status_changed (e.g. attachment URIs or
+         * decrypted content) might have changed, so start over with a new
+         * cache. Old entries are not recycled since visible items are still
+         * using them.
+         */
+        mMessageCache = new MessageCache();
+        return super.swapCursor(newCursor);
+    }
+
     @Override
     public boolean isEnabled(int position) {
         return !isEvent((Cursor) getItem(position));
@@ -134,6 +225,38 @@ public class MessageListAdapter extends CursorAdapter {
         return view;
     }
 
+    /** A parsed message along with the data needed to bind the next item. */
+    private static final class CachedMessage {
+        final CompositeMessage message;
+        final long statusChanged;
+        final int itemType;
+        final long timestamp;
+        final String peer;
+
+        CachedMessage(CompositeMessage message, long statusChanged, int itemType) {
+            this.message = message;
+            this.statusChanged = statusChanged;
+            this.itemType = itemType;
+            this.timestamp = MessageUtils.getMessageTimestamp(message);
+            // same as the peer column
+            this.peer = message.getSender() != null ?
+                message.getSender() : message.getRecipients().get(0);
+        }
+    }
+
+    private final class MessageCache extends LruCache<Long, CachedMessage> {
+        MessageCache() {
+            super(MESSAGE_CACHE_SIZE);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Long key, CachedMessage oldValue, CachedMessage newValue) {
+            // replaced entries might still be bound to a visible item
+            if (evicted && mRecycledMessages.size() < RECYCLE_POOL_SIZE)
+                mRecycledMessages.offer(oldValue.message);
+        }
+    }
+
     public interface OnContentChangedListener {
         void onContentChanged(MessageListAdapter adapter);
     }
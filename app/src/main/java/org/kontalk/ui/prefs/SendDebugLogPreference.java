@@ -19,15 +19,19 @@
 package org.kontalk.ui.prefs;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.preference.Preference;
 import android.util.AttributeSet;
 
+import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 
@@ -37,6 +41,12 @@ import org.kontalk.R;
  * @author Daniele Ricci
  */
 public class SendDebugLogPreference extends Preference {
+    static final String TAG = Kontalk.TAG;
+
+    /** How long to wait for pending log lines to be written before exporting. */
+    private static final long FLUSH_TIMEOUT = 2000;
+
+    private ExportLogTask mExportTask;
 
     public SendDebugLogPreference(Context context) {
         super(context);
@@ -70,14 +80,50 @@ public class SendDebugLogPreference extends Preference {
     }
 
     void sendDebugLog(Context context) {
-        File file = Log.getLogFile();
-        if (file != null && file.isFile()) {
-            Intent i = new Intent(Intent.ACTION_SEND);
-            i.setType("text/plain");
-            i.putExtra(Intent.EXTRA_EMAIL, new String[] { context.getString(R.string.mailto) });
-            i.putExtra(Intent.EXTRA_SUBJECT, "Kontalk debug log");
-            i.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
-            context.startActivity(i);
+        // flushing and exporting the log might take a while
+        if (mExportTask == null || mExportTask.getStatus() == AsyncTask.Status.FINISHED) {
+            mExportTask = new ExportLogTask(context);
+            mExportTask.execute();
+        }
+    }
+
+    private static void sendLogFile(Context context, File file) {
+        Intent i = new Intent(Intent.ACTION_SEND);
+        i.setType("text/plain");
+        i.putExtra(Intent.EXTRA_EMAIL, new String[] { context.getString(R.string.mailto) });
+        i.putExtra(Intent.EXTRA_SUBJECT, "Kontalk debug log");
+        i.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+        context.startActivity(i);
+    }
+
+    /** Writes pending log lines and exports the log file. */
+    private static final class ExportLogTask extends AsyncTask<Void, Void, File> {
+        private final WeakReference<Context> mContext;
+
+        ExportLogTask(Context context) {
+            mContext = new WeakReference<>(context);
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            // make sure the exported file is up to date
+            if (!Log.flush(FLUSH_TIMEOUT))
+                Log.w(TAG, "debug log might be incomplete");
+            try {
+                // log is split into multiple segments
+                return Log.exportLogFile();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "unable to export debug log", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            Context context = mContext.get();
+            if (context != null && file != null)
+                sendLogFile(context, file);
         }
     }
 
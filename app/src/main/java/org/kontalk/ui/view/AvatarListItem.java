@@ -87,6 +87,9 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
         Drawable defaultIcon = isGroupChat() ?
             getDefaultGroupImage() : getDefaultContactImage();
 
+        // we don't need the previous avatar anymore
+        Contact.cancelAvatarAsync(this);
+
         if (contact != null) {
             // null tag - first time loading: set default
             if (mAvatarView.getTag() == null)
@@ -103,6 +106,11 @@ public abstract class AvatarListItem extends RelativeLayout implements ContactCa
         }
     }
 
+    /** Cancels any pending avatar load, e.g. when the item is recycled. */
+    protected void cancelAvatar() {
+        Contact.cancelAvatarAsync(this);
+    }
+
     protected abstract boolean isGroupChat();
 
     @Override
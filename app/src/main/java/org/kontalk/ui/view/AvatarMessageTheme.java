@@ -103,6 +103,8 @@ public class AvatarMessageTheme extends BaseMessageTheme implements Contact.Cont
             }
             else {
                 mAvatar.setImageDrawable(sDefaultContactImage);
+                // we don't need the previous avatar anymore
+                Contact.cancelAvatarAsync(this);
                 if (contact != null) {
                     // we mark this with the contact's hash code for the async avatar
                     mAvatar.setTag(contact.hashCode());
@@ -147,6 +147,7 @@ public class ContactsListItem extends AvatarListItem implements Checkable {
 
     public final void unbind() {
         mContact = null;
+        cancelAvatar();
         /*
         mAvatarView.setImageDrawable(null);
         BitmapDrawable d = (BitmapDrawable) mAvatarView.getDrawable();
@@ -287,6 +287,7 @@ public class ConversationListItem extends AvatarListItem implements Checkable {
     }
 
     public final void unbind() {
+        cancelAvatar();
         // TODO unbind (contact?)
     }
 
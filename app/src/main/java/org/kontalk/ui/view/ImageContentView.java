@@ -19,9 +19,6 @@
 package org.kontalk.ui.view;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.regex.Pattern;
 
@@ -30,6 +27,7 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
@@ -52,10 +50,16 @@ public class ImageContentView extends FrameLayout
         implements MessageContentView<ImageComponent> {
     static final String TAG = ComposeMessage.TAG;
 
+    /** Maximum size of a decoded thumbnail (same as generated thumbnails). */
+    private static final int MAX_THUMBNAIL_SIZE = 512;
+
     private ImageComponent mComponent;
     private ImageView mContent;
     private TextView mPlaceholder;
 
+    /** Pending thumbnail load, if any. */
+    private ThumbnailLoader.Request mLoadRequest;
+
     public ImageContentView(Context context) {
         super(context);
     }
@@ -79,8 +83,16 @@ public class ImageContentView extends FrameLayout
     public void bind(long messageId, ImageComponent component, Pattern highlight) {
         mComponent = component;
 
-        Bitmap bitmap = getBitmap();
-        showBitmap(bitmap);
+        File previewFile = component.getPreviewFile();
+        Bitmap bitmap = previewFile != null ? ThumbnailLoader.getCached(previewFile) : null;
+        if (bitmap != null || previewFile == null) {
+            showBitmap(bitmap);
+        }
+        else {
+            // show the placeholder while the thumbnail is being loaded
+            showBitmap(null);
+            loadBitmap(previewFile);
+        }
     }
 
     /** This method might be called from a thread other than the main thread. */
@@ -104,14 +116,12 @@ public class ImageContentView extends FrameLayout
         }
     }
 
-    Bitmap loadPreview(File previewFile) throws IOException {
-        InputStream in = new FileInputStream(previewFile);
-        Bitmap bitmap = MediaStorage.loadBitmapSimple(in);
-        in.close();
-        return bitmap;
+    private int getMaxThumbnailSize() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return Math.min(Math.max(metrics.widthPixels, metrics.heightPixels), MAX_THUMBNAIL_SIZE);
     }
 
-    private Bitmap getBitmap() {
+    private void loadBitmap(File previewFile) {
         /*
          * local_uri is used for referencing the original media.
          * preview_uri is used to load the media thumbnail.
@@ -119,44 +129,78 @@ public class ImageContentView extends FrameLayout
          * generated on the fly from local_uri - if possible.
          */
 
-        File previewFile = mComponent.getPreviewFile();
-        Uri localUri = mComponent.getLocalUri();
-        try {
-            // preview path
-            if (previewFile != null) {
-                // load from file - we know it's a file uri
-                return loadPreview(previewFile);
-            }
+        cancelLoad();
+
+        final ImageComponent component = mComponent;
+        mLoadRequest = ThumbnailLoader.load(previewFile, getMaxThumbnailSize(),
+            new ThumbnailLoader.Callback() {
+                @Override
+                public void onThumbnailLoaded(File file, Bitmap bitmap) {
+                    mLoadRequest = null;
+                    if (mComponent == component)
+                        showBitmap(bitmap);
+                }
+
+                @Override
+                public void onThumbnailError(File file, Exception e) {
+                    mLoadRequest = null;
+                    if (mComponent == component)
+                        generateThumbnail(file);
+                }
+            });
+    }
+
+    void generateThumbnail(File previewFile) {
+        Log.w(TAG, "unable to load thumbnail, generating one");
+
+        /*
+         * unable to load preview - generate thumbnail
+         * Of course a thumbnail can be generated only if the image has
+         * already been downloaded.
+         */
+        final ImageComponent component = mComponent;
+        Uri localUri = component.getLocalUri();
+        if (localUri != null) {
+            new GenerateThumbnailTask(getContext(), localUri, previewFile, new ThumbnailListener() {
+                @Override
+                public void onThumbnailGenerated(File previewFile) {
+                    ThumbnailLoader.invalidate(previewFile);
+                    // view might have been recycled in the meantime
+                    if (mComponent != component)
+                        return;
+
+                    cancelLoad();
+                    mLoadRequest = ThumbnailLoader.load(previewFile, getMaxThumbnailSize(),
+                        new ThumbnailLoader.Callback() {
+                            @Override
+                            public void onThumbnailLoaded(File file, Bitmap bitmap) {
+                                mLoadRequest = null;
+                                if (mComponent == component)
+                                    showBitmap(bitmap);
+                            }
+
+                            @Override
+                            public void onThumbnailError(File file, Exception e) {
+                                // since at this point anything can happen, just ignore any errors
+                                mLoadRequest = null;
+                                Log.w(TAG, "unable to load generated thumbnail", e);
+                            }
+                        });
+                }
+            }).execute();
         }
-        catch (Exception e) {
-            Log.w(TAG, "unable to load thumbnail, generating one");
-
-            /*
-             * unable to load preview - generate thumbnail
-             * Of course a thumbnail can be generated only if the image has
-             * already been downloaded.
-             */
-            if (localUri != null) {
-                new GenerateThumbnailTask(getContext(), localUri, previewFile, new ThumbnailListener() {
-                    @Override
-                    public void onThumbnailGenerated(File previewFile) {
-                        try {
-                            Bitmap bitmap = loadPreview(previewFile);
-                            showBitmap(bitmap);
-                        }
-                        catch (IOException e) {
-                            // since at this point anything can happen, just ignore any errors
-                            Log.w(TAG, "unable to load generated thumbnail", e);
-                        }
-                    }
-                }).execute();
-            }
+    }
+
+    private void cancelLoad() {
+        if (mLoadRequest != null) {
+            mLoadRequest.cancel();
+            mLoadRequest = null;
         }
-        return null;
     }
 
     @Override
     public void unbind() {
+        cancelLoad();
         clear();
     }
 
@@ -40,8 +40,10 @@ import android.widget.TextView;
 
 import org.kontalk.R;
 import org.kontalk.data.Contact;
+import org.kontalk.message.AttachmentComponent;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.GroupComponent;
+import org.kontalk.service.DownloadService;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 
@@ -166,6 +168,13 @@ public class MessageListItem extends RelativeLayout implements Checkable {
             }
             mBalloonTheme.processComponents(mMessage.getDatabaseId(),
                 highlight, msg.getComponents(), argsAppend);
+
+            // attachment being downloaded is on screen: move it ahead in the queue
+            AttachmentComponent attachment = msg.getComponent(AttachmentComponent.class);
+            if (attachment != null && attachment.getLocalUri() == null &&
+                    attachment.getFetchUrl() != null && msg.getSender() != null) {
+                DownloadService.prioritize(attachment.getFetchUrl());
+            }
         }
     }
 
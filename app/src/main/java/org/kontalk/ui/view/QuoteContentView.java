@@ -22,6 +22,7 @@ import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.graphics.Typeface;
+import android.os.Looper;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -74,7 +75,8 @@ public class QuoteContentView extends RelativeLayout
     public void bind(long databaseId, InReplyToComponent component, Pattern highlight) {
         mComponent = component;
 
-        CharSequence msgSender;
+        String senderId = null;
+        CharSequence msgSender = null;
         CharSequence msgText;
 
         ReferencedMessage referencedMsg = mComponent.getContent();
@@ -95,16 +97,12 @@ public class QuoteContentView extends RelativeLayout
             TextContentView.applyTextWorkarounds(formattedMessage);
             msgText = formattedMessage;
 
-            String senderId;
             if (referencedMsg.getDirection() == MyMessages.Messages.DIRECTION_OUT) {
                 senderId = Authenticator.getSelfJID(getContext());
             }
             else {
                 senderId = referencedMsg.getPeer();
             }
-
-            Contact sender = Contact.findByUserId(getContext(), senderId);
-            msgSender = sender.getDisplayName();
         }
         else {
             Spannable formattedMessage = new SpannableString(getContext()
@@ -121,6 +119,31 @@ public class QuoteContentView extends RelativeLayout
 
         mSender.setText(msgSender);
         mContent.setText(msgText);
+
+        if (senderId != null)
+            loadSender(senderId);
+    }
+
+    private void loadSender(String senderId) {
+        final InReplyToComponent component = mComponent;
+        Contact.findByUserIdAsync(getContext(), senderId, new Contact.ContactLoadedCallback() {
+            @Override
+            public void contactLoaded(final Contact contact) {
+                Runnable update = new Runnable() {
+                    @Override
+                    public void run() {
+                        // view might have been recycled in the meantime
+                        if (mComponent == component)
+                            mSender.setText(contact.getDisplayName());
+                    }
+                };
+
+                if (Looper.myLooper() == Looper.getMainLooper())
+                    update.run();
+                else
+                    post(update);
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.view;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import org.kontalk.util.MediaStorage;
+
+
+/**
+ * Loads message preview thumbnails in the background. Decoded bitmaps are
+ * kept in a memory cache, keyed by preview file path, sized as a fraction
+ * of the heap.
+ */
+class ThumbnailLoader {
+
+    /** Number of worker threads. */
+    private static final int THREADS = 2;
+    /** Fraction of the heap used by the cache. */
+    private static final int CACHE_HEAP_FRACTION = 8;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(THREADS);
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static final LruCache<String, Bitmap> sCache = new LruCache<String, Bitmap>
+            ((int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            // bitmaps are never recycled here since they might be still in use
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+
+    interface Callback {
+        /** Called on the main thread. The bitmap might be null if it couldn't be decoded. */
+        void onThumbnailLoaded(File file, Bitmap bitmap);
+
+        /** Called on the main thread. */
+        void onThumbnailError(File file, Exception e);
+    }
+
+    /** A pending thumbnail request. */
+    static final class Request implements Runnable {
+        private final File mFile;
+        private final int mMaxSize;
+        private final Callback mCallback;
+        private volatile boolean mCanceled;
+        private Future<?> mFuture;
+
+        Request(File file, int maxSize, Callback callback) {
+            mFile = file;
+            mMaxSize = maxSize;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (mCanceled)
+                return;
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                final Bitmap bitmap = MediaStorage.loadBitmapSimple(mFile, mMaxSize, mMaxSize);
+                if (bitmap != null)
+                    sCache.put(mFile.getAbsolutePath(), bitmap);
+
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCanceled)
+                            mCallback.onThumbnailLoaded(mFile, bitmap);
+                    }
+                });
+            }
+            catch (final Exception e) {
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCanceled)
+                            mCallback.onThumbnailError(mFile, e);
+                    }
+                });
+            }
+        }
+
+        /** Cancels the request. The callback won't be called after this. Must be called on the main thread. */
+        void cancel() {
+            mCanceled = true;
+            mFuture.cancel(false);
+        }
+    }
+
+    private ThumbnailLoader() {
+    }
+
+    /** Returns a cached thumbnail, if any. */
+    static Bitmap getCached(File file) {
+        return sCache.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Loads a thumbnail in the background.
+     * @param maxSize the maximum size of the thumbnail, larger images will be subsampled
+     */
+    static Request load(File file, int maxSize, Callback callback) {
+        Request request = new Request(file, maxSize, callback);
+        request.mFuture = sExecutor.submit(request);
+        return request;
+    }
+
+    /** Drops a thumbnail from the cache, e.g. because it was regenerated. */
+    static void invalidate(File file) {
+        sCache.remove(file.getAbsolutePath());
+    }
+
+}
@@ -20,6 +20,7 @@ package org.kontalk.upload;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.KeyManagementException;
@@ -39,7 +40,9 @@ import android.net.Uri;
 import android.os.Build;
 
 import org.kontalk.client.ClientHTTPConnection;
+import org.kontalk.crypto.Coder;
 import org.kontalk.service.ProgressListener;
+import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressInputStreamEntity;
 
@@ -75,8 +78,10 @@ public class HTPPFileUploadConnection implements UploadConnection {
     }
 
     @Override
-    public String upload(Uri uri, long length, String mime, boolean encrypt, String[] to, ProgressListener listener) throws IOException {
+    public String upload(Uri uri, long length, String mime, Coder.EncryptionSeed encrypt,
+            String[] to, ProgressListener listener) throws IOException {
         InputStream inMessage = null;
+        boolean success = false;
         try {
             inMessage = mContext.getContentResolver().openInputStream(uri);
 
@@ -85,12 +90,26 @@ public class HTPPFileUploadConnection implements UploadConnection {
             currentRequest = prepareMessage(length, mime, acceptAnyCertificate);
 
             // execute!
-            ProgressInputStreamEntity entity = new ProgressInputStreamEntity(inMessage, this, listener, PROGRESS_PUBLISH_DELAY);
-            entity.writeTo(currentRequest.getOutputStream(), length);
+            if (encrypt != null) {
+                // encrypt directly into the request body
+                listener.start(this);
+                OutputStream out = ProgressInputStreamEntity.progressStream(currentRequest
+                    .getOutputStream(), this, listener, length, PROGRESS_PUBLISH_DELAY);
+                MessageUtils.encryptFile(mContext, inMessage, out, mime, to, encrypt);
+                out.close();
+            }
+            else {
+                ProgressInputStreamEntity entity = new ProgressInputStreamEntity(inMessage, this, listener, PROGRESS_PUBLISH_DELAY);
+                entity.writeTo(currentRequest.getOutputStream(), length);
+            }
 
             if (currentRequest.getResponseCode() != 200)
                 throw new IOException(currentRequest.getResponseCode() + " " + currentRequest.getResponseMessage());
 
+            // consume the response so the connection can be reused
+            consumeResponse(currentRequest);
+            success = true;
+
             // no media url returned
             return null;
         }
@@ -98,7 +117,9 @@ public class HTPPFileUploadConnection implements UploadConnection {
             throw new IOException("upload error", e);
         }
         finally {
-            currentRequest.disconnect();
+            // keep the connection alive for the next transfer if possible
+            if (!success && currentRequest != null)
+                currentRequest.disconnect();
             currentRequest = null;
             if (inMessage != null) {
                 try {
@@ -111,6 +132,19 @@ public class HTPPFileUploadConnection implements UploadConnection {
         }
     }
 
+    private static void consumeResponse(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
     @SuppressLint("AllowAllHostnameVerifier")
     private void setupClient(HttpURLConnection conn, long length, String mime, boolean acceptAnyCertificate)
         throws CertificateException, UnrecoverableKeyException,
@@ -133,12 +167,18 @@ public class HTPPFileUploadConnection implements UploadConnection {
         conn.setReadTimeout(READ_TIMEOUT);
         conn.setDoOutput(true);
         conn.setDoInput(true);
-        conn.setRequestProperty("Content-Length", String.valueOf(length));
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            conn.setFixedLengthStreamingMode(length);
+        if (length < 0) {
+            // unknown length (e.g. encrypted on the fly)
+            conn.setChunkedStreamingMode(0);
         }
         else {
-            conn.setFixedLengthStreamingMode((int) length);
+            conn.setRequestProperty("Content-Length", String.valueOf(length));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                conn.setFixedLengthStreamingMode(length);
+            }
+            else {
+                conn.setFixedLengthStreamingMode((int) length);
+            }
         }
         conn.setRequestMethod("PUT");
     }
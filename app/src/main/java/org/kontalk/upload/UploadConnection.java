@@ -22,6 +22,7 @@ import java.io.IOException;
 
 import android.net.Uri;
 
+import org.kontalk.crypto.Coder;
 import org.kontalk.service.ProgressListener;
 
 
@@ -33,7 +34,13 @@ public interface UploadConnection {
 
     public void abort();
 
-    public String upload(Uri uri, long length, String mime, boolean encrypt, String[] to, ProgressListener listener)
-        throws IOException;
+    /**
+     * Uploads the given content.
+     * @param length length of the uploaded data, -1 if unknown
+     * @param encrypt if not null, content will be encrypted on the fly for
+     *                the given recipients using this seed
+     */
+    public String upload(Uri uri, long length, String mime, Coder.EncryptionSeed encrypt,
+        String[] to, ProgressListener listener) throws IOException;
 
 }
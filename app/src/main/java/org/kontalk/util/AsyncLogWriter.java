@@ -0,0 +1,336 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+
+/**
+ * Writes log lines to a {@link RotatingFileWriter} from a background thread.
+ * Lines are queued in a bounded buffer and written in batches. The file is
+ * flushed periodically, as soon as an error line is written and on request.
+ * Callers never wait for the writer thread: when the buffer is full, lines
+ * are dropped and counted.
+ */
+public class AsyncLogWriter implements Flushable, Closeable {
+
+    /** Default buffer capacity, in lines. */
+    private static final int DEFAULT_CAPACITY = 2048;
+    /** Default delay between flushes. */
+    private static final long DEFAULT_FLUSH_DELAY = 1000;
+    /** Maximum number of lines written between two checks for a flush. */
+    private static final int MAX_BATCH = 256;
+    /** How long {@link #close()} waits for pending lines to be written. */
+    private static final long CLOSE_TIMEOUT = 2000;
+
+    private static final class Entry {
+        final long time;
+        final int level;
+        final String tag;
+        final String msg;
+        /** For flush requests, counted down once the file has been flushed. */
+        final CountDownLatch written;
+
+        Entry(long time, int level, String tag, String msg, CountDownLatch written) {
+            this.time = time;
+            this.level = level;
+            this.tag = tag;
+            this.msg = msg;
+            this.written = written;
+        }
+    }
+
+    /** Level of blocking flush requests, which are not log lines. */
+    private static final int LEVEL_FLUSH = -1;
+
+    /** Asks the writer thread to flush. */
+    private static final Entry FLUSH = new Entry(0, 0, null, null, null);
+    /** Asks the writer thread to flush, close the file and exit. */
+    private static final Entry CLOSE = new Entry(0, 0, null, null, null);
+
+    private final RotatingFileWriter mWriter;
+    private final BlockingQueue<Entry> mQueue;
+    private final long mFlushDelay;
+    private final Thread mThread;
+
+    /** Lines dropped since the last notice in the log. */
+    private final AtomicLong mDroppedPending = new AtomicLong();
+    /** Lines dropped since creation. */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile boolean mClosed;
+    private volatile boolean mAbort;
+
+    public AsyncLogWriter(RotatingFileWriter writer) {
+        this(writer, DEFAULT_CAPACITY, DEFAULT_FLUSH_DELAY);
+    }
+
+    public AsyncLogWriter(RotatingFileWriter writer, int capacity, long flushDelay) {
+        mWriter = writer;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mFlushDelay = flushDelay;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AsyncLogWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues a line. This method never blocks: if the buffer is full, the
+     * line is dropped. Error lines will cause a flush as soon as they are
+     * written.
+     * @return false if the writer has been closed, e.g. because of an I/O error
+     */
+    public boolean println(int level, String tag, String msg) {
+        if (mClosed)
+            return false;
+
+        if (!mQueue.offer(new Entry(System.currentTimeMillis(), level, tag, msg, null))) {
+            mDroppedPending.incrementAndGet();
+            mDropped.incrementAndGet();
+        }
+        return true;
+    }
+
+    /** Number of lines dropped because the buffer was full. */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Asks the writer thread to flush as soon as possible. This method doesn't block. */
+    @Override
+    public void flush() {
+        mQueue.offer(FLUSH);
+    }
+
+    /**
+     * Writes all lines queued so far to the file, waiting at most the given time.
+     * @return true if the lines were written before the timeout expired
+     */
+    public boolean flush(long timeout) {
+        if (mClosed)
+            return false;
+
+        CountDownLatch written = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        try {
+            if (!mQueue.offer(new Entry(0, LEVEL_FLUSH, null, null, written), timeout, TimeUnit.MILLISECONDS))
+                return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return await(written, timeout - (System.currentTimeMillis() - start));
+    }
+
+    private static boolean await(CountDownLatch latch, long timeout) {
+        try {
+            return latch.await(Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Writes pending lines and closes the file, waiting for a while for the writer thread. */
+    @Override
+    public void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            try {
+                // wait for the writer thread to make room if needed
+                mQueue.offer(CLOSE, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+                mThread.join(CLOSE_TIMEOUT);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Discards pending lines and deletes the file. This method doesn't block. */
+    public void abort() {
+        mAbort = true;
+        mClosed = true;
+        mQueue.clear();
+        mQueue.offer(CLOSE);
+    }
+
+    private void writeLoop() {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        Date date = new Date();
+        StringBuilder line = new StringBuilder();
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        List<CountDownLatch> waiting = new ArrayList<>();
+        long lastFlush = System.currentTimeMillis();
+        boolean dirty = false;
+
+        try {
+            while (true) {
+                Entry first;
+                try {
+                    if (dirty) {
+                        long wait = lastFlush + mFlushDelay - System.currentTimeMillis();
+                        first = mQueue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                    }
+                    else {
+                        first = mQueue.take();
+                    }
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+
+                boolean flush = false;
+                boolean stop = false;
+                if (first != null) {
+                    batch.add(first);
+                    mQueue.drainTo(batch, MAX_BATCH - 1);
+
+                    long dropped = mDroppedPending.getAndSet(0);
+                    if (dropped > 0) {
+                        mWriter.println(dropped + " log lines dropped");
+                        dirty = true;
+                    }
+
+                    for (int i = 0; i < batch.size(); i++) {
+                        Entry entry = batch.get(i);
+                        if (entry == CLOSE) {
+                            stop = true;
+                            break;
+                        }
+                        else if (entry == FLUSH) {
+                            flush = true;
+                        }
+                        else if (entry.level == LEVEL_FLUSH) {
+                            waiting.add(entry.written);
+                            flush = true;
+                        }
+                        else {
+                            if (mAbort)
+                                continue;
+                            if (entry.level >= Log.ERROR)
+                                flush = true;
+
+                            date.setTime(entry.time);
+                            line.setLength(0);
+                            line.append(dateFormat.format(date))
+                                .append(' ')
+                                .append(getLevelString(entry.level))
+                                .append('/')
+                                .append(entry.tag)
+                                .append(": ")
+                                .append(entry.msg);
+                            mWriter.println(line.toString());
+                            dirty = true;
+                        }
+                    }
+                    batch.clear();
+                }
+
+                if (stop)
+                    break;
+
+                long now = System.currentTimeMillis();
+                if (dirty && (flush || now - lastFlush >= mFlushDelay)) {
+                    mWriter.flush();
+                    dirty = false;
+                    lastFlush = now;
+                }
+                releaseWaiting(waiting);
+            }
+        }
+        catch (IOException e) {
+            // disable logging but keep the file
+            // pending lines are discarded below
+            mClosed = true;
+        }
+        finally {
+            mClosed = true;
+            if (mAbort) {
+                try {
+                    mWriter.abort();
+                }
+                catch (IOException ignored) {
+                }
+            }
+            else {
+                SystemUtils.closeStream(mWriter);
+            }
+            releaseWaiting(waiting);
+            // release callers still waiting for lines that won't be written
+            mQueue.drainTo(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                CountDownLatch written = batch.get(i).written;
+                if (written != null)
+                    written.countDown();
+            }
+            batch.clear();
+        }
+    }
+
+    private static void releaseWaiting(List<CountDownLatch> waiting) {
+        for (int i = 0; i < waiting.size(); i++)
+            waiting.get(i).countDown();
+        waiting.clear();
+    }
+
+    private static char getLevelString(int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            case Log.ERROR:
+                return 'E';
+            default:
+                return '?';
+        }
+    }
+
+}
@@ -19,6 +19,7 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -161,6 +162,32 @@ public abstract class MediaStorage {
         return BitmapFactory.decodeStream(in, null, options);
     }
 
+    /**
+     * Loads a bitmap from a file, subsampling it to fit the given size.
+     * @return the bitmap, or null if the file could not be decoded
+     */
+    public static Bitmap loadBitmapSimple(File file, int scaleWidth, int scaleHeight) throws IOException {
+        BitmapFactory.Options options;
+        InputStream in = new FileInputStream(file);
+        try {
+            options = preloadBitmap(in, scaleWidth, scaleHeight);
+        }
+        finally {
+            in.close();
+        }
+
+        if (options == null)
+            return null;
+
+        in = new FileInputStream(file);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            in.close();
+        }
+    }
+
     /** Writes a thumbnail of a media to the internal cache. */
     public static File cacheThumbnail(Context context, Uri media, String filename, boolean forNetwork) throws IOException {
         File file = new File(context.getCacheDir(), filename);
@@ -406,6 +433,26 @@ public abstract class MediaStorage {
         return new File(DOWNLOADS_ROOT, "file_" + timeStamp + "." + extension);
     }
 
+    /**
+     * Atomically creates a new empty file with the given name, or with a
+     * numbered variant of it if the file already exists.
+     * @return the file that was created
+     */
+    public static File createUniqueFile(File file) throws IOException {
+        if (file.createNewFile())
+            return file;
+
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            File candidate = new File(file.getParentFile(), base + "_" + i + extension);
+            if (candidate.createNewFile())
+                return candidate;
+        }
+    }
+
     /** Ensures that the given path exists. */
     private static boolean createMedia(File path) {
         return path.isDirectory() || path.mkdirs();
@@ -19,11 +19,15 @@
 package org.kontalk.util;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestException;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -48,7 +52,9 @@ import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
 import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -261,23 +267,81 @@ public final class MessageUtils {
         return c.getInt(CompositeMessage.COLUMN_DIRECTION);
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static String bytesToHex(byte[] data) {
-        StringBuilder buf = new StringBuilder();
-        for (int i = 0; i < data.length; i++) {
-            int halfbyte = (data[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-            do {
-                if ((0 <= halfbyte) && (halfbyte <= 9))
-                    buf.append((char) ('0' + halfbyte));
-                else
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                halfbyte = data[i] & 0x0F;
-            } while(two_halfs++ < 1);
-        }
-        return buf.toString();
-    }
-
-    /** @deprecated Use {@link org.jivesoftware.smack.util.SHA1#hex(String)} */
+        return bytesToHex(data, 0, data.length);
+    }
+
+    public static String bytesToHex(byte[] data, int offset, int length) {
+        char[] out = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i];
+            out[i * 2] = HEX_DIGITS[(b >>> 4) & 0x0F];
+            out[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(out);
+    }
+
+    /** Per-thread digest and buffers for {@link #sha1Hex(String)}. */
+    private static final class Sha1State {
+        final MessageDigest digest = new SHA1.Digest();
+        final byte[] input = new byte[64];
+        final byte[] output = new byte[20];
+    }
+
+    private static final ThreadLocal<Sha1State> sSha1State = new ThreadLocal<Sha1State>() {
+        @Override
+        protected Sha1State initialValue() {
+            return new Sha1State();
+        }
+    };
+
+    /**
+     * Returns the hex-encoded SHA-1 hash of the UTF-8 encoding of the given
+     * text. Short ASCII strings (e.g. phone numbers) are hashed without
+     * intermediate allocations.
+     */
+    public static String sha1Hex(String text) {
+        Sha1State state = sSha1State.get();
+        MessageDigest md = state.digest;
+
+        int length = text.length();
+        boolean ascii = length <= state.input.length;
+        for (int i = 0; ascii && i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                state.input[i] = (byte) c;
+            else
+                ascii = false;
+        }
+
+        if (ascii) {
+            md.update(state.input, 0, length);
+        }
+        else {
+            byte[] data = text.getBytes(UTF8);
+            md.update(data, 0, data.length);
+        }
+
+        try {
+            md.digest(state.output, 0, state.output.length);
+        }
+        catch (DigestException e) {
+            // will never happen
+            md.reset();
+            throw new IllegalStateException(e);
+        }
+        return bytesToHex(state.output, 0, state.output.length);
+    }
+
+    /**
+     * Legacy SHA-1 hash, still used for passphrases: only the first
+     * {@code text.length()} bytes of the platform encoding are hashed.
+     * Same as {@link #sha1Hex(String)} for ASCII strings.
+     * @deprecated Use {@link #sha1Hex(String)}
+     */
     @Deprecated
     public static String sha1(String text) {
         MessageDigest md = new SHA1.Digest();
@@ -594,18 +658,144 @@ public final class MessageUtils {
         return StringUtils.randomString(30);
     }
 
-    public static File encryptFile(Context context, InputStream in, String[] users)
+    /**
+     * Encrypts a file directly into the given stream.
+     * @param seed if not null, the output will be the same for the same seed
+     * @see #getEncryptedLength
+     */
+    public static void encryptFile(Context context, InputStream in, OutputStream out,
+            String mime, String[] users, Coder.EncryptionSeed seed)
+            throws GeneralSecurityException, IOException, PGPException {
+        PersonalKey key = Kontalk.get(context).getPersonalKey();
+        EndpointServer server = Preferences.getEndpointServer(context);
+        Coder coder = Keyring.getEncryptCoder(context, server, key, users);
+        coder.encryptFile(in, out, mime, seed);
+    }
+
+    private static final int ENCRYPTED_LENGTH_CACHE_SIZE = 20;
+
+    /**
+     * Encrypted lengths of recently sent media by message database ID.
+     * Timestamps are not secret, so they are kept to reuse the length when a
+     * message is sent again with unchanged content.
+     */
+    private static final LruCache<Long, EncryptedLength> sEncryptedLengths =
+        new LruCache<>(ENCRYPTED_LENGTH_CACHE_SIZE);
+
+    /**
+     * Prepares a media file to be encrypted while uploading: creates a new
+     * seed and returns it with the encrypted length, computed without storing
+     * the encrypted data anywhere. The file can then be encrypted on the fly
+     * using the returned seed.
+     * If the same message was already prepared with the same content and
+     * recipients, the length is reused (when the coder allows it).
+     */
+    public static EncryptedUpload prepareEncryptedUpload(Context context, long msgId,
+            Uri uri, String mime, String[] users)
             throws GeneralSecurityException, IOException, PGPException {
+        long plainLength = MediaStorage.getLength(context, uri);
+        long lastModified = "file".equals(uri.getScheme()) ?
+            new File(uri.getPath()).lastModified() : 0;
+
+        EncryptedLength cached;
+        synchronized (sEncryptedLengths) {
+            cached = sEncryptedLengths.get(msgId);
+        }
+        if (cached != null && cached.matches(uri, plainLength, lastModified, mime, users)) {
+            // the length depends only on content and timestamp
+            return new EncryptedUpload(Coder.EncryptionSeed
+                .create(cached.timestamp), cached.length);
+        }
+
         PersonalKey key = Kontalk.get(context).getPersonalKey();
         EndpointServer server = Preferences.getEndpointServer(context);
         Coder coder = Keyring.getEncryptCoder(context, server, key, users);
-        // create a temporary file to store encrypted data
-        File temp = File.createTempFile("media", null, context.getCacheDir());
-        FileOutputStream out = new FileOutputStream(temp);
-        coder.encryptFile(in, out);
-        // close encrypted file
-        out.close();
-        return temp;
+        Coder.EncryptionSeed seed = Coder.EncryptionSeed.create();
+
+        LengthOutputStream out = new LengthOutputStream();
+        InputStream in = null;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            coder.encryptFile(in, out, mime, seed);
+        }
+        finally {
+            SystemUtils.closeStream(in);
+        }
+
+        if (coder.isEncryptedLengthStable()) {
+            synchronized (sEncryptedLengths) {
+                sEncryptedLengths.put(msgId, new EncryptedLength(uri, plainLength,
+                    lastModified, mime, users, seed.getTimestamp(), out.getLength()));
+            }
+        }
+        return new EncryptedUpload(seed, out.getLength());
+    }
+
+    /** Forgets the encrypted length of a message (e.g. after a failed upload). */
+    public static void invalidateEncryptedLength(long msgId) {
+        synchronized (sEncryptedLengths) {
+            sEncryptedLengths.remove(msgId);
+        }
+    }
+
+    /** Parameters for encrypting a media file while uploading it. */
+    public static final class EncryptedUpload {
+        /** Secret parameters: destroy them when not needed anymore. */
+        public final Coder.EncryptionSeed seed;
+        public final long length;
+
+        EncryptedUpload(Coder.EncryptionSeed seed, long length) {
+            this.seed = seed;
+            this.length = length;
+        }
+    }
+
+    private static final class EncryptedLength {
+        final Uri uri;
+        final long plainLength;
+        final long lastModified;
+        final String mime;
+        final String[] users;
+        final Date timestamp;
+        final long length;
+
+        EncryptedLength(Uri uri, long plainLength, long lastModified,
+                String mime, String[] users, Date timestamp, long length) {
+            this.uri = uri;
+            this.plainLength = plainLength;
+            this.lastModified = lastModified;
+            this.mime = mime;
+            this.users = users;
+            this.timestamp = timestamp;
+            this.length = length;
+        }
+
+        boolean matches(Uri uri, long plainLength, long lastModified,
+                String mime, String[] users) {
+            return this.uri.equals(uri) && this.plainLength == plainLength &&
+                this.lastModified == lastModified &&
+                (this.mime != null ? this.mime.equals(mime) : mime == null) &&
+                Arrays.equals(this.users, users);
+        }
+    }
+
+    /** An output stream which discards data and counts written bytes. */
+    private static final class LengthOutputStream extends OutputStream {
+        private long mLength;
+
+        @Override
+        public void write(int b) {
+            mLength++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            mLength += len;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
     }
 
     /** Fills in a {@link ContentValues} object from the given message. */
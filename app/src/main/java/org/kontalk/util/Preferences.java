@@ -302,6 +302,24 @@ public final class Preferences {
             .commit();
     }
 
+    /**
+     * Returns the time of the last users database resync.
+     * @param signature the settings affecting the resync, must match the ones stored with the timestamp
+     * @return the timestamp, or -1 if no resync was done or settings have changed
+     */
+    public static long getContactsResyncTimestamp(String signature) {
+        String stored = getString("pref_contacts_resync_signature", null);
+        return (stored != null && stored.equals(signature)) ?
+            getLong("pref_contacts_resync", -1) : -1;
+    }
+
+    public static boolean setContactsResyncTimestamp(long timestamp, String signature) {
+        return sPreferences.edit()
+            .putLong("pref_contacts_resync", timestamp)
+            .putString("pref_contacts_resync_signature", signature)
+            .commit();
+    }
+
     public static boolean setLastPushNotification(long timestamp) {
         return sPreferences.edit()
             .putLong("pref_last_push_notification", timestamp)
@@ -71,6 +71,16 @@ public class ProgressInputStreamEntity {
         _writeTo(new CountingOutputStream(outstream, mConn, mListener, length, mPublishDelay));
     }
 
+    /**
+     * Wraps an output stream to report progress of data written to it.
+     * Useful when data is produced on the fly (e.g. encrypted while uploading).
+     * @param length total length of data, -1 if unknown
+     */
+    public static OutputStream progressStream(OutputStream outstream,
+            UploadConnection conn, ProgressListener listener, long length, long publishDelay) {
+        return new CountingOutputStream(outstream, conn, listener, length, publishDelay);
+    }
+
     private static final class CountingOutputStream extends FilterOutputStream {
 
         private final UploadConnection conn;
@@ -109,7 +119,7 @@ public class ProgressInputStreamEntity {
 
         private void publishProgress(long add) {
             this.transferred += add;
-            if (this.transferred >= this.size || publishTimer.isStep(true))
+            if ((this.size >= 0 && this.transferred >= this.size) || publishTimer.isStep(true))
                 this.listener.progress(conn, this.transferred);
         }
     }
@@ -18,15 +18,21 @@
 
 package org.kontalk.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+import java.util.List;
 
 import android.support.annotation.NonNull;
 
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
 import org.kontalk.service.DownloadListener;
 
 
@@ -34,6 +40,9 @@ public class ProgressOutputStreamEntity {
     private static final int BUFFER_SIZE = 10240 * 10;
 
     private final HttpURLConnection mParent;
+    private final InputStream mIn;
+    private final long mOffset;
+    private final long mLength;
     private final String mUrl;
     private final File mFile;
     private final DownloadListener mListener;
@@ -42,15 +51,35 @@ public class ProgressOutputStreamEntity {
     public ProgressOutputStreamEntity(HttpURLConnection parent,
             String url, File file, final DownloadListener listener,
             final long publishDelay) {
+        this(parent, null, 0, parent.getContentLength(), url, file, listener, publishDelay);
+    }
+
+    /**
+     * Creates an entity reading from the given stream instead of the
+     * connection itself, e.g. for resumed downloads.
+     * @param in the response body, null to read from the connection
+     * @param offset number of bytes of the entity already received
+     * @param length total length of the entity, -1 if unknown
+     */
+    public ProgressOutputStreamEntity(HttpURLConnection parent, InputStream in,
+            long offset, long length, String url, File file,
+            final DownloadListener listener, final long publishDelay) {
         mParent = parent;
+        mIn = in;
+        mOffset = offset;
+        mLength = length;
         mUrl = url;
         mFile = file;
         mListener = listener;
         mPublishDelay = publishDelay;
     }
 
+    private InputStream getInputStream() throws IOException {
+        return mIn != null ? mIn : mParent.getInputStream();
+    }
+
     private void _writeTo(OutputStream outstream) throws IOException {
-        InputStream instream = mParent.getInputStream();
+        InputStream instream = getInputStream();
         try {
             final byte[] buffer = new byte[BUFFER_SIZE];
             int l;
@@ -70,12 +99,78 @@ public class ProgressOutputStreamEntity {
     }
 
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mParent.getContentLength(), mPublishDelay));
+        mListener.start(mUrl, mFile, mLength);
+        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mLength, mOffset, mPublishDelay));
         String mime = mParent.getContentType();
         mListener.completed(mUrl, mime, mFile);
     }
 
+    /**
+     * Decrypts the response body on the fly, writing cleartext data to the
+     * given stream. Progress is reported on the encrypted data received.
+     */
+    public void decryptTo(OutputStream outstream, Coder coder, List<DecryptException> errors)
+            throws IOException, GeneralSecurityException {
+        mListener.start(mUrl, mFile, mLength);
+        InputStream instream = new BufferedInputStream(new CountingInputStream(getInputStream(),
+            mUrl, mFile, mListener, mLength, mOffset, mPublishDelay), BUFFER_SIZE);
+        try {
+            coder.decryptFile(instream, true, outstream, errors);
+        }
+        finally {
+            try {
+                instream.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+        String mime = mParent.getContentType();
+        mListener.completed(mUrl, mime, mFile);
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final DownloadListener listener;
+        private final String url;
+        private final File file;
+        private final StepTimer publishTimer;
+        private final long size;
+        private long transferred;
+
+        CountingInputStream(final InputStream in,
+                final String url, final File file, final DownloadListener listener,
+                long size, long offset, long publishDelay) {
+            super(in);
+            this.url = url;
+            this.file = file;
+            this.listener = listener;
+            this.size = size;
+            this.publishTimer = new StepTimer(publishDelay);
+            this.transferred = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int l = in.read(b, off, len);
+            if (l > 0)
+                publishProgress(l);
+            return l;
+        }
+
+        private void publishProgress(long add) {
+            this.transferred += add;
+            if ((this.size >= 0 && this.transferred >= this.size) || publishTimer.isStep(true))
+                this.listener.progress(url, file, this.transferred);
+        }
+    }
+
     private static final class CountingOutputStream extends FilterOutputStream {
         private final DownloadListener listener;
         private final String url;
@@ -86,14 +181,14 @@ public class ProgressOutputStreamEntity {
 
         CountingOutputStream(final OutputStream out,
                 final String url, final File file, final DownloadListener listener,
-                long size, long publishDelay) {
+                long size, long offset, long publishDelay) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
             this.size = size;
             this.publishTimer = new StepTimer(publishDelay);
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
@@ -116,7 +211,7 @@ public class ProgressOutputStreamEntity {
 
         private void publishProgress(long add) {
             this.transferred += add;
-            if (this.transferred >= this.size || publishTimer.isStep(true))
+            if ((this.size >= 0 && this.transferred >= this.size) || publishTimer.isStep(true))
                 this.listener.progress(url, file, this.transferred);
         }
     }
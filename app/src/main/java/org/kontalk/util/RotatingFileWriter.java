@@ -18,18 +18,26 @@
 
 package org.kontalk.util;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
 
 
 /**
  * A simplified FileWriter capable of rotating a file after a given
  * amount of bytes have been written to the underlying file.
+ * Rotated data is kept in a fixed number of segment files named after the
+ * log file with a numeric suffix (e.g. log.1, log.2), the oldest segment
+ * being deleted on each rotation.
  * @author Daniele Ricci
  */
 public class RotatingFileWriter implements Flushable, Closeable {
@@ -37,28 +45,28 @@ public class RotatingFileWriter implements Flushable, Closeable {
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
     /** Rotate at this amount of bytes. */
-    private static final long ROTATE_AT = 1048576;
-    /** How many old lines to delete when rotating. */
-    private static final int DELETE_OLD = 100;
+    private static final long ROTATE_AT = 262144;
+    /** How many rotated segments to keep. */
+    private static final int MAX_SEGMENTS = 3;
 
     private final long mRotateAt;
-    private final long mDeleteOld;
+    private final int mMaxSegments;
     private final File mLogFile;
     private FileWriter mWriter;
     /** Caches the amount of bytes written in the current file. */
     private long mSize;
 
     public RotatingFileWriter(File logFile) throws IOException {
-        this(logFile, ROTATE_AT, DELETE_OLD);
+        this(logFile, ROTATE_AT, MAX_SEGMENTS);
     }
 
-    public RotatingFileWriter(File logFile, long rotateAt, int deleteOld) throws IOException {
+    public RotatingFileWriter(File logFile, long rotateAt, int maxSegments) throws IOException {
         super();
         mLogFile = logFile;
         mWriter = new FileWriter(logFile, true);
         mSize = mLogFile.length();
         mRotateAt = rotateAt;
-        mDeleteOld = deleteOld;
+        mMaxSegments = maxSegments;
     }
 
     @Override
@@ -76,6 +84,8 @@ public class RotatingFileWriter implements Flushable, Closeable {
     public synchronized void abort() throws IOException {
         close();
         mLogFile.delete();
+        for (File segment : getSegments(mLogFile))
+            segment.delete();
     }
 
     private void write(String str) throws IOException {
@@ -106,44 +116,77 @@ public class RotatingFileWriter implements Flushable, Closeable {
             if (!rotate())
                 throw new IOException("Unable to rotate log file");
             mWriter = new FileWriter(mLogFile, true);
+            mSize = 0;
         }
     }
 
-    private boolean rotate() throws IOException {
-        // rename the current file
-        File oldFile = new File(mLogFile.toString() + ".old");
-        File newFile = new File(mLogFile.toString());
-        if (newFile.renameTo(oldFile)) {
-            BufferedReader oldLog = null;
-            FileWriter rotatedLog = null;
-            try {
-                // open the old file and start writing lines
-                oldLog = new BufferedReader(new FileReader(oldFile));
-                rotatedLog = new FileWriter(mLogFile.toString());
-                long lineCount = 0;
-                String line;
-                while ((line = oldLog.readLine()) != null) {
-                    lineCount++;
-                    // skip up to DELETE_OLD lines, then start writing lines
-                    if (lineCount > mDeleteOld) {
-                        rotatedLog.write(line);
-                        rotatedLog.write(LINE_SEPARATOR);
-                    }
+    /** Shifts all segments by one, dropping the oldest one. */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private boolean rotate() {
+        File oldest = getSegment(mLogFile, mMaxSegments);
+        if (oldest.exists() && !oldest.delete())
+            return false;
+
+        for (int i = mMaxSegments - 1; i >= 1; i--) {
+            File segment = getSegment(mLogFile, i);
+            if (segment.exists() && !segment.renameTo(getSegment(mLogFile, i + 1)))
+                return false;
+        }
+
+        if (mMaxSegments > 0)
+            return mLogFile.renameTo(getSegment(mLogFile, 1));
+        else
+            return mLogFile.delete();
+    }
+
+    private static File getSegment(File logFile, int index) {
+        return new File(logFile.getPath() + "." + index);
+    }
+
+    /** Returns the rotated segments of a log file, oldest first. */
+    public static List<File> getSegments(File logFile) {
+        List<File> segments = new LinkedList<>();
+        for (int i = 1; ; i++) {
+            File segment = getSegment(logFile, i);
+            if (!segment.isFile())
+                break;
+            segments.add(0, segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Writes all segments and the current log file to a single file, in
+     * chronological order.
+     */
+    public static void concatenate(File logFile, File dest) throws IOException {
+        byte[] buffer = new byte[8192];
+        OutputStream out = new FileOutputStream(dest);
+        try {
+            List<File> files = getSegments(logFile);
+            files.add(logFile);
+            for (File file : files) {
+                InputStream in;
+                try {
+                    in = new FileInputStream(file);
+                }
+                catch (FileNotFoundException e) {
+                    // rotated in the meantime
+                    continue;
                 }
-            }
-            finally {
-                SystemUtils.closeStream(oldLog);
-                SystemUtils.closeStream(rotatedLog);
-                oldFile.delete();
-            }
 
-            mSize = mLogFile.length();
-            return true;
+                try {
+                    int len;
+                    while ((len = in.read(buffer)) > 0)
+                        out.write(buffer, 0, len);
+                }
+                finally {
+                    SystemUtils.closeStream(in);
+                }
+            }
         }
-        else {
-            // we couldn't rename the old log file
-            // we just delete it to make space for a new one
-            return mLogFile.delete();
+        finally {
+            out.close();
         }
     }
 
@@ -132,7 +132,7 @@ public class XMPPUtils {
     }
 
     public static String createLocalpart(String uid) {
-        return MessageUtils.sha1(uid);
+        return MessageUtils.sha1Hex(uid);
     }
 
     /** Returns true if the given JID is a domain JID (e.g. beta.kontalk.net). */
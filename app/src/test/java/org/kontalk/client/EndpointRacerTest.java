@@ -0,0 +1,157 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class EndpointRacerTest {
+
+    private static final int TIMEOUT = 5000;
+
+    private final List<ServerSocket> mServerSockets = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        EndpointRacer.clearLatencies();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ServerSocket s : mServerSockets)
+            s.close();
+    }
+
+    private ServerSocket listen() throws Exception {
+        ServerSocket s = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        mServerSockets.add(s);
+        return s;
+    }
+
+    private static int closedPort() throws Exception {
+        ServerSocket s = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+
+    private static EndpointServer server(int port) {
+        return new EndpointServer("test.kontalk.net|127.0.0.1:" + port);
+    }
+
+    @Test
+    public void testInterleave() throws Exception {
+        InetAddress v4a = InetAddress.getByName("10.0.0.1");
+        InetAddress v4b = InetAddress.getByName("10.0.0.2");
+        InetAddress v4c = InetAddress.getByName("10.0.0.3");
+        InetAddress v6a = InetAddress.getByName("fd00::1");
+        InetAddress v6b = InetAddress.getByName("fd00::2");
+
+        List<InetAddress> out = EndpointRacer.interleave(new InetAddress[] { v4a, v4b, v6a, v4c, v6b });
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v4c), out);
+    }
+
+    @Test
+    public void testRace() throws Exception {
+        EndpointServer dead = server(closedPort());
+        EndpointServer alive = server(listen().getLocalPort());
+
+        EndpointRacer racer = new EndpointRacer(Arrays.asList(dead, alive), 3, false, TIMEOUT, 100);
+        EndpointRacer.Result result = racer.race();
+        assertNotNull(result);
+        try {
+            assertEquals(alive, result.server);
+            assertEquals("127.0.0.1", result.host);
+            assertTrue(result.socket.isConnected());
+        }
+        finally {
+            result.socket.close();
+        }
+
+        // failures count as slow connections
+        assertTrue(EndpointRacer.getLatency(alive) >= 0);
+        assertEquals(TIMEOUT, EndpointRacer.getLatency(dead));
+
+        // next time the fastest goes first
+        List<EndpointServer> servers = new ArrayList<>(Arrays.asList(dead, alive));
+        EndpointRacer.sortByLatency(servers);
+        assertEquals(alive, servers.get(0));
+        assertEquals(alive, new EndpointRacer(Arrays.asList(dead, alive), 1, false, TIMEOUT, 100)
+            .getServers().get(0));
+    }
+
+    @Test
+    public void testStaggered() throws Exception {
+        ServerSocket first = listen();
+        ServerSocket second = listen();
+
+        EndpointRacer racer = new EndpointRacer(Arrays.asList(server(first.getLocalPort()),
+            server(second.getLocalPort())), 3, false, TIMEOUT, 2000);
+        long start = System.currentTimeMillis();
+        EndpointRacer.Result result = racer.race();
+        assertNotNull(result);
+        result.socket.close();
+        // first endpoint wins before the second attempt is started
+        assertEquals(first.getLocalPort(), result.server.getPort());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        second.setSoTimeout(300);
+        try {
+            Socket s = second.accept();
+            s.close();
+            fail("second endpoint should not have been tried");
+        }
+        catch (SocketTimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void testAllFailed() throws Exception {
+        EndpointRacer racer = new EndpointRacer(Arrays.asList(server(closedPort()),
+            server(closedPort())), 3, false, TIMEOUT, 100);
+        try {
+            racer.race();
+            fail("race should have failed");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testNoHost() throws Exception {
+        EndpointRacer racer = new EndpointRacer(Arrays.asList(new EndpointServer("test.kontalk.net")),
+            3, false, TIMEOUT, 100);
+        assertTrue(racer.getServers().isEmpty());
+        assertNull(racer.race());
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import org.kontalk.util.MessageUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PhoneNumberNormalizerTest {
+
+    private static final String MY_NUMBER = "+393321213456";
+
+    /** Generates numbers in different formats, with some duplicates and invalid ones. */
+    private static List<String> generateNumbers(int count) {
+        Random random = new Random(42);
+        List<String> numbers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String subscriber = String.format("%07d", random.nextInt(10000000));
+            switch (i % 8) {
+                case 0:
+                    numbers.add("+39 335 " + subscriber);
+                    break;
+                case 1:
+                    numbers.add("335" + subscriber);
+                    break;
+                case 2:
+                    numbers.add("(335) " + subscriber.substring(0, 3) + "-" + subscriber.substring(3));
+                    break;
+                case 3:
+                    numbers.add("0039 347 " + subscriber);
+                    break;
+                case 4:
+                    numbers.add("+1 (650) 555-" + subscriber.substring(3));
+                    break;
+                case 5:
+                    numbers.add("+54 9 11 " + subscriber.substring(0, 4) + " " + subscriber.substring(3));
+                    break;
+                case 6:
+                    // duplicate of a previous number
+                    numbers.add(numbers.get(random.nextInt(i)));
+                    break;
+                default:
+                    numbers.add("not a number " + subscriber);
+                    break;
+            }
+        }
+        return numbers;
+    }
+
+    @Test
+    public void testNormalize() throws Exception {
+        PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer(MY_NUMBER, "IT", 0);
+        PhoneNumberNormalizer.Result result = normalizer.normalize("335 123 4567");
+        assertEquals("+393351234567", result.number);
+        assertEquals(MessageUtils.sha1("+393351234567"), result.hash);
+
+        // same results as NumberValidator
+        for (String number : generateNumbers(200)) {
+            String expected;
+            try {
+                expected = NumberValidator.fixNumber(number, MY_NUMBER, "IT", 0);
+            }
+            catch (Exception e) {
+                expected = null;
+            }
+
+            try {
+                assertEquals(expected, normalizer.normalize(number).number);
+            }
+            catch (Exception e) {
+                assertNull(expected);
+            }
+        }
+
+        // failures are memoized too
+        for (int i = 0; i < 2; i++) {
+            try {
+                normalizer.normalize("not a number");
+                fail("number should not have been parsed");
+            }
+            catch (Exception expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testNormalizeAll() throws Exception {
+        List<String> numbers = generateNumbers(10000);
+
+        PhoneNumberNormalizer sequential = new PhoneNumberNormalizer(MY_NUMBER, "IT", 0);
+        int valid = 0;
+        for (String number : numbers) {
+            try {
+                sequential.normalize(number);
+                valid++;
+            }
+            catch (Exception ignored) {
+            }
+        }
+
+        PhoneNumberNormalizer parallel = new PhoneNumberNormalizer(MY_NUMBER, "IT", 0);
+        Map<String, PhoneNumberNormalizer.Result> results = parallel.normalizeAll(numbers);
+        Map<String, PhoneNumberNormalizer.Result> cached = parallel.normalizeAll(numbers);
+
+        assertEquals(results.size(), cached.size());
+        for (String number : numbers) {
+            PhoneNumberNormalizer.Result result = results.get(number);
+            String expected;
+            try {
+                expected = sequential.normalize(number).number;
+            }
+            catch (Exception e) {
+                expected = null;
+            }
+            assertEquals(expected, result != null ? result.number : null);
+        }
+        // every distinct number is memoized once, valid or not
+        assertEquals(new HashSet<>(numbers).size(), parallel.getCacheSize());
+        assertEquals(valid, countValid(results, numbers));
+    }
+
+    /**
+     * Compares normalizing 10k mixed-format numbers one by one through
+     * {@link NumberValidator} with the normalizer, in parallel and from cache.
+     */
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkNormalizeAll() throws Exception {
+        List<String> numbers = generateNumbers(10000);
+
+        long start = System.nanoTime();
+        for (String number : numbers) {
+            try {
+                MessageUtils.sha1(NumberValidator.fixNumber(number, MY_NUMBER, "IT", 0));
+            }
+            catch (Exception ignored) {
+            }
+        }
+        long legacyTime = System.nanoTime() - start;
+
+        PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer(MY_NUMBER, "IT", 0);
+        start = System.nanoTime();
+        normalizer.normalizeAll(numbers);
+        long parallelTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        normalizer.normalizeAll(numbers);
+        long cachedTime = System.nanoTime() - start;
+
+        String result = String.format(Locale.US,
+            "%d numbers: one by one %d ms, parallel %d ms, cached %d ms",
+            numbers.size(), legacyTime / 1000000, parallelTime / 1000000, cachedTime / 1000000);
+        assertTrue(result, parallelTime <= legacyTime);
+        assertTrue(result, cachedTime < parallelTime);
+    }
+
+    private static int countValid(Map<String, PhoneNumberNormalizer.Result> results, List<String> numbers) {
+        int count = 0;
+        for (String number : numbers) {
+            if (results.containsKey(number))
+                count++;
+        }
+        return count;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testPersist() throws Exception {
+        List<String> numbers = generateNumbers(1000);
+        PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer(MY_NUMBER, "IT", 0);
+        Map<String, PhoneNumberNormalizer.Result> results = normalizer.normalizeAll(numbers);
+
+        File file = File.createTempFile("numbers", null);
+        try {
+            normalizer.save(file);
+
+            PhoneNumberNormalizer loaded = new PhoneNumberNormalizer(MY_NUMBER, "IT", 0);
+            loaded.load(file);
+            // invalid numbers are not persisted
+            assertEquals(results.size(), loaded.getCacheSize());
+            for (Map.Entry<String, PhoneNumberNormalizer.Result> e : results.entrySet()) {
+                PhoneNumberNormalizer.Result result = loaded.normalize(e.getKey());
+                assertNotNull(result);
+                assertEquals(e.getValue().number, result.number);
+                assertEquals(e.getValue().hash, result.hash);
+            }
+
+            // different region: cache must not be used
+            PhoneNumberNormalizer other = new PhoneNumberNormalizer("+15417543010", "US", 0);
+            other.load(file);
+            assertEquals(0, other.getCacheSize());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ResumableInputStreamTest {
+
+    private static final int DATA_LENGTH = 100000;
+    private static final int DROP_AFTER = 30000;
+
+    private byte[] mData;
+    private FlakyServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = new byte[DATA_LENGTH];
+        new Random(42).nextBytes(mData);
+        mServer = new FlakyServer(mData);
+        new Thread(mServer).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        mServer.drops = 2;
+        assertArrayEquals(mData, download(3));
+        assertEquals(3, mServer.requests);
+        assertEquals(2, mServer.rangeRequests);
+    }
+
+    @Test
+    public void testNoDrops() throws Exception {
+        assertArrayEquals(mData, download(3));
+        assertEquals(1, mServer.requests);
+    }
+
+    @Test
+    public void testResumeManyDrops() throws Exception {
+        // attempts are reset as long as we receive data
+        mServer.drops = 10;
+        mServer.dropAfter = 10000;
+        assertArrayEquals(mData, download(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooManyDrops() throws Exception {
+        // no data at all
+        mServer.drops = 10;
+        mServer.dropAfter = 0;
+        download(3);
+    }
+
+    @Test
+    public void testRangesNotSupported() throws Exception {
+        mServer.drops = 1;
+        mServer.supportsRanges = false;
+        try {
+            download(3);
+            fail("server returned the whole entity, data must not be stitched together");
+        }
+        catch (IOException expected) {
+        }
+        assertEquals(2, mServer.requests);
+    }
+
+    @Test
+    public void testEntityChanged() throws Exception {
+        mServer.drops = 1;
+        mServer.changeETagOnDrop = true;
+        try {
+            download(3);
+            fail("entity changed, data must not be stitched together");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    private byte[] download(int maxRetries) throws IOException {
+        final URL url = new URL("http", "127.0.0.1", mServer.getPort(), "/attachment");
+        ResumableInputStream.Connector connector = new ResumableInputStream.Connector() {
+            @Override
+            public HttpURLConnection open() throws IOException {
+                return (HttpURLConnection) url.openConnection();
+            }
+        };
+
+        HttpURLConnection conn = connector.open();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+
+        ResumableInputStream in = new ResumableInputStream(connector, conn,
+            0, conn.getContentLength(), maxRetries);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int l;
+            while ((l = in.read(buf)) != -1)
+                out.write(buf, 0, l);
+            assertEquals(DATA_LENGTH, in.getPosition());
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** A minimal HTTP server that drops connections in the middle of a response. */
+    private static final class FlakyServer implements Runnable {
+        private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-");
+
+        private final ServerSocket mSocket;
+        private final byte[] mData;
+        private String mETag = "\"v1\"";
+
+        volatile int drops;
+        volatile int dropAfter = DROP_AFTER;
+        volatile boolean supportsRanges = true;
+        volatile boolean changeETagOnDrop;
+        volatile int requests;
+        volatile int rangeRequests;
+
+        FlakyServer(byte[] data) throws IOException {
+            mSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            mData = data;
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    Socket client = mSocket.accept();
+                    try {
+                        handle(client);
+                    }
+                    finally {
+                        client.close();
+                    }
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void handle(Socket client) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), "US-ASCII"));
+            long offset = -1;
+            String ifRange = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int sep = line.indexOf(':');
+                if (sep < 0)
+                    continue;
+                String name = line.substring(0, sep).trim();
+                String value = line.substring(sep + 1).trim();
+                if (name.equalsIgnoreCase("Range")) {
+                    Matcher m = RANGE_PATTERN.matcher(value);
+                    if (m.matches())
+                        offset = Long.parseLong(m.group(1));
+                }
+                else if (name.equalsIgnoreCase("If-Range")) {
+                    ifRange = value;
+                }
+            }
+            requests++;
+
+            StringBuilder headers = new StringBuilder();
+            int start = 0;
+            if (offset >= 0 && supportsRanges && (ifRange == null || ifRange.equals(mETag))) {
+                rangeRequests++;
+                start = (int) offset;
+                headers.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(start).append('-')
+                    .append(mData.length - 1).append('/').append(mData.length).append("\r\n");
+            }
+            else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            headers.append("Content-Type: application/octet-stream\r\n")
+                .append("Content-Length: ").append(mData.length - start).append("\r\n")
+                .append("ETag: ").append(mETag).append("\r\n")
+                .append("Connection: close\r\n\r\n");
+
+            OutputStream out = client.getOutputStream();
+            out.write(headers.toString().getBytes("US-ASCII"));
+
+            int end = mData.length;
+            if (drops > 0) {
+                drops--;
+                end = Math.min(end, start + dropAfter);
+                if (changeETagOnDrop)
+                    mETag = "\"v2\"";
+            }
+            out.write(mData, start, end - start);
+            out.flush();
+        }
+    }
+
+}
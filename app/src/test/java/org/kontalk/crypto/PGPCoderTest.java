@@ -0,0 +1,342 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+
+import org.kontalk.client.EndpointServer;
+
+import static org.junit.Assert.*;
+
+
+public class PGPCoderTest {
+
+    private static final String NETWORK = "kontalk.test";
+    private static final String PASSPHRASE = "test";
+
+    private static final int MB = 1024 * 1024;
+
+    private static EndpointServer sServer;
+    private static PersonalKey sKey;
+    private static PGPPublicKeyRing sPublicKey;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpKeys() throws Exception {
+        // PGP.registerProvider() applies Android PRNG fixes
+        PGP.PROVIDER = new BouncyCastleProvider();
+        // same as Android, where Bouncy Castle is the default provider
+        Security.insertProviderAt(PGP.PROVIDER, 1);
+
+        PGP.PGPKeyPairRing ring = PersonalKey.create(new Date())
+            .storeNetwork("alice", NETWORK, "Alice", PASSPHRASE);
+        sKey = PersonalKey.load(ring.secretKey, ring.publicKey, PASSPHRASE, (X509Certificate) null);
+        sPublicKey = ring.publicKey;
+        sServer = new EndpointServer(NETWORK, "localhost", EndpointServer.DEFAULT_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        PGPCoder.setBufferSize(PGPCoder.DEFAULT_BUFFER_SIZE);
+    }
+
+    @Test
+    public void testCompressionPolicy() {
+        assertEquals(PGPCompressedData.UNCOMPRESSED, PGPCoder.getCompressionAlgorithm("image/jpeg", -1));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, PGPCoder.getCompressionAlgorithm("video/mp4", -1));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, PGPCoder.getCompressionAlgorithm("audio/ogg", -1));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, PGPCoder.getCompressionAlgorithm("text/plain", 100));
+        assertEquals(PGPCompressedData.ZIP, PGPCoder.getCompressionAlgorithm("text/plain", 10000));
+        assertEquals(PGPCompressedData.ZIP, PGPCoder.getCompressionAlgorithm("audio/wav", -1));
+        assertEquals(PGPCompressedData.ZIP, PGPCoder.getCompressionAlgorithm(null, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBufferSize() {
+        PGPCoder.setBufferSize(3000);
+    }
+
+    @Test
+    public void testEncryptText() throws Exception {
+        String text = "Hello world!";
+        byte[] encrypted = encryptCoder().encryptText(text);
+        Coder.DecryptOutput out = decryptCoder().decryptText(encrypted, true);
+        assertEquals(text, out.cleartext);
+        assertTrue(out.errors.toString(), out.errors.isEmpty());
+    }
+
+    @Test
+    public void testEncryptFile() throws Exception {
+        byte[] data = new byte[MB + 17];
+        new Random(1).nextBytes(data);
+
+        for (String mime : new String[] { null, "image/jpeg" }) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            encryptCoder().encryptFile(new ByteArrayInputStream(data), encrypted, mime);
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            List<DecryptException> errors = new ArrayList<>();
+            decryptCoder().decryptFile(new ByteArrayInputStream(encrypted.toByteArray()),
+                true, decrypted, errors);
+
+            assertTrue(errors.toString(), errors.isEmpty());
+            assertArrayEquals(data, decrypted.toByteArray());
+        }
+    }
+
+    @Test
+    public void testEncryptFileReproducible() throws Exception {
+        byte[] data = new byte[MB + 17];
+        new Random(2).nextBytes(data);
+
+        Coder.EncryptionSeed seed = Coder.EncryptionSeed.create();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        encryptCoder().encryptFile(new ByteArrayInputStream(data), first, null, seed);
+
+        // input read in small chunks must not change the output
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        encryptCoder().encryptFile(new BufferedInputStream(new ByteArrayInputStream(data), 1000) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        }, second, null, seed);
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+
+        // a different seed gives a different output
+        ByteArrayOutputStream third = new ByteArrayOutputStream();
+        encryptCoder().encryptFile(new ByteArrayInputStream(data), third, null,
+            Coder.EncryptionSeed.create());
+        assertFalse(Arrays.equals(first.toByteArray(), third.toByteArray()));
+
+        // with ECDH keys the length depends only on content and timestamp
+        Coder coder = encryptCoder();
+        assertTrue(coder.isEncryptedLengthStable());
+        ByteArrayOutputStream fourth = new ByteArrayOutputStream();
+        coder.encryptFile(new ByteArrayInputStream(data), fourth, null,
+            Coder.EncryptionSeed.create(seed.getTimestamp()));
+        assertEquals(first.size(), fourth.size());
+        assertFalse(Arrays.equals(first.toByteArray(), fourth.toByteArray()));
+
+        // a destroyed seed can't be used to reproduce the output anymore
+        Coder.EncryptionSeed copy = Coder.EncryptionSeed.fromByteArray(seed.toByteArray());
+        copy.destroy();
+        ByteArrayOutputStream fifth = new ByteArrayOutputStream();
+        encryptCoder().encryptFile(new ByteArrayInputStream(data), fifth, null, copy);
+        assertFalse(Arrays.equals(first.toByteArray(), fifth.toByteArray()));
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        List<DecryptException> errors = new ArrayList<>();
+        decryptCoder().decryptFile(new ByteArrayInputStream(first.toByteArray()),
+            true, decrypted, errors);
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    /**
+     * Compares encryption and decryption throughput on incompressible
+     * (media-like) content between the old settings (small buffer, always ZIP)
+     * and the new ones (large buffer, content-aware compression).
+     */
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkFileThroughput() throws Exception {
+        for (int size : new int[] { 1, 10, 100 }) {
+            File plain = createRandomFile(size * MB);
+
+            PGPCoder.setBufferSize(PGPCoder.MIN_BUFFER_SIZE);
+            double[] before = benchmarkFile(plain, null);
+
+            PGPCoder.setBufferSize(PGPCoder.DEFAULT_BUFFER_SIZE);
+            double[] after = benchmarkFile(plain, "image/jpeg");
+
+            String result = String.format(Locale.US,
+                "%d MB: encrypt %.2f -> %.2f MB/s, decrypt %.2f -> %.2f MB/s",
+                size, before[0], after[0], before[1], after[1]);
+            assertTrue(result, after[0] >= before[0]);
+            assertTrue(result, after[1] >= before[1]);
+
+            assertTrue(plain.delete());
+        }
+    }
+
+    /** Returns encryption and decryption throughput in MB/s. */
+    private double[] benchmarkFile(File plain, String mime) throws Exception {
+        File encrypted = mFolder.newFile();
+        double megabytes = (double) plain.length() / MB;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(plain), PGPCoder.getBufferSize());
+        OutputStream out = new FileOutputStream(encrypted);
+        long start = System.nanoTime();
+        try {
+            encryptCoder().encryptFile(in, out, mime);
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+        double encryptTime = (System.nanoTime() - start) / 1e9;
+
+        List<DecryptException> errors = new ArrayList<>();
+        in = new BufferedInputStream(new FileInputStream(encrypted), PGPCoder.getBufferSize());
+        out = new NullOutputStream();
+        start = System.nanoTime();
+        try {
+            decryptCoder().decryptFile(in, true, out, errors);
+        }
+        finally {
+            in.close();
+        }
+        double decryptTime = (System.nanoTime() - start) / 1e9;
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(encrypted.delete());
+
+        return new double[] { megabytes / encryptTime, megabytes / decryptTime };
+    }
+
+    /**
+     * Compares encryptText() latency with 1, 10 and 100 recipients between
+     * the first message of a coder and subsequent messages, which reuse the
+     * random generator and the recipient encryption methods.
+     */
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkEncryptText() throws Exception {
+        final int warmup = 5;
+        final int iterations = 20;
+        final String text = "Hello world! This is a short text message.";
+
+        PGPPublicKeyRing[] keys = new PGPPublicKeyRing[100];
+        keys[0] = sPublicKey;
+        for (int i = 1; i < keys.length; i++)
+            keys[i] = createPublicKeyRing("user" + i);
+
+        for (int count : new int[] { 1, 10, 100 }) {
+            PGPPublicKeyRing[] recipients = new PGPPublicKeyRing[count];
+            System.arraycopy(keys, 0, recipients, 0, count);
+
+            Coder coder = new PGPCoder(sServer, sKey, recipients);
+            long start = System.nanoTime();
+            byte[] encrypted = coder.encryptText(text);
+            double first = (System.nanoTime() - start) / 1e6;
+
+            Coder.DecryptOutput out = decryptCoder().decryptText(encrypted, true);
+            assertEquals(text, out.cleartext);
+            assertTrue(out.errors.toString(), out.errors.isEmpty());
+
+            for (int i = 0; i < warmup; i++)
+                coder.encryptText(text);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                coder.encryptText(text);
+            double average = (System.nanoTime() - start) / 1e6 / iterations;
+
+            assertTrue(String.format(Locale.US,
+                "encryptText %d recipients: first %.2f ms, average %.2f ms/op",
+                count, first, average), average <= first);
+        }
+    }
+
+    /** Creates a public keyring using only EC keys (much faster than RSA). */
+    private static PGPPublicKeyRing createPublicKeyRing(String name) throws Exception {
+        Date now = new Date();
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("ECDSA", PGP.PROVIDER);
+        gen.initialize(new ECGenParameterSpec("P-256"));
+        PGPKeyPair authKp = new JcaPGPKeyPair(PGPPublicKey.ECDSA, gen.generateKeyPair(), now);
+        PGPKeyPair signKp = new JcaPGPKeyPair(PGPPublicKey.ECDSA, gen.generateKeyPair(), now);
+
+        gen = KeyPairGenerator.getInstance("ECDH", PGP.PROVIDER);
+        gen.initialize(new ECGenParameterSpec("P-256"));
+        PGPKeyPair encryptKp = new JcaPGPKeyPair(PGPPublicKey.ECDH, gen.generateKeyPair(), now);
+
+        return PGP.store(new PGP.PGPDecryptedKeyPairRing(authKp, signKp, encryptKp),
+            name + " <" + name + '@' + NETWORK + '>', PASSPHRASE).publicKey;
+    }
+
+    private File createRandomFile(int length) throws IOException {
+        File file = mFolder.newFile();
+        Random random = new Random(length);
+        byte[] buf = new byte[MB];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < length; written += buf.length) {
+                random.nextBytes(buf);
+                out.write(buf, 0, Math.min(buf.length, length - written));
+            }
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static Coder encryptCoder() {
+        return new PGPCoder(sServer, sKey, new PGPPublicKeyRing[] { sPublicKey });
+    }
+
+    private static Coder decryptCoder() {
+        return new PGPCoder(sServer, sKey, sPublicKey);
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
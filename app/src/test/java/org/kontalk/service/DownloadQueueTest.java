@@ -0,0 +1,94 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class DownloadQueueTest {
+
+    private static DownloadQueue.Request request(String url, int priority) {
+        return new DownloadQueue.Request(url, priority);
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        DownloadQueue<DownloadQueue.Request> queue = new DownloadQueue<>(3, 2);
+        assertTrue(queue.add(request("https://a.example.com/1", DownloadQueue.PRIORITY_NORMAL)));
+        assertTrue(queue.add(request("https://a.example.com/2", DownloadQueue.PRIORITY_NORMAL)));
+        assertTrue(queue.add(request("https://a.example.com/3", DownloadQueue.PRIORITY_NORMAL)));
+        assertTrue(queue.add(request("https://b.example.com/1", DownloadQueue.PRIORITY_NORMAL)));
+        assertTrue(queue.add(request("https://c.example.com/1", DownloadQueue.PRIORITY_NORMAL)));
+
+        DownloadQueue.Request r1 = queue.poll();
+        assertEquals("https://a.example.com/1", r1.getUrl());
+        assertEquals("https://a.example.com/2", queue.poll().getUrl());
+        // per-host limit reached: skip to the next host
+        assertEquals("https://b.example.com/1", queue.poll().getUrl());
+        // global limit reached
+        assertNull(queue.poll());
+        assertEquals(3, queue.getRunningCount());
+        assertEquals(2, queue.getPendingCount());
+
+        queue.finished(r1);
+        assertEquals("https://a.example.com/3", queue.poll().getUrl());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        DownloadQueue<DownloadQueue.Request> queue = new DownloadQueue<>(1, 1);
+        queue.add(request("https://example.com/1", DownloadQueue.PRIORITY_NORMAL));
+        queue.add(request("https://example.com/2", DownloadQueue.PRIORITY_NORMAL));
+        queue.add(request("https://example.com/3", DownloadQueue.PRIORITY_NORMAL));
+
+        assertTrue(queue.prioritize("https://example.com/3", DownloadQueue.PRIORITY_HIGH));
+        // duplicate request raises priority
+        assertFalse(queue.add(request("https://example.com/2", DownloadQueue.PRIORITY_HIGH)));
+
+        DownloadQueue.Request r = queue.poll();
+        assertEquals("https://example.com/3", r.getUrl());
+        queue.finished(r);
+        r = queue.poll();
+        assertEquals("https://example.com/2", r.getUrl());
+        queue.finished(r);
+        assertEquals("https://example.com/1", queue.poll().getUrl());
+    }
+
+    @Test
+    public void testDuplicatesAndRemove() throws Exception {
+        DownloadQueue<DownloadQueue.Request> queue = new DownloadQueue<>(1, 1);
+        queue.add(request("https://example.com/1", DownloadQueue.PRIORITY_NORMAL));
+        queue.add(request("https://example.com/2", DownloadQueue.PRIORITY_NORMAL));
+        DownloadQueue.Request r = queue.poll();
+
+        assertFalse(queue.add(request("https://example.com/1", DownloadQueue.PRIORITY_NORMAL)));
+        assertTrue(queue.contains("https://example.com/1"));
+        assertSame(r, queue.getRunning("https://example.com/1"));
+
+        assertNotNull(queue.removePending("https://example.com/2"));
+        assertFalse(queue.contains("https://example.com/2"));
+
+        queue.finished(r);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+}
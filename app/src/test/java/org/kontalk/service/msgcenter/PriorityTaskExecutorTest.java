@@ -0,0 +1,187 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PriorityTaskExecutorTest {
+
+    private PriorityTaskExecutor mExecutor;
+    private CountDownLatch mBlocker;
+
+    @Before
+    public void setUp() {
+        mExecutor = new PriorityTaskExecutor(1, new int[] { 10, 10, 2, 2 });
+        mBlocker = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        mBlocker.countDown();
+        mExecutor.shutdownNow();
+    }
+
+    /** Occupies the only worker thread until the blocker is released. */
+    private void block() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mBlocker.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        }, PriorityTaskExecutor.TASK_PRESENCE);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Runnable record(final List<String> out, final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                out.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        block();
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(5);
+        mExecutor.execute(record(order, "presence1", done), PriorityTaskExecutor.TASK_PRESENCE);
+        mExecutor.execute(record(order, "receipt1", done), PriorityTaskExecutor.TASK_RECEIPT);
+        mExecutor.execute(record(order, "presence2", done), PriorityTaskExecutor.TASK_PRESENCE);
+        mExecutor.execute(record(order, "message1", done), PriorityTaskExecutor.TASK_MESSAGE);
+        mExecutor.execute(record(order, "message2", done), PriorityTaskExecutor.TASK_MESSAGE);
+        assertEquals(2, mExecutor.getPendingCount(PriorityTaskExecutor.TASK_MESSAGE));
+        assertEquals(5, mExecutor.getPendingCount());
+
+        mBlocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[message1, message2, receipt1, presence1, presence2]", order.toString());
+        assertEquals(0, mExecutor.getPendingCount());
+        assertEquals(2, mExecutor.getExecutedCount(PriorityTaskExecutor.TASK_MESSAGE));
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        block();
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(2);
+        assertTrue(mExecutor.execute(record(order, "presence1", done), PriorityTaskExecutor.TASK_PRESENCE));
+        assertTrue(mExecutor.execute(record(order, "presence2", done), PriorityTaskExecutor.TASK_PRESENCE));
+        // presence queue is full: task is discarded, never run on the calling thread
+        assertFalse(mExecutor.execute(record(order, "presence3", done), PriorityTaskExecutor.TASK_PRESENCE));
+        assertTrue(order.isEmpty());
+        assertEquals(1, mExecutor.getDroppedCount(PriorityTaskExecutor.TASK_PRESENCE));
+        assertEquals(2, mExecutor.getPendingCount(PriorityTaskExecutor.TASK_PRESENCE));
+
+        // contact data tasks are never discarded
+        CountDownLatch contacts = new CountDownLatch(3);
+        for (int i = 1; i <= 3; i++)
+            assertTrue(mExecutor.execute(record(order, "contact" + i, contacts), PriorityTaskExecutor.TASK_CONTACT));
+        assertEquals(0, mExecutor.getDroppedCount(PriorityTaskExecutor.TASK_CONTACT));
+        assertEquals(1, mExecutor.getOverflowCount(PriorityTaskExecutor.TASK_CONTACT));
+
+        // message tasks are queued beyond capacity
+        PriorityTaskExecutor executor = new PriorityTaskExecutor(1, new int[] { 1, 1, 1, 1 });
+        try {
+            final CountDownLatch blocker = new CountDownLatch(1);
+            Runnable blocking = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        blocker.await();
+                    }
+                    catch (InterruptedException ignored) {
+                    }
+                }
+            };
+            CountDownLatch messages = new CountDownLatch(3);
+            List<String> messageOrder = Collections.synchronizedList(new ArrayList<String>());
+            assertTrue(executor.execute(blocking, PriorityTaskExecutor.TASK_MESSAGE));
+            assertTrue(executor.execute(record(messageOrder, "message1", messages), PriorityTaskExecutor.TASK_MESSAGE));
+            assertTrue(executor.execute(record(messageOrder, "message2", messages), PriorityTaskExecutor.TASK_MESSAGE));
+            assertTrue(executor.execute(record(messageOrder, "message3", messages), PriorityTaskExecutor.TASK_MESSAGE));
+            assertTrue(messageOrder.isEmpty());
+            assertTrue(executor.getOverflowCount(PriorityTaskExecutor.TASK_MESSAGE) >= 2);
+            blocker.countDown();
+            assertTrue(messages.await(5, TimeUnit.SECONDS));
+            assertEquals("[message1, message2, message3]", messageOrder.toString());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        mBlocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(contacts.await(5, TimeUnit.SECONDS));
+        assertEquals("[contact1, contact2, contact3, presence1, presence2]", order.toString());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        block();
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(1);
+        mExecutor.execute(record(order, "message1", done), PriorityTaskExecutor.TASK_MESSAGE);
+        mExecutor.shutdownNow();
+        assertTrue(mExecutor.isShutdown());
+        assertEquals(0, mExecutor.getPendingCount());
+
+        mExecutor.execute(record(order, "message2", done), PriorityTaskExecutor.TASK_MESSAGE);
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(order.isEmpty());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        block();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, PriorityTaskExecutor.TASK_RECEIPT);
+
+        String stats = mExecutor.dumpStats();
+        assertTrue(stats, stats.contains("receipt: pending=1 max=1 submitted=1"));
+        assertTrue(stats, stats.contains("presence: pending=0 max=1 submitted=1 executed=1"));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.util.Log;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncLogWriterTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("log", null);
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private int countLines(String match) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(mFile));
+        try {
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains(match))
+                    count++;
+            }
+            return count;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(mFile), 128, 1000);
+        for (int i = 0; i < 100; i++)
+            assertTrue(w.println(Log.INFO, "test", "line " + i));
+        w.close();
+        assertTrue(w.isClosed());
+        assertFalse(w.println(Log.INFO, "test", "closed"));
+
+        assertEquals(0, w.getDroppedCount());
+        assertEquals(100, countLines(" I/test: line "));
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(mFile), 4, 1000);
+        int total = 10000;
+        for (int i = 0; i < total; i++) {
+            w.println(Log.VERBOSE, "test", "line " + i);
+            w.println(Log.ERROR, "test", "error " + i);
+        }
+        w.close();
+
+        // no level waits for the writer
+        int written = countLines("/test: line ") + countLines("/test: error ");
+        assertEquals(total * 2, written + w.getDroppedCount());
+    }
+
+    @Test
+    public void testFlushOnError() throws Exception {
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(mFile), 16, 60000);
+        w.println(Log.ERROR, "test", "error");
+        // flush delay is way too long: the line must be flushed because of its level
+        long timeout = System.currentTimeMillis() + 5000;
+        while (countLines(" E/test: error") == 0 && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertEquals(1, countLines(" E/test: error"));
+        w.close();
+    }
+
+    @Test
+    public void testBlockingFlush() throws Exception {
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(mFile), 128, 60000);
+        for (int i = 0; i < 100; i++)
+            w.println(Log.INFO, "test", "line " + i);
+        assertTrue(w.flush(5000));
+        assertEquals(100, countLines(" I/test: line "));
+        w.close();
+        assertFalse(w.flush(5000));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(mFile), 16, 1000);
+        w.println(Log.INFO, "test", "line");
+        w.abort();
+        assertFalse(w.println(Log.INFO, "test", "aborted"));
+        long timeout = System.currentTimeMillis() + 5000;
+        while (mFile.exists() && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertFalse(mFile.exists());
+    }
+
+}
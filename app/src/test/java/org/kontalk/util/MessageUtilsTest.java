@@ -18,6 +18,10 @@
 
 package org.kontalk.util;
 
+import java.security.MessageDigest;
+import java.util.Locale;
+
+import org.junit.Ignore;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -31,4 +35,62 @@ public class MessageUtilsTest {
         String out = MessageUtils.bytesToHex(input);
         assertEquals("0002275115647f66646f08", out);
     }
+
+    @Test
+    public void testSha1Hex() throws Exception {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", MessageUtils.sha1Hex("abc"));
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", MessageUtils.sha1Hex(""));
+
+        // same local parts as the legacy implementation for phone numbers
+        assertEquals(MessageUtils.sha1("+15555215554"), MessageUtils.sha1Hex("+15555215554"));
+        // longer than the internal buffer
+        String longText = String.format(Locale.US, "%0100d", 12345);
+        assertEquals(MessageUtils.sha1(longText), MessageUtils.sha1Hex(longText));
+
+        // non-ASCII text is hashed in full
+        String text = "\u00e8\u4e2d\u6587";
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        assertEquals(MessageUtils.bytesToHex(md.digest(text.getBytes("UTF-8"))), MessageUtils.sha1Hex(text));
+    }
+
+    @Test
+    public void testSha1HexMatchesLegacy() throws Exception {
+        for (int i = 0; i < 100000; i += 997) {
+            String number = String.format(Locale.US, "+39335%07d", i);
+            assertEquals(MessageUtils.sha1(number), MessageUtils.sha1Hex(number));
+        }
+    }
+
+    /**
+     * Compares the legacy SHA-1 hashing with {@link MessageUtils#sha1Hex(String)}
+     * over 100k phone numbers.
+     */
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkSha1Hex() throws Exception {
+        final int count = 100000;
+        String[] numbers = new String[count];
+        for (int i = 0; i < count; i++)
+            numbers[i] = String.format(Locale.US, "+39335%07d", i);
+
+        // warm up
+        for (int i = 0; i < 1000; i++) {
+            MessageUtils.sha1(numbers[i]);
+            MessageUtils.sha1Hex(numbers[i]);
+        }
+
+        long start = System.nanoTime();
+        for (String number : numbers)
+            MessageUtils.sha1(number);
+        long legacyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String number : numbers)
+            MessageUtils.sha1Hex(number);
+        long time = System.nanoTime() - start;
+
+        assertTrue("SHA-1 of " + count + " numbers: legacy " + (legacyTime / 1000000) +
+            " ms, sha1Hex " + (time / 1000000) + " ms", time <= legacyTime);
+    }
+
 }
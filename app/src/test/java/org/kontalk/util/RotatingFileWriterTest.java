@@ -18,9 +18,16 @@
 
 package org.kontalk.util;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.util.List;
+import java.util.Locale;
 
 import org.jivesoftware.smack.util.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -28,34 +35,147 @@ import static org.junit.Assert.*;
 
 public class RotatingFileWriterTest {
 
+    private static final int LINE_SEP_LEN = System.getProperty("line.separator").length();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("log", null);
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
+    @After
+    public void tearDown() {
+        for (File segment : RotatingFileWriter.getSegments(mFile))
+            segment.delete();
+        mFile.delete();
+    }
+
     @Test
     public void testRotate() throws Exception {
-        int lineSepLen = System.getProperty("line.separator").length();
-        File f = File.createTempFile("log", null);
-        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 2);
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
-        w.println(StringUtils.randomString(512));
+        File segment1 = new File(mFile.getPath() + ".1");
+        File segment2 = new File(mFile.getPath() + ".2");
+        File segment3 = new File(mFile.getPath() + ".3");
+        long lineLen = 512 + LINE_SEP_LEN;
+
+        RotatingFileWriter w = new RotatingFileWriter(mFile, 3000, 2);
+        for (int i = 0; i < 5; i++)
+            w.println(StringUtils.randomString(512));
         w.flush();
-        assertEquals((512*5)+(lineSepLen*5), f.length());
+        assertEquals(lineLen * 5, mFile.length());
+        assertFalse(segment1.exists());
         w.println(StringUtils.randomString(512));
         // rotation threshold
         w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
+        assertEquals(0, mFile.length());
+        assertEquals(lineLen * 6, segment1.length());
+
+        for (int i = 0; i < 6; i++)
+            w.println(StringUtils.randomString(512));
+        // rotation threshold
         w.println(StringUtils.randomString(512));
         w.flush();
-        assertEquals((512*5)+(lineSepLen*5), f.length());
-        w.println(StringUtils.randomString(512));
-        // rotation threshold
+        assertEquals(lineLen, mFile.length());
+        assertEquals(lineLen * 6, segment1.length());
+        assertEquals(lineLen * 6, segment2.length());
+
+        for (int i = 0; i < 5; i++)
+            w.println(StringUtils.randomString(512));
+        // rotation threshold: oldest segment is dropped
+        w.flush();
+        assertEquals(0, mFile.length());
+        assertEquals(lineLen * 6, segment1.length());
+        assertEquals(lineLen * 6, segment2.length());
+        assertFalse(segment3.exists());
+        assertEquals(2, RotatingFileWriter.getSegments(mFile).size());
+        w.close();
+    }
+
+    @Test
+    public void testConcatenate() throws Exception {
+        RotatingFileWriter w = new RotatingFileWriter(mFile, 100, 3);
+        for (int i = 0; i < 50; i++)
+            w.println("line " + i);
+        w.close();
+
+        File dest = File.createTempFile("export", null);
+        try {
+            RotatingFileWriter.concatenate(mFile, dest);
+            BufferedReader reader = new BufferedReader(new FileReader(dest));
+            try {
+                String line;
+                int first = -1, count = 0;
+                while ((line = reader.readLine()) != null) {
+                    int index = Integer.parseInt(line.substring("line ".length()));
+                    if (first < 0)
+                        first = index;
+                    // lines must be in order, from the oldest segment
+                    assertEquals(first + count, index);
+                    count++;
+                }
+                assertEquals(50, first + count);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        finally {
+            dest.delete();
+        }
+    }
+
+    @Test
+    public void testManyLines() throws Exception {
+        int count = 100000;
+        String line = StringUtils.randomString(100);
+        long segmentSize = 262144;
+
+        RotatingFileWriter w = new RotatingFileWriter(mFile, segmentSize, 3);
+        for (int i = 0; i < count; i++)
+            w.println(line);
+        w.close();
+
+        // total size is bounded by the number of segments
+        long total = mFile.length();
+        List<File> segments = RotatingFileWriter.getSegments(mFile);
+        assertEquals(3, segments.size());
+        for (File segment : segments) {
+            assertTrue(segment.length() < segmentSize + line.length() + LINE_SEP_LEN);
+            total += segment.length();
+        }
+        assertTrue(total <= (segmentSize + line.length() + LINE_SEP_LEN) * 4);
+    }
+
+    /**
+     * Writes 100k lines and checks that rotating doesn't slow down writing:
+     * the second half of the lines, written while segments are rotated, must
+     * not be much slower than the first half.
+     */
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkThroughput() throws Exception {
+        int count = 100000;
+        String line = StringUtils.randomString(100);
+
+        RotatingFileWriter w = new RotatingFileWriter(mFile, 262144, 3);
+        long start = System.nanoTime();
+        for (int i = 0; i < count / 2; i++)
+            w.println(line);
+        w.flush();
+        long first = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count / 2; i++)
+            w.println(line);
         w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
+        long second = System.nanoTime() - start;
         w.close();
-        f.delete();
+
+        assertTrue(String.format(Locale.US,
+            "%d lines: first half %.0f lines/s, second half %.0f lines/s",
+            count, (count / 2) / (first / 1e9), (count / 2) / (second / 1e9)),
+            second <= first * 2);
     }
 
 }